@@ -0,0 +1,84 @@
+package com.nicaiya.glview.texture;
+
+import android.graphics.Color;
+import android.opengl.GLES20;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.nicaiya.glview.glrender.GLES20Canvas;
+import com.nicaiya.glview.glrender.NoOpGLES20Api;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.Buffer;
+import java.nio.FloatBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the glyphs drawn by GlyphCache on a GLES20Canvas, which doesn't
+ * need a GL context since its GL calls go to a NoOpGLES20Api.
+ */
+@RunWith(AndroidJUnit4.class)
+public class GlyphCacheTest {
+
+    // The layout of a vertex of the GLES20Canvas batches: x, y, z, w, u, v
+    // and the color.
+    private static final int FLOATS_PER_VERTEX = 10;
+    private static final int FLOATS_PER_QUAD = 4 * FLOATS_PER_VERTEX;
+    private static final int INDEX_U = 4;
+
+    // Keeps the texture coordinates of the first vertex of each quad in the
+    // batches uploaded.
+    private static class BatchCapture extends NoOpGLES20Api {
+        private float[] mCoordinates = new float[0];
+
+        @Override
+        public void glBufferSubData(int target, int offset, int size, Buffer data) {
+            if (target != GLES20.GL_ARRAY_BUFFER || !(data instanceof FloatBuffer)) return;
+            FloatBuffer buffer = (FloatBuffer) data;
+            int quads = size / 4 / FLOATS_PER_QUAD;
+            float[] coordinates = new float[mCoordinates.length + quads * 2];
+            System.arraycopy(mCoordinates, 0, coordinates, 0, mCoordinates.length);
+            for (int i = 0; i < quads; i++) {
+                int index = buffer.position() + i * FLOATS_PER_QUAD + INDEX_U;
+                coordinates[mCoordinates.length + i * 2] = buffer.get(index);
+                coordinates[mCoordinates.length + i * 2 + 1] = buffer.get(index + 1);
+            }
+            mCoordinates = coordinates;
+        }
+
+        float[] take() {
+            float[] coordinates = mCoordinates;
+            mCoordinates = new float[0];
+            return coordinates;
+        }
+    }
+
+    @Test
+    public void firstDrawOfFreshGlyphUsesPageCoordinates() {
+        BatchCapture capture = new BatchCapture();
+        GLES20Canvas canvas = new GLES20Canvas(capture);
+        canvas.setSize(200, 100);
+        // A text size no other test uses, so the glyphs are rasterized and
+        // packed by the first draw.
+        GlyphCache cache = GlyphCache.getInstance(null, 41.5f);
+
+        canvas.beginFrame();
+        cache.drawText(canvas, "Wq", 0, 0, Color.BLACK);
+        canvas.endFrame();
+        float[] first = capture.take();
+
+        canvas.beginFrame();
+        cache.drawText(canvas, "Wq", 0, 0, Color.BLACK);
+        canvas.endFrame();
+        float[] packed = capture.take();
+
+        assertEquals(4, packed.length);
+        // The second glyph is packed next to the first one in the page.
+        assertTrue(packed[2] > 0 || packed[3] > 0);
+        assertArrayEquals(packed, first, 0f);
+    }
+}
@@ -0,0 +1,342 @@
+package com.nicaiya.glview.glrender;
+
+import android.graphics.RectF;
+
+import com.nicaiya.glview.texture.BasicTexture;
+import com.nicaiya.glview.texture.RawTexture;
+
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+
+/**
+ * DisplayList is a recorded sequence of GLCanvas calls which can be replayed
+ * onto another GLCanvas any number of times.
+ * <p>
+ * The calls are stored as int opcodes (followed by their int arguments), a
+ * separate stream of float arguments, and the referenced objects (textures
+ * and other display lists). A display list may refer to other display lists,
+ * which are replayed at that point and can be re-recorded independently.
+ * <p>
+ * Recording and replaying must both happen in the GL thread.
+ */
+public class DisplayList {
+
+    static final int OP_SAVE = 1;                 // int flags
+    static final int OP_RESTORE = 2;
+    static final int OP_SET_ALPHA = 3;            // float alpha
+    static final int OP_MULTIPLY_ALPHA = 4;       // float alpha
+    static final int OP_TRANSLATE = 5;            // float x, y, z
+    static final int OP_SCALE = 6;                // float x, y, z
+    static final int OP_ROTATE = 7;               // float angle, x, y, z
+    static final int OP_MULTIPLY_MATRIX = 8;      // float[16]
+    static final int OP_DRAW_LINE = 9;            // int color; float x1, y1, x2, y2, width
+    static final int OP_DRAW_RECT = 10;           // int color; float x, y, w, h, width
+    static final int OP_FILL_RECT = 11;           // int color; float x, y, w, h
+    static final int OP_DRAW_TEXTURE = 12;        // int ref, x, y, w, h
+    static final int OP_DRAW_TEXTURE_RECT = 13;   // int ref; float source[4], target[4]
+    static final int OP_DRAW_TEXTURE_MATRIX = 14; // int ref, x, y, w, h; float[16]
+    static final int OP_DRAW_MIXED = 15;          // int ref, color, x, y, w, h; float ratio
+    static final int OP_DRAW_MIXED_RECT = 16;     // int ref, color; float ratio, source[4],
+                                                  // target[4]
+    static final int OP_DRAW_MESH = 17;           // int ref, x, y, xy, uv, index, count
+    static final int OP_CLEAR_BUFFER = 18;
+    static final int OP_CLEAR_BUFFER_COLOR = 19;  // float argb[4]
+    static final int OP_BEGIN_RENDER_TARGET = 20; // int ref
+    static final int OP_END_RENDER_TARGET = 21;
+    static final int OP_DRAW_DISPLAY_LIST = 22;   // int ref
+    static final int OP_CLIP_RECT = 23;           // float x, y, w, h
+    static final int OP_DRAW_TINTED_TEXTURE = 24; // int ref, color; float target[4]
+    static final int OP_DRAW_MESH_VERTICES = 25;  // int ref, x, y, vertices, index, count;
+                                                  // float vertices[4 * vertices]
+    static final int OP_DRAW_STRETCH_MESH = 26;   // int ref, mesh ref, x, y, w, h
+    static final int OP_DRAW_STREAM_MESH = 27;    // int ref, x, y, mode, vertices, count,
+                                                  // indices[count];
+                                                  // float vertices[4 * vertices]
+
+    private static final int MATRIX_SIZE = 16;
+    private static final int INITIAL_SIZE = 64;
+
+    private int[] mOps = new int[INITIAL_SIZE];
+    private int mOpsSize;
+    private float[] mArgs = new float[INITIAL_SIZE];
+    private int mArgsSize;
+    private final ArrayList<Object> mRefs = new ArrayList<Object>();
+
+    private DisplayListCanvas mRecorder;
+    private boolean mRecording;
+
+    // Temporary variables used while replaying
+    private final GLPaint mTempPaint = new GLPaint();
+    private final RectF mTempSourceRect = new RectF();
+    private final RectF mTempTargetRect = new RectF();
+    private final float[] mTempMatrix = new float[MATRIX_SIZE];
+    private final float[] mTempColor = new float[4];
+
+    /**
+     * Clears the display list and returns a canvas recording into it, until
+     * endRecording() is called.
+     *
+     * @param target The canvas which is used for everything but drawing while
+     *               recording, like uploading textures and buffers.
+     */
+    public GLCanvas beginRecording(GLCanvas target) {
+        if (mRecording) throw new IllegalStateException("already recording");
+        mOpsSize = 0;
+        mArgsSize = 0;
+        mRefs.clear();
+        if (mRecorder == null) mRecorder = new DisplayListCanvas();
+        mRecorder.begin(this, target);
+        mRecording = true;
+        return mRecorder;
+    }
+
+    public void endRecording() {
+        if (!mRecording) throw new IllegalStateException("not recording");
+        mRecorder.end();
+        mRecording = false;
+    }
+
+    public boolean isEmpty() {
+        return mOpsSize == 0;
+    }
+
+    // Releases the references to the recorded textures and display lists.
+    public void clear() {
+        mOpsSize = 0;
+        mArgsSize = 0;
+        mRefs.clear();
+    }
+
+    /**
+     * Draws the display list to the canvas. If the canvas is recording
+     * another display list, this one is referenced instead of being copied,
+     * so it can be re-recorded later without re-recording the other.
+     */
+    public void draw(GLCanvas canvas) {
+        if (canvas instanceof DisplayListCanvas) {
+            ((DisplayListCanvas) canvas).drawDisplayList(this);
+        } else {
+            replay(canvas);
+        }
+    }
+
+    /**
+     * Returns the canvas doing the real drawing: the canvas itself, or the
+     * one a recording is made for. Drawing done to it is not recorded.
+     */
+    public static GLCanvas getTargetCanvas(GLCanvas canvas) {
+        while (canvas instanceof DisplayListCanvas) {
+            canvas = ((DisplayListCanvas) canvas).getTarget();
+        }
+        return canvas;
+    }
+
+    void addOp(int op) {
+        ensureOpsCapacity(1);
+        mOps[mOpsSize++] = op;
+    }
+
+    void addInt(int value) {
+        ensureOpsCapacity(1);
+        mOps[mOpsSize++] = value;
+    }
+
+    void addFloat(float value) {
+        ensureArgsCapacity(1);
+        mArgs[mArgsSize++] = value;
+    }
+
+    void addFloats(float[] values, int offset, int count) {
+        ensureArgsCapacity(count);
+        System.arraycopy(values, offset, mArgs, mArgsSize, count);
+        mArgsSize += count;
+    }
+
+    void addRect(RectF rect) {
+        ensureArgsCapacity(4);
+        float[] args = mArgs;
+        int i = mArgsSize;
+        args[i] = rect.left;
+        args[i + 1] = rect.top;
+        args[i + 2] = rect.right;
+        args[i + 3] = rect.bottom;
+        mArgsSize = i + 4;
+    }
+
+    void addRef(Object ref) {
+        addInt(mRefs.size());
+        mRefs.add(ref);
+    }
+
+    private void ensureOpsCapacity(int count) {
+        if (mOpsSize + count > mOps.length) {
+            int[] ops = new int[Math.max(mOps.length * 2, mOpsSize + count)];
+            System.arraycopy(mOps, 0, ops, 0, mOpsSize);
+            mOps = ops;
+        }
+    }
+
+    private void ensureArgsCapacity(int count) {
+        if (mArgsSize + count > mArgs.length) {
+            float[] args = new float[Math.max(mArgs.length * 2, mArgsSize + count)];
+            System.arraycopy(mArgs, 0, args, 0, mArgsSize);
+            mArgs = args;
+        }
+    }
+
+    private void replay(GLCanvas canvas) {
+        if (mRecording) throw new IllegalStateException("replaying while recording");
+        int[] ops = mOps;
+        float[] args = mArgs;
+        ArrayList<Object> refs = mRefs;
+        int a = 0;
+        int i = 0;
+        while (i < mOpsSize) {
+            switch (ops[i++]) {
+                case OP_SAVE:
+                    canvas.save(ops[i++]);
+                    break;
+                case OP_RESTORE:
+                    canvas.restore();
+                    break;
+                case OP_SET_ALPHA:
+                    canvas.setAlpha(args[a++]);
+                    break;
+                case OP_MULTIPLY_ALPHA:
+                    canvas.multiplyAlpha(args[a++]);
+                    break;
+                case OP_TRANSLATE:
+                    canvas.translate(args[a], args[a + 1], args[a + 2]);
+                    a += 3;
+                    break;
+                case OP_SCALE:
+                    canvas.scale(args[a], args[a + 1], args[a + 2]);
+                    a += 3;
+                    break;
+                case OP_ROTATE:
+                    canvas.rotate(args[a], args[a + 1], args[a + 2], args[a + 3]);
+                    a += 4;
+                    break;
+                case OP_MULTIPLY_MATRIX:
+                    System.arraycopy(args, a, mTempMatrix, 0, MATRIX_SIZE);
+                    canvas.multiplyMatrix(mTempMatrix, 0);
+                    a += MATRIX_SIZE;
+                    break;
+                case OP_DRAW_LINE:
+                    mTempPaint.setColor(ops[i++]);
+                    mTempPaint.setLineWidth(args[a + 4]);
+                    canvas.drawLine(args[a], args[a + 1], args[a + 2], args[a + 3], mTempPaint);
+                    a += 5;
+                    break;
+                case OP_DRAW_RECT:
+                    mTempPaint.setColor(ops[i++]);
+                    mTempPaint.setLineWidth(args[a + 4]);
+                    canvas.drawRect(args[a], args[a + 1], args[a + 2], args[a + 3], mTempPaint);
+                    a += 5;
+                    break;
+                case OP_FILL_RECT:
+                    canvas.fillRect(args[a], args[a + 1], args[a + 2], args[a + 3], ops[i++]);
+                    a += 4;
+                    break;
+                case OP_DRAW_TEXTURE:
+                    canvas.drawTexture((BasicTexture) refs.get(ops[i]),
+                            ops[i + 1], ops[i + 2], ops[i + 3], ops[i + 4]);
+                    i += 5;
+                    break;
+                case OP_DRAW_TEXTURE_RECT:
+                    mTempSourceRect.set(args[a], args[a + 1], args[a + 2], args[a + 3]);
+                    mTempTargetRect.set(args[a + 4], args[a + 5], args[a + 6], args[a + 7]);
+                    canvas.drawTexture((BasicTexture) refs.get(ops[i++]),
+                            mTempSourceRect, mTempTargetRect);
+                    a += 8;
+                    break;
+                case OP_DRAW_TINTED_TEXTURE:
+                    mTempTargetRect.set(args[a], args[a + 1], args[a + 2], args[a + 3]);
+                    canvas.drawTintedTexture((BasicTexture) refs.get(ops[i]),
+                            mTempTargetRect, ops[i + 1]);
+                    i += 2;
+                    a += 4;
+                    break;
+                case OP_DRAW_TEXTURE_MATRIX:
+                    System.arraycopy(args, a, mTempMatrix, 0, MATRIX_SIZE);
+                    canvas.drawTexture((BasicTexture) refs.get(ops[i]), mTempMatrix,
+                            ops[i + 1], ops[i + 2], ops[i + 3], ops[i + 4]);
+                    i += 5;
+                    a += MATRIX_SIZE;
+                    break;
+                case OP_DRAW_MIXED:
+                    canvas.drawMixed((BasicTexture) refs.get(ops[i]), ops[i + 1], args[a++],
+                            ops[i + 2], ops[i + 3], ops[i + 4], ops[i + 5]);
+                    i += 6;
+                    break;
+                case OP_DRAW_MIXED_RECT:
+                    mTempSourceRect.set(args[a + 1], args[a + 2], args[a + 3], args[a + 4]);
+                    mTempTargetRect.set(args[a + 5], args[a + 6], args[a + 7], args[a + 8]);
+                    canvas.drawMixed((BasicTexture) refs.get(ops[i]), ops[i + 1], args[a],
+                            mTempSourceRect, mTempTargetRect);
+                    i += 2;
+                    a += 9;
+                    break;
+                case OP_DRAW_MESH:
+                    canvas.drawMesh((BasicTexture) refs.get(ops[i]), ops[i + 1], ops[i + 2],
+                            ops[i + 3], ops[i + 4], ops[i + 5], ops[i + 6]);
+                    i += 7;
+                    break;
+                case OP_DRAW_MESH_VERTICES:
+                    canvas.drawMesh((BasicTexture) refs.get(ops[i]), ops[i + 1], ops[i + 2],
+                            args, a, ops[i + 3], ops[i + 4], ops[i + 5]);
+                    a += ops[i + 3] * 4;
+                    i += 6;
+                    break;
+                case OP_DRAW_STRETCH_MESH:
+                    canvas.drawStretchMesh((BasicTexture) refs.get(ops[i]),
+                            (StretchMesh) refs.get(ops[i + 1]), ops[i + 2], ops[i + 3],
+                            ops[i + 4], ops[i + 5]);
+                    i += 6;
+                    break;
+                case OP_DRAW_STREAM_MESH: {
+                    // The geometry is streamed again, to the replaying canvas.
+                    int vertexCount = ops[i + 4];
+                    int indexCount = ops[i + 5];
+                    StreamBuffer stream = canvas.getStreamBuffer();
+                    int vertexOffset = stream.allocateVertices(vertexCount);
+                    int floatCount = vertexCount * StreamBuffer.FLOATS_PER_VERTEX;
+                    stream.getVertices().put(args, a, floatCount);
+                    int indexOffset = stream.allocateIndices(indexCount);
+                    ShortBuffer indices = stream.getIndices();
+                    for (int k = 0; k < indexCount; k++) {
+                        indices.put((short) ops[i + 6 + k]);
+                    }
+                    canvas.drawStreamMesh((BasicTexture) refs.get(ops[i]), ops[i + 1],
+                            ops[i + 2], ops[i + 3], vertexOffset, indexOffset, indexCount);
+                    a += floatCount;
+                    i += 6 + indexCount;
+                    break;
+                }
+                case OP_CLEAR_BUFFER:
+                    canvas.clearBuffer();
+                    break;
+                case OP_CLEAR_BUFFER_COLOR:
+                    System.arraycopy(args, a, mTempColor, 0, 4);
+                    canvas.clearBuffer(mTempColor);
+                    a += 4;
+                    break;
+                case OP_BEGIN_RENDER_TARGET:
+                    canvas.beginRenderTarget((RawTexture) refs.get(ops[i++]));
+                    break;
+                case OP_END_RENDER_TARGET:
+                    canvas.endRenderTarget();
+                    break;
+                case OP_CLIP_RECT:
+                    canvas.clipRect(args[a], args[a + 1], args[a + 2], args[a + 3]);
+                    a += 4;
+                    break;
+                case OP_DRAW_DISPLAY_LIST:
+                    ((DisplayList) refs.get(ops[i++])).replay(canvas);
+                    break;
+                default:
+                    throw new IllegalStateException("bad op: " + ops[i - 1]);
+            }
+        }
+    }
+}
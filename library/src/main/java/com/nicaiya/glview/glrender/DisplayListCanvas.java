@@ -0,0 +1,453 @@
+package com.nicaiya.glview.glrender;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+import com.nicaiya.glview.texture.BasicTexture;
+import com.nicaiya.glview.texture.RawTexture;
+import com.nicaiya.glview.utils.IntArray;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ * DisplayListCanvas records the drawing calls into a {@link DisplayList}.
+ * Everything else, like uploading textures and buffers, is passed on to the
+ * target canvas immediately. It is obtained from
+ * {@link DisplayList#beginRecording(GLCanvas)}.
+ * <p>
+ * The recorded calls are relative to the state of the canvas the display
+ * list is replayed onto, so getAlpha() returns the alpha relative to the
+ * start of the recording.
+ */
+class DisplayListCanvas implements GLCanvas {
+
+    private static final int INITIAL_RESTORE_STATE_SIZE = 8;
+
+    private DisplayList mList;
+    private GLCanvas mTarget;
+
+    // The relative alpha, for getAlpha()
+    private float[] mAlphas = new float[INITIAL_RESTORE_STATE_SIZE];
+    private int mCurrentAlphaIndex = 0;
+    private final IntArray mSaveFlags = new IntArray();
+    private float[] mTempVertices = new float[0];
+
+    void begin(DisplayList list, GLCanvas target) {
+        // Resources always go to the canvas doing the real drawing.
+        while (target instanceof DisplayListCanvas) {
+            target = ((DisplayListCanvas) target).mTarget;
+        }
+        mList = list;
+        mTarget = target;
+        mCurrentAlphaIndex = 0;
+        mAlphas[0] = 1f;
+        mSaveFlags.clear();
+    }
+
+    void end() {
+        mList = null;
+        mTarget = null;
+    }
+
+    GLCanvas getTarget() {
+        return mTarget;
+    }
+
+    void drawDisplayList(DisplayList list) {
+        mList.addOp(DisplayList.OP_DRAW_DISPLAY_LIST);
+        mList.addRef(list);
+    }
+
+    @Override
+    public GLId getGLId() {
+        return mTarget.getGLId();
+    }
+
+    @Override
+    public void setSize(int width, int height) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void beginFrame() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void endFrame() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setDamage(Rect damage) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean quickReject(float x, float y, float width, float height) {
+        // The recording may be replayed with any damage.
+        return false;
+    }
+
+    @Override
+    public void clearBuffer() {
+        mList.addOp(DisplayList.OP_CLEAR_BUFFER);
+    }
+
+    @Override
+    public void clearBuffer(float[] argb) {
+        mList.addOp(DisplayList.OP_CLEAR_BUFFER_COLOR);
+        mList.addFloats(argb, 0, 4);
+    }
+
+    @Override
+    public void setAlpha(float alpha) {
+        mAlphas[mCurrentAlphaIndex] = alpha;
+        mList.addOp(DisplayList.OP_SET_ALPHA);
+        mList.addFloat(alpha);
+    }
+
+    @Override
+    public float getAlpha() {
+        return mAlphas[mCurrentAlphaIndex];
+    }
+
+    @Override
+    public void multiplyAlpha(float alpha) {
+        mAlphas[mCurrentAlphaIndex] *= alpha;
+        mList.addOp(DisplayList.OP_MULTIPLY_ALPHA);
+        mList.addFloat(alpha);
+    }
+
+    @Override
+    public void translate(float x, float y, float z) {
+        mList.addOp(DisplayList.OP_TRANSLATE);
+        mList.addFloat(x);
+        mList.addFloat(y);
+        mList.addFloat(z);
+    }
+
+    @Override
+    public void translate(float x, float y) {
+        translate(x, y, 0);
+    }
+
+    @Override
+    public void scale(float sx, float sy, float sz) {
+        mList.addOp(DisplayList.OP_SCALE);
+        mList.addFloat(sx);
+        mList.addFloat(sy);
+        mList.addFloat(sz);
+    }
+
+    @Override
+    public void rotate(float angle, float x, float y, float z) {
+        mList.addOp(DisplayList.OP_ROTATE);
+        mList.addFloat(angle);
+        mList.addFloat(x);
+        mList.addFloat(y);
+        mList.addFloat(z);
+    }
+
+    @Override
+    public void multiplyMatrix(float[] matrix, int offset) {
+        mList.addOp(DisplayList.OP_MULTIPLY_MATRIX);
+        mList.addFloats(matrix, offset, 16);
+    }
+
+    @Override
+    public void save() {
+        save(SAVE_FLAG_ALL);
+    }
+
+    @Override
+    public void save(int saveFlags) {
+        if ((saveFlags & SAVE_FLAG_ALPHA) == SAVE_FLAG_ALPHA) {
+            float currentAlpha = getAlpha();
+            mCurrentAlphaIndex++;
+            if (mAlphas.length <= mCurrentAlphaIndex) {
+                float[] alphas = new float[mAlphas.length * 2];
+                System.arraycopy(mAlphas, 0, alphas, 0, mAlphas.length);
+                mAlphas = alphas;
+            }
+            mAlphas[mCurrentAlphaIndex] = currentAlpha;
+        }
+        mSaveFlags.add(saveFlags);
+        mList.addOp(DisplayList.OP_SAVE);
+        mList.addInt(saveFlags);
+    }
+
+    @Override
+    public void restore() {
+        int restoreFlags = mSaveFlags.removeLast();
+        if ((restoreFlags & SAVE_FLAG_ALPHA) == SAVE_FLAG_ALPHA) {
+            mCurrentAlphaIndex--;
+        }
+        mList.addOp(DisplayList.OP_RESTORE);
+    }
+
+    @Override
+    public boolean clipRect(float x, float y, float width, float height) {
+        mList.addOp(DisplayList.OP_CLIP_RECT);
+        mList.addFloat(x);
+        mList.addFloat(y);
+        mList.addFloat(width);
+        mList.addFloat(height);
+        // Whether the clip is empty is only known when replaying.
+        return true;
+    }
+
+    @Override
+    public void drawLine(float x1, float y1, float x2, float y2, GLPaint paint) {
+        mList.addOp(DisplayList.OP_DRAW_LINE);
+        mList.addInt(paint.getColor());
+        mList.addFloat(x1);
+        mList.addFloat(y1);
+        mList.addFloat(x2);
+        mList.addFloat(y2);
+        mList.addFloat(paint.getLineWidth());
+    }
+
+    @Override
+    public void drawRect(float x, float y, float width, float height, GLPaint paint) {
+        mList.addOp(DisplayList.OP_DRAW_RECT);
+        mList.addInt(paint.getColor());
+        mList.addFloat(x);
+        mList.addFloat(y);
+        mList.addFloat(width);
+        mList.addFloat(height);
+        mList.addFloat(paint.getLineWidth());
+    }
+
+    @Override
+    public void fillRect(float x, float y, float width, float height, int color) {
+        mList.addOp(DisplayList.OP_FILL_RECT);
+        mList.addInt(color);
+        mList.addFloat(x);
+        mList.addFloat(y);
+        mList.addFloat(width);
+        mList.addFloat(height);
+    }
+
+    @Override
+    public void drawTexture(BasicTexture texture, int x, int y, int width, int height) {
+        mList.addOp(DisplayList.OP_DRAW_TEXTURE);
+        mList.addRef(texture);
+        mList.addInt(x);
+        mList.addInt(y);
+        mList.addInt(width);
+        mList.addInt(height);
+    }
+
+    @Override
+    public void drawMesh(BasicTexture texture, int x, int y, int xyBuffer, int uvBuffer,
+            int indexBuffer, int indexCount) {
+        mList.addOp(DisplayList.OP_DRAW_MESH);
+        mList.addRef(texture);
+        mList.addInt(x);
+        mList.addInt(y);
+        mList.addInt(xyBuffer);
+        mList.addInt(uvBuffer);
+        mList.addInt(indexBuffer);
+        mList.addInt(indexCount);
+    }
+
+    @Override
+    public void drawTexture(BasicTexture texture, RectF source, RectF target) {
+        mList.addOp(DisplayList.OP_DRAW_TEXTURE_RECT);
+        mList.addRef(texture);
+        mList.addRect(source);
+        mList.addRect(target);
+    }
+
+    @Override
+    public void drawMesh(BasicTexture texture, int x, int y, float[] vertices, int offset,
+            int vertexCount, int indexBuffer, int indexCount) {
+        mList.addOp(DisplayList.OP_DRAW_MESH_VERTICES);
+        mList.addRef(texture);
+        mList.addInt(x);
+        mList.addInt(y);
+        mList.addInt(vertexCount);
+        mList.addInt(indexBuffer);
+        mList.addInt(indexCount);
+        mList.addFloats(vertices, offset, vertexCount * 4);
+    }
+
+    @Override
+    public StreamBuffer getStreamBuffer() {
+        return mTarget.getStreamBuffer();
+    }
+
+    // The streamed geometry only lasts for the frame, so it is copied into
+    // the display list, which streams it again when it is replayed.
+    @Override
+    public void drawStreamMesh(BasicTexture texture, int x, int y, int mode, int vertexOffset,
+            int indexOffset, int indexCount) {
+        StreamBuffer stream = mTarget.getStreamBuffer();
+        int vertexCount = 0;
+        for (int i = 0; i < indexCount; i++) {
+            vertexCount = Math.max(vertexCount, (stream.getIndex(indexOffset + i) & 0xFFFF) + 1);
+        }
+        mList.addOp(DisplayList.OP_DRAW_STREAM_MESH);
+        mList.addRef(texture);
+        mList.addInt(x);
+        mList.addInt(y);
+        mList.addInt(mode);
+        mList.addInt(vertexCount);
+        mList.addInt(indexCount);
+        for (int i = 0; i < indexCount; i++) {
+            mList.addInt(stream.getIndex(indexOffset + i) & 0xFFFF);
+        }
+        int floatCount = vertexCount * StreamBuffer.FLOATS_PER_VERTEX;
+        if (mTempVertices.length < floatCount) mTempVertices = new float[floatCount];
+        stream.getVertices(vertexOffset, mTempVertices, 0, vertexCount);
+        mList.addFloats(mTempVertices, 0, floatCount);
+    }
+
+    @Override
+    public void drawStretchMesh(BasicTexture texture, StretchMesh mesh, int x, int y,
+            int width, int height) {
+        mList.addOp(DisplayList.OP_DRAW_STRETCH_MESH);
+        mList.addRef(texture);
+        mList.addRef(mesh);
+        mList.addInt(x);
+        mList.addInt(y);
+        mList.addInt(width);
+        mList.addInt(height);
+    }
+
+    @Override
+    public void drawTintedTexture(BasicTexture texture, RectF target, int color) {
+        mList.addOp(DisplayList.OP_DRAW_TINTED_TEXTURE);
+        mList.addRef(texture);
+        mList.addInt(color);
+        mList.addRect(target);
+    }
+
+    @Override
+    public void drawTexture(BasicTexture texture, float[] textureTransform, int x, int y, int w,
+            int h) {
+        mList.addOp(DisplayList.OP_DRAW_TEXTURE_MATRIX);
+        mList.addRef(texture);
+        mList.addInt(x);
+        mList.addInt(y);
+        mList.addInt(w);
+        mList.addInt(h);
+        mList.addFloats(textureTransform, 0, 16);
+    }
+
+    @Override
+    public void drawMixed(BasicTexture from, int toColor, float ratio, int x, int y, int w,
+            int h) {
+        mList.addOp(DisplayList.OP_DRAW_MIXED);
+        mList.addRef(from);
+        mList.addInt(toColor);
+        mList.addInt(x);
+        mList.addInt(y);
+        mList.addInt(w);
+        mList.addInt(h);
+        mList.addFloat(ratio);
+    }
+
+    @Override
+    public void drawMixed(BasicTexture from, int toColor, float ratio, RectF source,
+            RectF target) {
+        mList.addOp(DisplayList.OP_DRAW_MIXED_RECT);
+        mList.addRef(from);
+        mList.addInt(toColor);
+        mList.addFloat(ratio);
+        mList.addRect(source);
+        mList.addRect(target);
+    }
+
+    @Override
+    public void beginRenderTarget(RawTexture texture) {
+        mList.addOp(DisplayList.OP_BEGIN_RENDER_TARGET);
+        mList.addRef(texture);
+    }
+
+    @Override
+    public void endRenderTarget() {
+        mList.addOp(DisplayList.OP_END_RENDER_TARGET);
+    }
+
+    @Override
+    public boolean unloadTexture(BasicTexture texture) {
+        return mTarget.unloadTexture(texture);
+    }
+
+    @Override
+    public void deleteBuffer(int bufferId) {
+        mTarget.deleteBuffer(bufferId);
+    }
+
+    @Override
+    public void deleteRecycledResources() {
+        mTarget.deleteRecycledResources();
+    }
+
+    @Override
+    public void dumpStatisticsAndClear() {
+        mTarget.dumpStatisticsAndClear();
+    }
+
+    @Override
+    public void getLastFrameMetrics(FrameMetrics metrics) {
+        mTarget.getLastFrameMetrics(metrics);
+    }
+
+    @Override
+    public long getTextureUploadTime() {
+        return mTarget.getTextureUploadTime();
+    }
+
+    @Override
+    public long getTextureUploadBytes() {
+        return mTarget.getTextureUploadBytes();
+    }
+
+    @Override
+    public void setTextureParameters(BasicTexture texture) {
+        mTarget.setTextureParameters(texture);
+    }
+
+    @Override
+    public void initializeTextureSize(BasicTexture texture, int format, int type) {
+        mTarget.initializeTextureSize(texture, format, type);
+    }
+
+    @Override
+    public void initializeTexture(BasicTexture texture, Bitmap bitmap) {
+        mTarget.initializeTexture(texture, bitmap);
+    }
+
+    @Override
+    public void texSubImage2D(BasicTexture texture, int xOffset, int yOffset, Bitmap bitmap,
+            int format, int type) {
+        mTarget.texSubImage2D(texture, xOffset, yOffset, bitmap, format, type);
+    }
+
+    @Override
+    public int uploadBuffer(FloatBuffer buffer) {
+        return mTarget.uploadBuffer(buffer);
+    }
+
+    @Override
+    public int uploadBuffer(ByteBuffer buffer) {
+        return mTarget.uploadBuffer(buffer);
+    }
+
+    @Override
+    public void recoverFromLightCycle() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void getBounds(Rect bounds, int x, int y, int width, int height) {
+        // The matrix at replay time is unknown, so this is relative to the
+        // start of the recording, ignoring the recorded transforms.
+        bounds.set(x, y, x + width, y + height);
+    }
+}
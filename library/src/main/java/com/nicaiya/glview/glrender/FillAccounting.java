@@ -0,0 +1,130 @@
+package com.nicaiya.glview.glrender;
+
+import java.util.Arrays;
+
+/**
+ * FillAccounting adds up the pixels a canvas fills in a frame, split into
+ * the opaque and the blended ones, which is what a frame costs a GPU bound
+ * by its fill rate. The overdraw is the fill per pixel of the screen, so it
+ * is 1 for a screen covered once.
+ * <p>
+ * The area of each draw is given by the canvas, clipped to what it can
+ * reach. When the heatmap is enabled, the fill on the screen is also spread
+ * over a grid of CELL_SIZE x CELL_SIZE cells, to show where the overdraw is.
+ * <p>
+ * The accounting only does the arithmetic; the canvas draws the heatmap.
+ */
+class FillAccounting {
+
+    static final int CELL_SIZE = 16;
+
+    private int mWidth;
+    private int mHeight;
+    private float mOpaqueFill;
+    private float mBlendedFill;
+    private float mLastOpaqueFill;
+    private float mLastBlendedFill;
+    private float mLastOverdraw;
+
+    private boolean mHeatmapEnabled;
+    private int mColumns;
+    private int mRows;
+    // The fill of each cell, in pixels, row by row from the bottom.
+    private float[] mCells = new float[0];
+
+    // Starts the accounting of a frame drawn on a screen of the given size.
+    void beginFrame(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        mOpaqueFill = 0;
+        mBlendedFill = 0;
+        if (mHeatmapEnabled) {
+            mColumns = (width + CELL_SIZE - 1) / CELL_SIZE;
+            mRows = (height + CELL_SIZE - 1) / CELL_SIZE;
+            int count = mColumns * mRows;
+            if (mCells.length < count) {
+                mCells = new float[count];
+            } else {
+                Arrays.fill(mCells, 0, count, 0);
+            }
+        }
+    }
+
+    void endFrame() {
+        mLastOpaqueFill = mOpaqueFill;
+        mLastBlendedFill = mBlendedFill;
+        int screenArea = mWidth * mHeight;
+        mLastOverdraw = screenArea > 0 ? (mOpaqueFill + mBlendedFill) / screenArea : 0;
+    }
+
+    /**
+     * Adds a draw filling area pixels. If it is on the screen, they lie in
+     * the box [left, right) x [bottom, top) of the window coordinates, which
+     * is clipped to the screen.
+     */
+    void add(float area, boolean blending, boolean onScreen, float left, float bottom,
+            float right, float top) {
+        if (blending) {
+            mBlendedFill += area;
+        } else {
+            mOpaqueFill += area;
+        }
+        if (!mHeatmapEnabled || !onScreen) return;
+
+        // The draw covers the same part of each pixel of the box, e.g. less
+        // than all of them if it is rotated.
+        float density = area / ((right - left) * (top - bottom));
+        int firstColumn = (int) (left / CELL_SIZE);
+        int lastColumn = Math.min(mColumns - 1, (int) ((right - 1) / CELL_SIZE));
+        int firstRow = (int) (bottom / CELL_SIZE);
+        int lastRow = Math.min(mRows - 1, (int) ((top - 1) / CELL_SIZE));
+        for (int row = firstRow; row <= lastRow; row++) {
+            float height = Math.min(top, (row + 1) * CELL_SIZE)
+                    - Math.max(bottom, row * CELL_SIZE);
+            int index = row * mColumns;
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                float width = Math.min(right, (column + 1) * CELL_SIZE)
+                        - Math.max(left, column * CELL_SIZE);
+                mCells[index + column] += width * height * density;
+            }
+        }
+    }
+
+    float getLastOpaqueFill() {
+        return mLastOpaqueFill;
+    }
+
+    float getLastBlendedFill() {
+        return mLastBlendedFill;
+    }
+
+    float getLastOverdraw() {
+        return mLastOverdraw;
+    }
+
+    void setHeatmapEnabled(boolean enabled) {
+        mHeatmapEnabled = enabled;
+        mColumns = 0;
+        mRows = 0;
+    }
+
+    boolean isHeatmapEnabled() {
+        return mHeatmapEnabled;
+    }
+
+    int getColumns() {
+        return mColumns;
+    }
+
+    int getRows() {
+        return mRows;
+    }
+
+    // Returns how many times the cell was covered on average, in the frame
+    // being drawn.
+    float getCoverage(int column, int row) {
+        int width = Math.min(CELL_SIZE, mWidth - column * CELL_SIZE);
+        int height = Math.min(CELL_SIZE, mHeight - row * CELL_SIZE);
+        return mCells[row * mColumns + column] / (width * height);
+    }
+}
@@ -0,0 +1,103 @@
+package com.nicaiya.glview.glrender;
+
+/**
+ * FrameMetrics describes the work done for a frame, as reported to
+ * {@link com.nicaiya.glview.ui.GLRoot.OnFrameMetricsListener}. The GL counts
+ * are filled by {@link GLCanvas#getLastFrameMetrics(FrameMetrics)}, the rest
+ * by the GLRoot. The counts a canvas doesn't keep are 0.
+ * <p>
+ * The same instance is filled for each frame, so the values have to be
+ * copied out to be kept. The times are CPU times in nanoseconds.
+ */
+public class FrameMetrics {
+
+    int mDrawCalls;
+    int mStateChanges;
+    int mTextureBinds;
+    int mProgramSwitches;
+    int mFramebufferSwitches;
+    long mUploadedBytes;
+    int mUploadedTextures;
+    long mUploadTime;
+
+    private int mRenderedViews;
+    private int mCulledViews;
+    private long mLayoutTime;
+    private long mRenderTime;
+    private long mDeleteTime;
+
+    // The draw calls issued to GL, including the batches.
+    public int getDrawCallCount() {
+        return mDrawCalls;
+    }
+
+    // The GL state changes issued, which includes the texture binds and the
+    // program switches.
+    public int getStateChangeCount() {
+        return mStateChanges;
+    }
+
+    public int getTextureBindCount() {
+        return mTextureBinds;
+    }
+
+    public int getProgramSwitchCount() {
+        return mProgramSwitches;
+    }
+
+    // The framebuffers bound to begin or end a render target.
+    public int getFramebufferSwitchCount() {
+        return mFramebufferSwitches;
+    }
+
+    // The bytes of texture images and vertex data uploaded since the
+    // previous frame, including the uploads done while GL was idle.
+    public long getUploadedBytes() {
+        return mUploadedBytes;
+    }
+
+    // The texture images uploaded since the previous frame, whole or in part.
+    public int getUploadedTextureCount() {
+        return mUploadedTextures;
+    }
+
+    // The time spent uploading the texture images since the previous frame.
+    // The part spent while rendering is also in getRenderTime().
+    public long getUploadTime() {
+        return mUploadTime;
+    }
+
+    public int getRenderedViewCount() {
+        return mRenderedViews;
+    }
+
+    public int getCulledViewCount() {
+        return mCulledViews;
+    }
+
+    // The time spent laying out the content pane, 0 if it wasn't.
+    public long getLayoutTime() {
+        return mLayoutTime;
+    }
+
+    // The time from the beginning to the end of the frame on the canvas.
+    public long getRenderTime() {
+        return mRenderTime;
+    }
+
+    // The time spent deleting the recycled textures and buffers.
+    public long getDeleteTime() {
+        return mDeleteTime;
+    }
+
+    public void setViewCounts(int rendered, int culled) {
+        mRenderedViews = rendered;
+        mCulledViews = culled;
+    }
+
+    public void setPhaseTimes(long layoutTime, long renderTime, long deleteTime) {
+        mLayoutTime = layoutTime;
+        mRenderTime = renderTime;
+        mDeleteTime = deleteTime;
+    }
+}
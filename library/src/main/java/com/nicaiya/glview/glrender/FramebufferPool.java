@@ -0,0 +1,83 @@
+package com.nicaiya.glview.glrender;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * FramebufferPool keeps the framebuffer objects a canvas renders to textures
+ * with, so they are created once instead of on each beginRenderTarget().
+ * <p>
+ * Each nesting level of render targets has its own framebuffer, which keeps
+ * the texture attached to it, so returning from a nested target or drawing
+ * to the same texture again doesn't attach it again. The framebuffers found
+ * complete are remembered per texture, so the status is checked only the
+ * first time a texture is attached to a framebuffer.
+ * <p>
+ * The pool only does the bookkeeping; the canvas issues the GL calls.
+ */
+class FramebufferPool {
+
+    private static final int INITIAL_LEVELS = 4;
+
+    // The framebuffer of each level, 1 for the outermost render target, and
+    // the id of the texture attached to it. 0 if there is none.
+    private int[] mFramebuffers = new int[INITIAL_LEVELS];
+    private int[] mAttachedTextures = new int[INITIAL_LEVELS];
+
+    // The (framebuffer, texture) pairs found complete.
+    private final HashSet<Long> mCompletePairs = new HashSet<Long>();
+
+    // Returns the framebuffer of the level, or 0 if it has to be created
+    // and given to setFramebuffer().
+    int getFramebuffer(int level) {
+        return level < mFramebuffers.length ? mFramebuffers[level] : 0;
+    }
+
+    void setFramebuffer(int level, int framebuffer) {
+        if (level >= mFramebuffers.length) {
+            int length = Math.max(level + 1, mFramebuffers.length * 2);
+            mFramebuffers = Arrays.copyOf(mFramebuffers, length);
+            mAttachedTextures = Arrays.copyOf(mAttachedTextures, length);
+        }
+        mFramebuffers[level] = framebuffer;
+        mAttachedTextures[level] = 0;
+    }
+
+    int getAttachedTexture(int level) {
+        return mAttachedTextures[level];
+    }
+
+    void setAttachedTexture(int level, int textureId) {
+        mAttachedTextures[level] = textureId;
+    }
+
+    boolean isComplete(int framebuffer, int textureId) {
+        return mCompletePairs.contains(pair(framebuffer, textureId));
+    }
+
+    void setComplete(int framebuffer, int textureId) {
+        mCompletePairs.add(pair(framebuffer, textureId));
+    }
+
+    /**
+     * Forgets the textures, as their ids may be reused by new textures. This
+     * must be called when the textures are deleted.
+     */
+    void onTexturesDeleted(int[] ids, int count) {
+        for (int i = 0; i < count; i++) {
+            int id = ids[i];
+            for (int level = 0; level < mFramebuffers.length; level++) {
+                if (mAttachedTextures[level] == id) {
+                    mAttachedTextures[level] = 0;
+                }
+                if (mFramebuffers[level] != 0) {
+                    mCompletePairs.remove(pair(mFramebuffers[level], id));
+                }
+            }
+        }
+    }
+
+    private static Long pair(int framebuffer, int textureId) {
+        return ((long) framebuffer << 32) | (textureId & 0xFFFFFFFFL);
+    }
+}
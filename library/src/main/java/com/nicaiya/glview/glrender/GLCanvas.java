@@ -18,6 +18,7 @@ public interface GLCanvas {
     public static final int SAVE_FLAG_ALL = 0xFFFFFFFF;
     public static final int SAVE_FLAG_ALPHA = 0x01;
     public static final int SAVE_FLAG_MATRIX = 0x02;
+    public static final int SAVE_FLAG_CLIP = 0x04;
 
     GLId getGLId();
 
@@ -28,6 +29,24 @@ public interface GLCanvas {
     // nonnegative.
     void setSize(int width, int height);
 
+    // Marks the start and the end of a frame. Draws may be deferred by the
+    // canvas until endFrame(), which submits everything still pending to GL.
+    // These should only be called by GLRoot.
+    void beginFrame();
+
+    void endFrame();
+
+    // Restricts the drawing of the frame to the damaged rectangle, given in
+    // surface coordinates, or lets it cover the whole surface if damage is
+    // null. Drawing into a render target is not restricted. This should only
+    // be called by GLRoot, after beginFrame().
+    void setDamage(Rect damage);
+
+    // Returns true if the specified rectangle, transformed by the current
+    // matrix, lies entirely outside of the area being drawn, so drawing it
+    // can be skipped. Returning false doesn't mean the rectangle is visible.
+    boolean quickReject(float x, float y, float width, float height);
+
     // Clear the drawing buffers. This should only be used by GLRoot.
     void clearBuffer();
 
@@ -52,7 +71,7 @@ public interface GLCanvas {
 
     void multiplyMatrix(float[] mMatrix, int offset);
 
-    // Pushes the configuration state (matrix, and alpha) onto
+    // Pushes the configuration state (matrix, alpha, and clip) onto
     // a private stack.
     void save();
 
@@ -65,6 +84,12 @@ public interface GLCanvas {
     // last save call.
     void restore();
 
+    // Intersects the current clip with the specified rectangle, transformed
+    // by the current matrix. If the transformed rectangle isn't axis-aligned,
+    // its bounding box is used. Draws entirely outside of the clip are
+    // skipped. Returns false if the resulting clip is empty.
+    boolean clipRect(float x, float y, float width, float height);
+
     // Draws a line using the specified paint from (x1, y1) to (x2, y2).
     // (Both end points are included).
     void drawLine(float x1, float y1, float x2, float y2, GLPaint paint);
@@ -83,9 +108,51 @@ public interface GLCanvas {
     void drawMesh(BasicTexture tex, int x, int y, int xyBuffer,
                                   int uvBuffer, int indexBuffer, int indexCount);
 
+    /**
+     * Draws a triangle strip mesh whose vertices are given at each draw, for
+     * geometry which changes often. The vertices, interleaved x, y, u, v,
+     * are written into a vertex buffer the canvas keeps, so no buffer is
+     * created for them.
+     *
+     * @param vertices    the vertex data, 4 floats per vertex
+     * @param offset      the offset of the first vertex in the data
+     * @param vertexCount the number of vertices
+     * @param indexBuffer the index buffer, unsigned bytes, from uploadBuffer()
+     * @param indexCount  the number of indices
+     */
+    void drawMesh(BasicTexture tex, int x, int y, float[] vertices, int offset,
+                  int vertexCount, int indexBuffer, int indexCount);
+
+    // Returns the buffer to write the geometry which changes each frame to.
+    StreamBuffer getStreamBuffer();
+
+    /**
+     * Draws a mesh from the stream buffer. The regions must have been
+     * allocated and written since the last draw which could have replaced
+     * them, see {@link StreamBuffer}.
+     *
+     * @param mode         GL_TRIANGLES, GL_TRIANGLE_STRIP or GL_TRIANGLE_FAN
+     * @param vertexOffset the offset of the first vertex, which the indices
+     *                     are relative to
+     * @param indexOffset  the offset of the first index
+     * @param indexCount   the number of indices
+     */
+    void drawStreamMesh(BasicTexture tex, int x, int y, int mode, int vertexOffset,
+                        int indexOffset, int indexCount);
+
+    // Draws the stretch mesh, e.g. of a nine-patch, stretched to the given
+    // size. The mesh is the same for any size, so it is only uploaded once.
+    void drawStretchMesh(BasicTexture tex, StretchMesh mesh, int x, int y,
+                         int width, int height);
+
     // Draws the source rectangle part of the texture to the target rectangle.
     void drawTexture(BasicTexture texture, RectF source, RectF target);
 
+    // Draws the whole texture to the target rectangle, multiplied by the
+    // color. This is meant for textures whose content is white with only the
+    // alpha varying, like glyphs, which can then be drawn in any color.
+    void drawTintedTexture(BasicTexture texture, RectF target, int color);
+
     // Draw a texture with a specified texture transform.
     void drawTexture(BasicTexture texture, float[] mTextureTransform,
                                      int x, int y, int w, int h);
@@ -119,6 +186,17 @@ public interface GLCanvas {
     // Dump statistics information and clear the counters. For debug only.
     void dumpStatisticsAndClear();
 
+    // Fills the GL counts of the metrics with those of the last frame.
+    void getLastFrameMetrics(FrameMetrics metrics);
+
+    // Returns the time spent in texImage2D() and texSubImage2D() since the
+    // canvas was created, in nanoseconds, and the bytes of the images they
+    // uploaded. They are never reset, so an upload is measured by how much
+    // they grow.
+    long getTextureUploadTime();
+
+    long getTextureUploadBytes();
+
     void beginRenderTarget(RawTexture texture);
 
     void endRenderTarget();
@@ -189,8 +267,9 @@ public interface GLCanvas {
 
     /**
      * Gets the bounds given by x, y, width, and height as well as the internal
-     * matrix state. There is no special handling for non-90-degree rotations.
-     * It only considers the lower-left and upper-right corners as the bounds.
+     * matrix state, in GL window coordinates. The bounds are the smallest
+     * rectangle of whole pixels containing all four transformed corners, so
+     * they are correct for any rotation.
      *
      * @param bounds The output bounds to write to.
      * @param x      The left side of the input rectangle.
@@ -52,6 +52,17 @@ public class GLES11Canvas implements GLCanvas {
 
     private int mBoxCoords;
 
+    // The geometry streamed each frame, and its GL buffers.
+    private static final int STREAM_VERTEX_STRIDE =
+            StreamBuffer.FLOATS_PER_VERTEX * Float.SIZE / Byte.SIZE;
+    private static final int STREAM_OFFSET_TEXTURE_COORD = 2 * Float.SIZE / Byte.SIZE;
+    private static final int SHORT_SIZE = Short.SIZE / Byte.SIZE;
+    private final StreamBuffer mStreamBuffer = new StreamBuffer();
+    private int mStreamVertexBuffer;
+    private int mStreamIndexBuffer;
+    // The vertices of the stretch meshes, placed for the size drawn at.
+    private float[] mStretchVertices = new float[0];
+
     private GLState mGLState;
     private final ArrayList<RawTexture> mTargetStack = new ArrayList<RawTexture>();
 
@@ -66,12 +77,32 @@ public class GLES11Canvas implements GLCanvas {
     private final IntArray mDeleteBuffers = new IntArray();
     private int mScreenWidth;
     private int mScreenHeight;
+    // Viewport size
+    private int mWidth;
+    private int mHeight;
     private boolean mBlendEnabled = true;
+    // The framebuffers used for the render targets, kept across frames.
+    private final FramebufferPool mFramebufferPool = new FramebufferPool();
     private int mFrameBuffer[] = new int[1];
     private static float[] sCropRect = new float[4];
 
     private RawTexture mTargetTexture;
 
+    // The damaged area of the frame in GL window coordinates (y up), see
+    // setDamage().
+    private boolean mHasDamage;
+    private final Rect mDamage = new Rect();
+    private final RectF mTempBounds = new RectF();
+
+    // The clip rectangle in GL window coordinates (top is the lower y). When
+    // unclipped, it spans all the int range.
+    private final Rect mClip = new Rect(
+            Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE);
+    // The area drawing is restricted to: the viewport intersected with the
+    // damage and the clip.
+    private final Rect mScissor = new Rect();
+    private boolean mScissorEnabled;
+
     // Drawing statistics
     int mCountDrawLine;
     int mCountFillRect;
@@ -79,6 +110,18 @@ public class GLES11Canvas implements GLCanvas {
     int mCountTextureRect;
     int mCountTextureOES;
 
+    // Per-frame counts for getLastFrameMetrics(). The uploads are counted
+    // since the end of the last frame.
+    private int mFrameDrawCalls;
+    private int mFrameFramebufferSwitches;
+    private long mUploadedBytes;
+    private int mUploadedTextures;
+    private long mUploadTime;
+    private final FrameMetrics mLastFrameMetrics = new FrameMetrics();
+    // All the texture uploads, for getTextureUploadTime().
+    private long mTextureUploadTime;
+    private long mTextureUploadBytes;
+
     private static GLId mGLId = new GLES11IdImpl();
 
     public GLES11Canvas(GL11 gl) {
@@ -118,6 +161,8 @@ public class GLES11Canvas implements GLCanvas {
             mScreenHeight = height;
         }
         mAlpha = 1.0f;
+        mWidth = width;
+        mHeight = height;
 
         GL11 gl = mGL;
         gl.glViewport(0, 0, width, height);
@@ -135,6 +180,7 @@ public class GLES11Canvas implements GLCanvas {
             Matrix.translateM(matrix, 0, 0, height, 0);
             Matrix.scaleM(matrix, 0, 1, -1, 1);
         }
+        updateScissor();
     }
 
     @Override
@@ -171,6 +217,7 @@ public class GLES11Canvas implements GLCanvas {
 
         gl.glLoadMatrixf(mMatrixValues, 0);
         gl.glDrawArrays(GL11.GL_LINE_LOOP, OFFSET_DRAW_RECT, 4);
+        mFrameDrawCalls++;
 
         restoreTransform();
         mCountDrawLine++;
@@ -189,6 +236,7 @@ public class GLES11Canvas implements GLCanvas {
 
         gl.glLoadMatrixf(mMatrixValues, 0);
         gl.glDrawArrays(GL11.GL_LINE_STRIP, OFFSET_DRAW_LINE, 2);
+        mFrameDrawCalls++;
 
         restoreTransform();
         mCountDrawLine++;
@@ -196,6 +244,7 @@ public class GLES11Canvas implements GLCanvas {
 
     @Override
     public void fillRect(float x, float y, float width, float height, int color) {
+        if (isClippedOut(x, y, width, height)) return;
         mGLState.setColorMode(color, mAlpha);
         GL11 gl = mGL;
 
@@ -205,6 +254,7 @@ public class GLES11Canvas implements GLCanvas {
 
         gl.glLoadMatrixf(mMatrixValues, 0);
         gl.glDrawArrays(GL11.GL_TRIANGLE_STRIP, OFFSET_FILL_RECT, 4);
+        mFrameDrawCalls++;
 
         restoreTransform();
         mCountFillRect++;
@@ -257,6 +307,7 @@ public class GLES11Canvas implements GLCanvas {
 
         gl.glLoadMatrixf(mMatrixValues, 0);
         gl.glDrawArrays(GL11.GL_TRIANGLE_STRIP, OFFSET_FILL_RECT, 4);
+        mFrameDrawCalls++;
 
         restoreTransform();
         mCountTextureRect++;
@@ -265,6 +316,98 @@ public class GLES11Canvas implements GLCanvas {
     @Override
     public void drawMesh(BasicTexture tex, int x, int y, int xyBuffer,
                          int uvBuffer, int indexBuffer, int indexCount) {
+        drawMesh(tex, x, y, GL11.GL_TRIANGLE_STRIP, xyBuffer, 0, uvBuffer, 0, 0,
+                indexBuffer, 0, GL11.GL_UNSIGNED_BYTE, indexCount);
+    }
+
+    @Override
+    public void drawMesh(BasicTexture tex, int x, int y, float[] vertices, int offset,
+                         int vertexCount, int indexBuffer, int indexCount) {
+        int first = mStreamBuffer.allocateVertices(vertexCount);
+        mStreamBuffer.getVertices().put(vertices, offset,
+                vertexCount * StreamBuffer.FLOATS_PER_VERTEX);
+        uploadStream();
+        int byteOffset = first * STREAM_VERTEX_STRIDE;
+        drawMesh(tex, x, y, GL11.GL_TRIANGLE_STRIP, mStreamVertexBuffer, byteOffset,
+                mStreamVertexBuffer, byteOffset + STREAM_OFFSET_TEXTURE_COORD,
+                STREAM_VERTEX_STRIDE, indexBuffer, 0, GL11.GL_UNSIGNED_BYTE, indexCount);
+    }
+
+    // Without shaders, the vertices are placed here and streamed.
+    @Override
+    public void drawStretchMesh(BasicTexture tex, StretchMesh mesh, int x, int y,
+                                int width, int height) {
+        if (width <= 0 || height <= 0) return;
+        int vertexCount = mesh.getVertexCount();
+        if (mStretchVertices.length < vertexCount * StreamBuffer.FLOATS_PER_VERTEX) {
+            mStretchVertices = new float[vertexCount * StreamBuffer.FLOATS_PER_VERTEX];
+        }
+        mesh.computeVertices(mStretchVertices, width, height);
+        drawMesh(tex, x, y, mStretchVertices, 0, vertexCount, mesh.getIndexBuffer(this),
+                mesh.getIndexCount());
+    }
+
+    @Override
+    public StreamBuffer getStreamBuffer() {
+        return mStreamBuffer;
+    }
+
+    @Override
+    public void drawStreamMesh(BasicTexture tex, int x, int y, int mode, int vertexOffset,
+                               int indexOffset, int indexCount) {
+        uploadStream();
+        int byteOffset = vertexOffset * STREAM_VERTEX_STRIDE;
+        drawMesh(tex, x, y, mode, mStreamVertexBuffer, byteOffset, mStreamVertexBuffer,
+                byteOffset + STREAM_OFFSET_TEXTURE_COORD, STREAM_VERTEX_STRIDE,
+                mStreamIndexBuffer, indexOffset * SHORT_SIZE, GL11.GL_UNSIGNED_SHORT,
+                indexCount);
+    }
+
+    // Uploads what was written to the stream buffer since the last draw.
+    // The buffers are created, and their stores specified, when first used
+    // and when a frame has filled its partition.
+    private void uploadStream() {
+        GL11 gl = mGL;
+        StreamBuffer.Ring ring = mStreamBuffer.getVertexRing();
+        if (ring.getPendingCount() > 0) {
+            if (mStreamVertexBuffer == 0) mStreamVertexBuffer = generateBuffer();
+            gl.glBindBuffer(GL11.GL_ARRAY_BUFFER, mStreamVertexBuffer);
+            if (!ring.isStoreValid()) {
+                gl.glBufferData(GL11.GL_ARRAY_BUFFER, ring.getCapacity() * STREAM_VERTEX_STRIDE,
+                        null, GL11.GL_DYNAMIC_DRAW);
+            }
+            gl.glBufferSubData(GL11.GL_ARRAY_BUFFER,
+                    ring.getPendingOffset() * STREAM_VERTEX_STRIDE,
+                    ring.getPendingCount() * STREAM_VERTEX_STRIDE,
+                    mStreamBuffer.getPendingVertexData());
+            mUploadedBytes += ring.getPendingCount() * STREAM_VERTEX_STRIDE;
+            ring.onUploaded();
+        }
+        ring = mStreamBuffer.getIndexRing();
+        if (ring.getPendingCount() > 0) {
+            if (mStreamIndexBuffer == 0) mStreamIndexBuffer = generateBuffer();
+            gl.glBindBuffer(GL11.GL_ELEMENT_ARRAY_BUFFER, mStreamIndexBuffer);
+            if (!ring.isStoreValid()) {
+                gl.glBufferData(GL11.GL_ELEMENT_ARRAY_BUFFER, ring.getCapacity() * SHORT_SIZE,
+                        null, GL11.GL_DYNAMIC_DRAW);
+            }
+            gl.glBufferSubData(GL11.GL_ELEMENT_ARRAY_BUFFER,
+                    ring.getPendingOffset() * SHORT_SIZE, ring.getPendingCount() * SHORT_SIZE,
+                    mStreamBuffer.getPendingIndexData());
+            mUploadedBytes += ring.getPendingCount() * SHORT_SIZE;
+            ring.onUploaded();
+        }
+    }
+
+    private static int generateBuffer() {
+        int[] name = new int[1];
+        mGLId.glGenBuffers(1, name, 0);
+        return name[0];
+    }
+
+    private void drawMesh(BasicTexture tex, int x, int y, int mode, int xyBuffer,
+                          int xyOffset, int uvBuffer, int uvOffset, int stride,
+                          int indexBuffer, int indexOffset, int indexType, int indexCount) {
         float alpha = mAlpha;
         if (!bindTexture(tex)) return;
 
@@ -282,14 +425,14 @@ public class GLES11Canvas implements GLCanvas {
         mGL.glLoadMatrixf(mMatrixValues, 0);
 
         mGL.glBindBuffer(GL11.GL_ARRAY_BUFFER, xyBuffer);
-        mGL.glVertexPointer(2, GL11.GL_FLOAT, 0, 0);
+        mGL.glVertexPointer(2, GL11.GL_FLOAT, stride, xyOffset);
 
         mGL.glBindBuffer(GL11.GL_ARRAY_BUFFER, uvBuffer);
-        mGL.glTexCoordPointer(2, GL11.GL_FLOAT, 0, 0);
+        mGL.glTexCoordPointer(2, GL11.GL_FLOAT, stride, uvOffset);
 
         mGL.glBindBuffer(GL11.GL_ELEMENT_ARRAY_BUFFER, indexBuffer);
-        mGL.glDrawElements(GL11.GL_TRIANGLE_STRIP,
-                indexCount, GL11.GL_UNSIGNED_BYTE, 0);
+        mGL.glDrawElements(mode, indexCount, indexType, indexOffset);
+        mFrameDrawCalls++;
 
         mGL.glBindBuffer(GL11.GL_ARRAY_BUFFER, mBoxCoords);
         mGL.glVertexPointer(2, GL11.GL_FLOAT, 0, 0);
@@ -324,19 +467,19 @@ public class GLES11Canvas implements GLCanvas {
     private void drawBoundTexture(
             BasicTexture texture, int x, int y, int width, int height) {
         // Test whether it has been rotated or flipped, if so, glDrawTexiOES
-        // won't work
-        if (isMatrixRotatedOrFlipped(mMatrixValues)) {
-            if (texture.hasBorder()) {
-                setTextureCoords(
-                        1.0f / texture.getTextureWidth(),
-                        1.0f / texture.getTextureHeight(),
-                        (texture.getWidth() - 1.0f) / texture.getTextureWidth(),
-                        (texture.getHeight() - 1.0f) / texture.getTextureHeight());
-            } else {
-                setTextureCoords(0, 0,
-                        (float) texture.getWidth() / texture.getTextureWidth(),
-                        (float) texture.getHeight() / texture.getTextureHeight());
-            }
+        // won't work. It also can't crop a texture sharing its GL texture,
+        // since the crop rectangle is a parameter of the GL texture.
+        if (isMatrixRotatedOrFlipped(mMatrixValues) || texture.isSubTexture()) {
+            float border = texture.hasBorder() ? 1.0f : 0.0f;
+            float xOffset = texture.getTextureOffsetX();
+            float yOffset = texture.getTextureOffsetY();
+            float texWidth = texture.getTextureWidth();
+            float texHeight = texture.getTextureHeight();
+            setTextureCoords(
+                    (xOffset + border) / texWidth,
+                    (yOffset + border) / texHeight,
+                    (xOffset + texture.getWidth() - border) / texWidth,
+                    (yOffset + texture.getHeight() - border) / texHeight);
             textureRect(x, y, width, height);
         } else {
             // draw the rect from bottom-left to top-right
@@ -348,6 +491,7 @@ public class GLES11Canvas implements GLCanvas {
             height = (int) (points[3] + 0.5f) - y;
             if (width > 0 && height > 0) {
                 ((GL11Ext) mGL).glDrawTexiOES(x, y, 0, width, height);
+                mFrameDrawCalls++;
                 mCountTextureOES++;
             }
         }
@@ -361,7 +505,7 @@ public class GLES11Canvas implements GLCanvas {
 
     private void drawTexture(BasicTexture texture,
             int x, int y, int width, int height, float alpha) {
-        if (width <= 0 || height <= 0) return;
+        if (width <= 0 || height <= 0 || isClippedOut(x, y, width, height)) return;
 
         mGLState.setBlendEnabled(mBlendEnabled
                 && (!texture.isOpaque() || alpha < OPAQUE_ALPHA));
@@ -372,7 +516,10 @@ public class GLES11Canvas implements GLCanvas {
 
     @Override
     public void drawTexture(BasicTexture texture, RectF source, RectF target) {
-        if (target.width() <= 0 || target.height() <= 0) return;
+        if (target.width() <= 0 || target.height() <= 0
+                || isClippedOut(target.left, target.top, target.width(), target.height())) {
+            return;
+        }
 
         // Copy the input to avoid changing it.
         mDrawTextureSourceRect.set(source);
@@ -389,9 +536,35 @@ public class GLES11Canvas implements GLCanvas {
         textureRect(target.left, target.top, target.width(), target.height());
     }
 
+    @Override
+    public void drawTintedTexture(BasicTexture texture, RectF target, int color) {
+        if (target.width() <= 0 || target.height() <= 0
+                || isClippedOut(target.left, target.top, target.width(), target.height())) {
+            return;
+        }
+
+        mDrawTextureTargetRect.set(target);
+        target = mDrawTextureTargetRect;
+        copyTextureCoordinates(texture, mDrawTextureSourceRect);
+
+        mGLState.setBlendEnabled(mBlendEnabled);
+        if (!bindTexture(texture)) return;
+        convertCoordinate(mDrawTextureSourceRect, target, texture);
+        setTextureCoords(mDrawTextureSourceRect);
+        mGLState.setTextureTint(color, mAlpha);
+        textureRect(target.left, target.top, target.width(), target.height());
+    }
+
+    private static void copyTextureCoordinates(BasicTexture texture, RectF outRect) {
+        int border = texture.hasBorder() ? 1 : 0;
+        outRect.set(border, border,
+                texture.getWidth() - border, texture.getHeight() - border);
+    }
+
     @Override
     public void drawTexture(BasicTexture texture, float[] mTextureTransform,
             int x, int y, int w, int h) {
+        if (isClippedOut(x, y, w, h)) return;
         mGLState.setBlendEnabled(mBlendEnabled
                 && (!texture.isOpaque() || mAlpha < OPAQUE_ALPHA));
         if (!bindTexture(texture)) return;
@@ -410,20 +583,22 @@ public class GLES11Canvas implements GLCanvas {
         int height = texture.getHeight();
         int texWidth = texture.getTextureWidth();
         int texHeight = texture.getTextureHeight();
+        int xOffset = texture.getTextureOffsetX();
+        int yOffset = texture.getTextureOffsetY();
         // Convert to texture coordinates
-        source.left /= texWidth;
-        source.right /= texWidth;
-        source.top /= texHeight;
-        source.bottom /= texHeight;
+        source.left = (source.left + xOffset) / texWidth;
+        source.right = (source.right + xOffset) / texWidth;
+        source.top = (source.top + yOffset) / texHeight;
+        source.bottom = (source.bottom + yOffset) / texHeight;
 
         // Clip if the rendering range is beyond the bound of the texture.
-        float xBound = (float) width / texWidth;
+        float xBound = (float) (width + xOffset) / texWidth;
         if (source.right > xBound) {
             target.right = target.left + target.width() *
                     (xBound - source.left) / source.width();
             source.right = xBound;
         }
-        float yBound = (float) height / texHeight;
+        float yBound = (float) (height + yOffset) / texHeight;
         if (source.bottom > yBound) {
             target.bottom = target.top + target.height() *
                     (yBound - source.top) / source.height();
@@ -497,7 +672,10 @@ public class GLES11Canvas implements GLCanvas {
     @Override
     public void drawMixed(BasicTexture from, int toColor, float ratio,
             RectF source, RectF target) {
-        if (target.width() <= 0 || target.height() <= 0) return;
+        if (target.width() <= 0 || target.height() <= 0
+                || isClippedOut(target.left, target.top, target.width(), target.height())) {
+            return;
+        }
 
         if (ratio <= 0.01f) {
             drawTexture(from, source, target);
@@ -531,6 +709,7 @@ public class GLES11Canvas implements GLCanvas {
 
     private void drawMixed(BasicTexture from, int toColor,
             float ratio, int x, int y, int width, int height, float alpha) {
+        if (isClippedOut(x, y, width, height)) return;
         // change from 0 to 0.01f to prevent getting divided by zero below
         if (ratio <= 0.01f) {
             drawTexture(from, x, y, width, height, alpha);
@@ -630,6 +809,18 @@ public class GLES11Canvas implements GLCanvas {
             }
         }
 
+        // Modulates the texture by the color, premultiplied by the alpha.
+        public void setTextureTint(int color, float alpha) {
+            // Like setColorMode(), make setTextureAlpha() set it again.
+            mTextureAlpha = -1.0f;
+            float prealpha = (color >>> 24) * alpha / 255f / 255f;
+            mGL.glColor4f(((color >> 16) & 0xFF) * prealpha,
+                    ((color >> 8) & 0xFF) * prealpha,
+                    (color & 0xFF) * prealpha,
+                    255 * prealpha);
+            setTexEnvMode(GL11.GL_MODULATE);
+        }
+
         public void setColorMode(int color, float alpha) {
             setBlendEnabled(!Utils.isOpaque(color) || alpha < OPAQUE_ALPHA);
 
@@ -670,6 +861,102 @@ public class GLES11Canvas implements GLCanvas {
         }
     }
 
+    @Override
+    public void beginFrame() {
+        // Draws are issued immediately, nothing to prepare.
+        mStreamBuffer.nextFrame();
+        mFrameDrawCalls = 0;
+        mFrameFramebufferSwitches = 0;
+    }
+
+    @Override
+    public void endFrame() {
+        // Draws are issued immediately, nothing to submit.
+        FrameMetrics metrics = mLastFrameMetrics;
+        metrics.mDrawCalls = mFrameDrawCalls;
+        metrics.mFramebufferSwitches = mFrameFramebufferSwitches;
+        metrics.mUploadedBytes = mUploadedBytes;
+        metrics.mUploadedTextures = mUploadedTextures;
+        metrics.mUploadTime = mUploadTime;
+        mUploadedBytes = 0;
+        mUploadedTextures = 0;
+        mUploadTime = 0;
+        setDamage(null);
+    }
+
+    @Override
+    public void setDamage(Rect damage) {
+        if (damage == null) {
+            mHasDamage = false;
+        } else {
+            mHasDamage = true;
+            mDamage.set(damage.left, mScreenHeight - damage.bottom, damage.right,
+                    mScreenHeight - damage.top);
+        }
+        updateScissor();
+    }
+
+    @Override
+    public boolean clipRect(float x, float y, float width, float height) {
+        RectF bounds = mTempBounds;
+        MatrixUtils.mapRect(mMatrixValues, 0, x, y, width, height, bounds);
+        Rect clip = mClip;
+        clip.left = Math.max(clip.left, (int) Math.floor(bounds.left));
+        clip.top = Math.max(clip.top, (int) Math.floor(bounds.top));
+        clip.right = Math.min(clip.right, (int) Math.ceil(bounds.right));
+        clip.bottom = Math.min(clip.bottom, (int) Math.ceil(bounds.bottom));
+        updateScissor();
+        return !mScissor.isEmpty();
+    }
+
+    // Sets the scissor to the intersection of the viewport, the damage of the
+    // screen and the clip, or disables it if that is the whole viewport.
+    private void updateScissor() {
+        int left = Math.max(0, mClip.left);
+        int bottom = Math.max(0, mClip.top);
+        int right = Math.min(mWidth, mClip.right);
+        int top = Math.min(mHeight, mClip.bottom);
+        if (mHasDamage && mTargetTexture == null) {
+            left = Math.max(left, mDamage.left);
+            bottom = Math.max(bottom, mDamage.top);
+            right = Math.min(right, mDamage.right);
+            top = Math.min(top, mDamage.bottom);
+        }
+        right = Math.max(left, right);
+        top = Math.max(bottom, top);
+        boolean enabled = left > 0 || bottom > 0 || right < mWidth || top < mHeight;
+
+        if (enabled != mScissorEnabled) {
+            mScissorEnabled = enabled;
+            if (enabled) {
+                mGL.glEnable(GL11.GL_SCISSOR_TEST);
+            } else {
+                mGL.glDisable(GL11.GL_SCISSOR_TEST);
+            }
+        }
+        Rect scissor = mScissor;
+        if (scissor.left != left || scissor.top != bottom
+                || scissor.right != right || scissor.bottom != top) {
+            scissor.set(left, bottom, right, top);
+            if (enabled) mGL.glScissor(left, bottom, right - left, top - bottom);
+        }
+    }
+
+    @Override
+    public boolean quickReject(float x, float y, float width, float height) {
+        RectF bounds = mTempBounds;
+        MatrixUtils.mapRect(mMatrixValues, 0, x, y, width, height, bounds);
+        Rect scissor = mScissor;
+        return bounds.right <= scissor.left || bounds.left >= scissor.right
+                || bounds.bottom <= scissor.top || bounds.top >= scissor.bottom;
+    }
+
+    // Returns true if a draw of the rectangle can be skipped because it is
+    // outside of the scissor.
+    private boolean isClippedOut(float x, float y, float width, float height) {
+        return mScissorEnabled && quickReject(x, y, width, height);
+    }
+
     @Override
     public void clearBuffer(float[] argb) {
         if(argb != null && argb.length == 4) {
@@ -732,6 +1019,7 @@ public class GLES11Canvas implements GLCanvas {
             IntArray ids = mUnboundTextures;
             if (ids.size() > 0) {
                 mGLId.glDeleteTextures(mGL, ids.size(), ids.getInternalArray(), 0);
+                mFramebufferPool.onTexturesDeleted(ids.getInternalArray(), ids.size());
                 ids.clear();
             }
 
@@ -764,6 +1052,9 @@ public class GLES11Canvas implements GLCanvas {
             config.mMatrix[0] = Float.NEGATIVE_INFINITY;
         }
 
+        config.mHasClip = (saveFlags & SAVE_FLAG_CLIP) != 0;
+        if (config.mHasClip) config.mClip.set(mClip);
+
         mRestoreStack.add(config);
     }
 
@@ -792,6 +1083,8 @@ public class GLES11Canvas implements GLCanvas {
     private static class ConfigState {
         float mAlpha;
         float mMatrix[] = new float[16];
+        boolean mHasClip;
+        final Rect mClip = new Rect();
         ConfigState mNextFree;
 
         public void restore(GLES11Canvas canvas) {
@@ -799,6 +1092,10 @@ public class GLES11Canvas implements GLCanvas {
             if (mMatrix[0] != Float.NEGATIVE_INFINITY) {
                 System.arraycopy(mMatrix, 0, canvas.mMatrixValues, 0, 16);
             }
+            if (mHasClip) {
+                canvas.mClip.set(mClip);
+                canvas.updateScissor();
+            }
         }
     }
 
@@ -816,6 +1113,31 @@ public class GLES11Canvas implements GLCanvas {
         Log.d(TAG, line);
     }
 
+    @Override
+    public void getLastFrameMetrics(FrameMetrics metrics) {
+        // The state changes, the texture binds and the program switches are
+        // not counted.
+        FrameMetrics last = mLastFrameMetrics;
+        metrics.mDrawCalls = last.mDrawCalls;
+        metrics.mStateChanges = 0;
+        metrics.mTextureBinds = 0;
+        metrics.mProgramSwitches = 0;
+        metrics.mFramebufferSwitches = last.mFramebufferSwitches;
+        metrics.mUploadedBytes = last.mUploadedBytes;
+        metrics.mUploadedTextures = last.mUploadedTextures;
+        metrics.mUploadTime = last.mUploadTime;
+    }
+
+    @Override
+    public long getTextureUploadTime() {
+        return mTextureUploadTime;
+    }
+
+    @Override
+    public long getTextureUploadBytes() {
+        return mTextureUploadBytes;
+    }
+
     private void saveTransform() {
         System.arraycopy(mMatrixValues, 0, mTempMatrix, 0, 16);
     }
@@ -827,30 +1149,45 @@ public class GLES11Canvas implements GLCanvas {
     private void setRenderTarget(RawTexture texture) {
         GL11ExtensionPack gl11ep = (GL11ExtensionPack) mGL;
 
-        if (mTargetTexture == null && texture != null) {
-            mGLId.glGenBuffers(1, mFrameBuffer, 0);
-            gl11ep.glBindFramebufferOES(
-                    GL11ExtensionPack.GL_FRAMEBUFFER_OES, mFrameBuffer[0]);
-        }
-        if (mTargetTexture != null && texture  == null) {
-            gl11ep.glBindFramebufferOES(GL11ExtensionPack.GL_FRAMEBUFFER_OES, 0);
-            gl11ep.glDeleteFramebuffersOES(1, mFrameBuffer, 0);
-        }
-
+        mFrameFramebufferSwitches++;
         mTargetTexture = texture;
         if (texture == null) {
+            gl11ep.glBindFramebufferOES(GL11ExtensionPack.GL_FRAMEBUFFER_OES, 0);
             setSize(mScreenWidth, mScreenHeight);
         } else {
+            // The clip of the screen doesn't apply to the texture.
+            mClip.set(Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE);
             setSize(texture.getWidth(), texture.getHeight());
 
             if (!texture.isLoaded()) texture.prepare(this);
 
+            bindFramebuffer(gl11ep, mTargetStack.size(), texture);
+        }
+    }
+
+    // Binds the pooled framebuffer of the nesting level with the texture
+    // attached, attaching it and checking the status only if needed.
+    private void bindFramebuffer(GL11ExtensionPack gl11ep, int level, RawTexture texture) {
+        FramebufferPool pool = mFramebufferPool;
+        int framebuffer = pool.getFramebuffer(level);
+        if (framebuffer == 0) {
+            mGLId.glGenBuffers(1, mFrameBuffer, 0);
+            framebuffer = mFrameBuffer[0];
+            pool.setFramebuffer(level, framebuffer);
+        }
+        gl11ep.glBindFramebufferOES(GL11ExtensionPack.GL_FRAMEBUFFER_OES, framebuffer);
+
+        int textureId = texture.getId();
+        if (pool.getAttachedTexture(level) != textureId) {
             gl11ep.glFramebufferTexture2DOES(
                     GL11ExtensionPack.GL_FRAMEBUFFER_OES,
                     GL11ExtensionPack.GL_COLOR_ATTACHMENT0_OES,
-                    GL11.GL_TEXTURE_2D, texture.getId(), 0);
-
+                    GL11.GL_TEXTURE_2D, textureId, 0);
+            pool.setAttachedTexture(level, textureId);
+        }
+        if (!pool.isComplete(framebuffer, textureId)) {
             checkFramebufferStatus(gl11ep);
+            pool.setComplete(framebuffer, textureId);
         }
     }
 
@@ -934,7 +1271,9 @@ public class GLES11Canvas implements GLCanvas {
     public void initializeTexture(BasicTexture texture, Bitmap bitmap) {
         int target = texture.getTarget();
         mGL.glBindTexture(target, texture.getId());
+        long start = System.nanoTime();
         GLUtils.texImage2D(target, 0, bitmap, 0);
+        onTextureUploaded(bitmap, start);
     }
 
     @Override
@@ -942,7 +1281,19 @@ public class GLES11Canvas implements GLCanvas {
             int format, int type) {
         int target = texture.getTarget();
         mGL.glBindTexture(target, texture.getId());
+        long start = System.nanoTime();
         GLUtils.texSubImage2D(target, 0, xOffset, yOffset, bitmap, format, type);
+        onTextureUploaded(bitmap, start);
+    }
+
+    private void onTextureUploaded(Bitmap bitmap, long start) {
+        long time = System.nanoTime() - start;
+        long bytes = bitmap.getRowBytes() * bitmap.getHeight();
+        mUploadTime += time;
+        mUploadedTextures++;
+        mUploadedBytes += bytes;
+        mTextureUploadTime += time;
+        mTextureUploadBytes += bytes;
     }
 
     @Override
@@ -962,6 +1313,7 @@ public class GLES11Canvas implements GLCanvas {
         mGL.glBindBuffer(GL11.GL_ARRAY_BUFFER, bufferId);
         mGL.glBufferData(GL11.GL_ARRAY_BUFFER, buf.capacity() * elementSize, buf,
                 GL11.GL_STATIC_DRAW);
+        mUploadedBytes += buf.capacity() * elementSize;
         return bufferId;
     }
 
@@ -972,7 +1324,9 @@ public class GLES11Canvas implements GLCanvas {
 
     @Override
     public void getBounds(Rect bounds, int x, int y, int width, int height) {
-        // This is only required for GLES20
+        RectF mapped = mTempBounds;
+        MatrixUtils.mapRect(mMatrixValues, 0, x, y, width, height, mapped);
+        mapped.roundOut(bounds);
     }
 
     @Override
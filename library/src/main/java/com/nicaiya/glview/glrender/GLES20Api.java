@@ -0,0 +1,177 @@
+package com.nicaiya.glview.glrender;
+
+import android.graphics.Bitmap;
+
+import java.nio.Buffer;
+
+/**
+ * The subset of the GLES20 functions used by {@link GLES20Canvas}. The
+ * methods mimic the static ones in {@link android.opengl.GLES20} and
+ * {@link android.opengl.GLUtils}, so the canvas can be run against something
+ * other than the real GL, e.g. {@link RecordingGLES20Api} or
+ * {@link NoOpGLES20Api}.
+ */
+public interface GLES20Api {
+
+    // Opcodes identifying the functions, used when recording the calls.
+    int OP_ACTIVE_TEXTURE = 0;
+    int OP_ATTACH_SHADER = 1;
+    int OP_BIND_BUFFER = 2;
+    int OP_BIND_FRAMEBUFFER = 3;
+    int OP_BIND_TEXTURE = 4;
+    int OP_BLEND_COLOR = 5;
+    int OP_BLEND_FUNC = 6;
+    int OP_BUFFER_DATA = 7;
+    int OP_BUFFER_SUB_DATA = 8;
+    int OP_CHECK_FRAMEBUFFER_STATUS = 9;
+    int OP_CLEAR = 10;
+    int OP_CLEAR_COLOR = 11;
+    int OP_COMPILE_SHADER = 12;
+    int OP_CREATE_PROGRAM = 13;
+    int OP_CREATE_SHADER = 14;
+    int OP_DELETE_BUFFERS = 15;
+    int OP_DELETE_FRAMEBUFFERS = 16;
+    int OP_DELETE_PROGRAM = 17;
+    int OP_DELETE_TEXTURES = 18;
+    int OP_DISABLE = 19;
+    int OP_DISABLE_VERTEX_ATTRIB_ARRAY = 20;
+    int OP_DRAW_ARRAYS = 21;
+    int OP_DRAW_ELEMENTS = 22;
+    int OP_ENABLE = 23;
+    int OP_ENABLE_VERTEX_ATTRIB_ARRAY = 24;
+    int OP_FRAMEBUFFER_TEXTURE_2D = 25;
+    int OP_GEN_BUFFERS = 26;
+    int OP_GEN_FRAMEBUFFERS = 27;
+    int OP_GEN_TEXTURES = 28;
+    int OP_GET_ATTRIB_LOCATION = 29;
+    int OP_GET_ERROR = 30;
+    int OP_GET_PROGRAM_INFO_LOG = 31;
+    int OP_GET_PROGRAM_IV = 32;
+    int OP_GET_UNIFORM_LOCATION = 33;
+    int OP_LINE_WIDTH = 34;
+    int OP_LINK_PROGRAM = 35;
+    int OP_SHADER_SOURCE = 36;
+    int OP_TEX_IMAGE_2D = 37;
+    int OP_TEX_PARAMETER_F = 38;
+    int OP_TEX_PARAMETER_I = 39;
+    int OP_UNIFORM_1F = 40;
+    int OP_UNIFORM_1I = 41;
+    int OP_UNIFORM_4FV = 42;
+    int OP_UNIFORM_MATRIX_4FV = 43;
+    int OP_USE_PROGRAM = 44;
+    int OP_VERTEX_ATTRIB_POINTER = 45;
+    int OP_VIEWPORT = 46;
+    int OP_UTILS_TEX_IMAGE_2D = 47; // GLUtils
+    int OP_UTILS_TEX_SUB_IMAGE_2D = 48; // GLUtils
+    int OP_SCISSOR = 49;
+    int OP_DEPTH_MASK = 50;
+
+    void glActiveTexture(int texture);
+
+    void glAttachShader(int program, int shader);
+
+    void glBindBuffer(int target, int buffer);
+
+    void glBindFramebuffer(int target, int framebuffer);
+
+    void glBindTexture(int target, int texture);
+
+    void glBlendColor(float red, float green, float blue, float alpha);
+
+    void glBlendFunc(int sfactor, int dfactor);
+
+    void glBufferData(int target, int size, Buffer data, int usage);
+
+    void glBufferSubData(int target, int offset, int size, Buffer data);
+
+    int glCheckFramebufferStatus(int target);
+
+    void glClear(int mask);
+
+    void glClearColor(float red, float green, float blue, float alpha);
+
+    void glCompileShader(int shader);
+
+    int glCreateProgram();
+
+    int glCreateShader(int type);
+
+    void glDeleteBuffers(int n, int[] buffers, int offset);
+
+    void glDeleteFramebuffers(int n, int[] framebuffers, int offset);
+
+    void glDeleteProgram(int program);
+
+    void glDeleteTextures(int n, int[] textures, int offset);
+
+    void glDisable(int cap);
+
+    void glDisableVertexAttribArray(int index);
+
+    void glDrawArrays(int mode, int first, int count);
+
+    void glDrawElements(int mode, int count, int type, int offset);
+
+    void glEnable(int cap);
+
+    void glEnableVertexAttribArray(int index);
+
+    void glFramebufferTexture2D(int target, int attachment, int textarget, int texture,
+            int level);
+
+    void glGenBuffers(int n, int[] buffers, int offset);
+
+    void glGenFramebuffers(int n, int[] framebuffers, int offset);
+
+    void glGenTextures(int n, int[] textures, int offset);
+
+    int glGetAttribLocation(int program, String name);
+
+    int glGetError();
+
+    String glGetProgramInfoLog(int program);
+
+    void glGetProgramiv(int program, int pname, int[] params, int offset);
+
+    int glGetUniformLocation(int program, String name);
+
+    void glLineWidth(float width);
+
+    void glLinkProgram(int program);
+
+    void glShaderSource(int shader, String string);
+
+    void glTexImage2D(int target, int level, int internalformat, int width, int height,
+            int border, int format, int type, Buffer pixels);
+
+    void glTexParameterf(int target, int pname, float param);
+
+    void glTexParameteri(int target, int pname, int param);
+
+    void glUniform1f(int location, float x);
+
+    void glUniform1i(int location, int x);
+
+    void glUniform4fv(int location, int count, float[] v, int offset);
+
+    void glUniformMatrix4fv(int location, int count, boolean transpose, float[] value,
+            int offset);
+
+    void glUseProgram(int program);
+
+    void glVertexAttribPointer(int indx, int size, int type, boolean normalized, int stride,
+            int offset);
+
+    void glViewport(int x, int y, int width, int height);
+
+    void glScissor(int x, int y, int width, int height);
+
+    void glDepthMask(boolean flag);
+
+    // GLUtils.texImage2D()
+    void texImage2D(int target, int level, Bitmap bitmap, int border);
+
+    // GLUtils.texSubImage2D()
+    void texSubImage2D(int target, int level, int xoffset, int yoffset, Bitmap bitmap,
+            int format, int type);
+}
@@ -3,14 +3,15 @@ package com.nicaiya.glview.glrender;
 import android.graphics.Bitmap;
 import android.graphics.Rect;
 import android.graphics.RectF;
+import android.opengl.GLES11Ext;
 import android.opengl.GLES20;
-import android.opengl.GLUtils;
 import android.opengl.Matrix;
 import android.util.Log;
 
 import com.nicaiya.glview.texture.BasicTexture;
 import com.nicaiya.glview.texture.RawTexture;
 import com.nicaiya.glview.utils.IntArray;
+import com.nicaiya.glview.utils.Utils;
 
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
@@ -18,11 +19,18 @@ import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 
 public class GLES20Canvas implements GLCanvas {
 
     // ************** Constants **********************
     private static final String TAG = GLES20Canvas.class.getSimpleName();
+
+    // Error check modes, see setErrorCheckMode()
+    public static final int ERROR_CHECK_OFF = 0;
+    public static final int ERROR_CHECK_PER_FRAME = 1;
+    public static final int ERROR_CHECK_FULL = 2;
+
     private static final int FLOAT_SIZE = Float.SIZE / Byte.SIZE;
     private static final float OPAQUE_ALPHA = 0.95f;
 
@@ -49,18 +57,17 @@ public class GLES20Canvas implements GLCanvas {
             1, 0,
     };
 
-    private static final float[] BOUNDS_COORDINATES = {
-        0, 0, 0, 1,
-        1, 1, 0, 1,
-    };
-
     private static final String POSITION_ATTRIBUTE = "aPosition";
     private static final String COLOR_UNIFORM = "uColor";
     private static final String MATRIX_UNIFORM = "uMatrix";
     private static final String TEXTURE_MATRIX_UNIFORM = "uTextureMatrix";
     private static final String TEXTURE_SAMPLER_UNIFORM = "uTextureSampler";
     private static final String ALPHA_UNIFORM = "uAlpha";
+    private static final String MIX_RATIO_UNIFORM = "uMixRatio";
     private static final String TEXTURE_COORD_ATTRIBUTE = "aTextureCoordinate";
+    private static final String COLOR_ATTRIBUTE = "aColor";
+    private static final String INSET_ATTRIBUTE = "aInset";
+    private static final String STRETCH_UNIFORM = "uStretch";
 
     private static final String DRAW_VERTEX_SHADER = ""
             + "uniform mat4 " + MATRIX_UNIFORM + ";\n"
@@ -99,6 +106,26 @@ public class GLES20Canvas implements GLCanvas {
             + "  vTextureCoord = " + TEXTURE_COORD_ATTRIBUTE + ";\n"
             + "}\n";
 
+    // Places the vertices of a StretchMesh: aPosition is the fixed length
+    // before the vertex in xy and the stretchy length in zw, uStretch.xy
+    // how much the stretchy lengths are stretched.
+    private static final String STRETCH_VERTEX_SHADER = ""
+            + "uniform mat4 " + MATRIX_UNIFORM + ";\n"
+            + "uniform vec4 " + STRETCH_UNIFORM + ";\n"
+            + "attribute vec4 " + POSITION_ATTRIBUTE + ";\n"
+            + "attribute vec2 " + INSET_ATTRIBUTE + ";\n"
+            + "attribute vec2 " + TEXTURE_COORD_ATTRIBUTE + ";\n"
+            + "varying vec2 vTextureCoord;\n"
+            + "void main() {\n"
+            + "  vec2 scale = " + STRETCH_UNIFORM + ".xy;\n"
+            + "  vec2 inset = sign(" + INSET_ATTRIBUTE + ")\n"
+            + "      * min(vec2(0.5), 0.5 * abs(" + INSET_ATTRIBUTE + ") * scale);\n"
+            + "  vec2 xy = " + POSITION_ATTRIBUTE + ".xy + " + POSITION_ATTRIBUTE + ".zw * scale"
+            + " + inset;\n"
+            + "  gl_Position = " + MATRIX_UNIFORM + " * vec4(xy, 0.0, 1.0);\n"
+            + "  vTextureCoord = " + TEXTURE_COORD_ATTRIBUTE + ";\n"
+            + "}\n";
+
     private static final String TEXTURE_FRAGMENT_SHADER = ""
             + "precision mediump float;\n"
             + "varying vec2 vTextureCoord;\n"
@@ -120,16 +147,96 @@ public class GLES20Canvas implements GLCanvas {
             + "  gl_FragColor *= " + ALPHA_UNIFORM + ";\n"
             + "}\n";
 
+    // Draws the texture with the color over it, like drawing them one after
+    // the other at the alpha of (1 - ratio) and ratio. uColor is
+    // premultiplied, including the canvas alpha.
+    private static final String MIX_FRAGMENT_SHADER = ""
+            + "precision mediump float;\n"
+            + "varying vec2 vTextureCoord;\n"
+            + "uniform float " + ALPHA_UNIFORM + ";\n"
+            + "uniform float " + MIX_RATIO_UNIFORM + ";\n"
+            + "uniform vec4 " + COLOR_UNIFORM + ";\n"
+            + "uniform sampler2D " + TEXTURE_SAMPLER_UNIFORM + ";\n"
+            + "void main() {\n"
+            + "  vec4 from = texture2D(" + TEXTURE_SAMPLER_UNIFORM + ", vTextureCoord);\n"
+            + "  from *= (1.0 - " + MIX_RATIO_UNIFORM + ") * " + ALPHA_UNIFORM + ";\n"
+            + "  vec4 to = " + COLOR_UNIFORM + " * " + MIX_RATIO_UNIFORM + ";\n"
+            + "  gl_FragColor = to + (1.0 - to.a) * from;\n"
+            + "}\n";
+
+    // The batch shaders take vertices that are already transformed to clip
+    // space, so that quads drawn with different matrices can share one draw.
+    private static final String BATCH_VERTEX_SHADER = ""
+            + "attribute vec4 " + POSITION_ATTRIBUTE + ";\n"
+            + "attribute vec2 " + TEXTURE_COORD_ATTRIBUTE + ";\n"
+            + "attribute vec4 " + COLOR_ATTRIBUTE + ";\n"
+            + "varying vec2 vTextureCoord;\n"
+            + "varying vec4 vColor;\n"
+            + "void main() {\n"
+            + "  gl_Position = " + POSITION_ATTRIBUTE + ";\n"
+            + "  vTextureCoord = " + TEXTURE_COORD_ATTRIBUTE + ";\n"
+            + "  vColor = " + COLOR_ATTRIBUTE + ";\n"
+            + "}\n";
+
+    private static final String BATCH_DRAW_FRAGMENT_SHADER = ""
+            + "precision mediump float;\n"
+            + "varying vec4 vColor;\n"
+            + "void main() {\n"
+            + "  gl_FragColor = vColor;\n"
+            + "}\n";
+
+    private static final String BATCH_TEXTURE_FRAGMENT_SHADER = ""
+            + "precision mediump float;\n"
+            + "varying vec2 vTextureCoord;\n"
+            + "varying vec4 vColor;\n"
+            + "uniform sampler2D " + TEXTURE_SAMPLER_UNIFORM + ";\n"
+            + "void main() {\n"
+            + "  gl_FragColor = texture2D(" + TEXTURE_SAMPLER_UNIFORM + ", vTextureCoord);\n"
+            + "  gl_FragColor *= vColor;\n"
+            + "}\n";
+
+    // Each batched vertex is: x, y, z, w (clip space), s, t, r, g, b, a
+    private static final int BATCH_MAX_QUADS = 256;
+    private static final int BATCH_FLOATS_PER_VERTEX = 10;
+    private static final int BATCH_VERTEX_STRIDE = BATCH_FLOATS_PER_VERTEX * FLOAT_SIZE;
+    private static final int BATCH_FLOATS_PER_QUAD = 4 * BATCH_FLOATS_PER_VERTEX;
+    private static final int BATCH_INDICES_PER_QUAD = 6;
+    private static final int BATCH_OFFSET_TEXTURE_COORD = 4;
+    private static final int BATCH_OFFSET_COLOR = 6;
+
+    // The depth of the batched quads in depth ordering decreases by this
+    // much with each quad, so later ones are in front. It is coarse enough
+    // for a 16 bit depth buffer, which is cleared when the steps run out.
+    private static final float DEPTH_STEP = 1f / 16384;
+
+    // The heatmap colors of the pixels drawn 2, 3, 4 and 5 or more times.
+    private static final int[] HEATMAP_COLORS = {
+            0x600000ff, 0x6000ff00, 0x60ff00ff, 0x60ff0000,
+    };
+
     private static final int INITIAL_RESTORE_STATE_SIZE = 8;
     private static final int MATRIX_SIZE = 16;
+    private static final int AFFINE_SIZE = MatrixUtils.AFFINE_SIZE;
+    private static final int CLIP_SIZE = 4;
 
     // Keep track of restore state
+    // While the transform of a level is 2D affine, which it is unless a 3D
+    // rotate() or multiplyMatrix() happened, it is kept in mAffines only and
+    // its 4x4 matrix in mMatrices is stale.
     private float[] mMatrices = new float[INITIAL_RESTORE_STATE_SIZE * MATRIX_SIZE];
+    private float[] mAffines = new float[INITIAL_RESTORE_STATE_SIZE * AFFINE_SIZE];
+    private boolean[] mMatrixIsAffine = new boolean[INITIAL_RESTORE_STATE_SIZE];
     private float[] mAlphas = new float[INITIAL_RESTORE_STATE_SIZE];
+    // The clip rectangles in GL window coordinates (y up): left, bottom,
+    // right, top. An unclipped level spans all the int range.
+    private int[] mClips = new int[INITIAL_RESTORE_STATE_SIZE * CLIP_SIZE];
     private IntArray mSaveFlags = new IntArray();
 
     private int mCurrentAlphaIndex = 0;
     private int mCurrentMatrixIndex = 0;
+    private int mCurrentAffineIndex = 0;
+    private int mCurrentMatrixLevel = 0;
+    private int mCurrentClipIndex = 0;
 
     // Viewport size
     private int mWidth;
@@ -142,11 +249,15 @@ public class GLES20Canvas implements GLCanvas {
     private int mScreenWidth;
     private int mScreenHeight;
 
-    // GL programs
-    private int mDrawProgram;
-    private int mTextureProgram;
-    private int mOesTextureProgram;
-    private int mMeshProgram;
+    // The damaged area of the frame in GL window coordinates (y up), see
+    // setDamage().
+    private boolean mHasDamage;
+    private final Rect mDamage = new Rect();
+
+    // The area drawing is restricted to: the viewport intersected with the
+    // damage and the clip, in GL window coordinates (top is the lower y).
+    private final Rect mScissor = new Rect();
+    private boolean mScissorEnabled;
 
     // GL buffer containing BOX_COORDINATES
     private int mBoxCoordinates;
@@ -166,6 +277,19 @@ public class GLES20Canvas implements GLCanvas {
     // Handle indices -- mesh
     private static final int INDEX_TEXTURE_COORD = 2;
 
+    // Handle indices -- stretch mesh, following the mesh ones
+    private static final int INDEX_STRETCH = 5;
+    private static final int INDEX_INSET = 6;
+
+    // Handle indices -- mix, following the texture ones
+    private static final int INDEX_MIX_RATIO = 5;
+    private static final int INDEX_MIX_COLOR = 6;
+
+    // Handle indices -- batch
+    private static final int INDEX_BATCH_TEXTURE_COORD = 1;
+    private static final int INDEX_BATCH_COLOR = 2;
+    private static final int INDEX_BATCH_TEXTURE_SAMPLER = 3;
+
     private abstract static class ShaderParameter {
         public int handle;
         protected final String mName;
@@ -174,18 +298,23 @@ public class GLES20Canvas implements GLCanvas {
             mName = name;
         }
 
-        public abstract void loadHandle(int program);
+        public abstract void loadHandle(GLES20Api gl, int program);
     }
 
     private static class UniformShaderParameter extends ShaderParameter {
+        // The last value set to this uniform, used by GLState to skip
+        // redundant uploads. Uniforms are per program and only changed by
+        // us, so the cache is never invalidated.
+        final float[] mValue = new float[MATRIX_SIZE];
+        boolean mHasValue;
+
         public UniformShaderParameter(String name) {
             super(name);
         }
 
         @Override
-        public void loadHandle(int program) {
-            handle = GLES20.glGetUniformLocation(program, mName);
-            checkError();
+        public void loadHandle(GLES20Api gl, int program) {
+            handle = gl.glGetUniformLocation(program, mName);
         }
     }
 
@@ -195,12 +324,308 @@ public class GLES20Canvas implements GLCanvas {
         }
 
         @Override
-        public void loadHandle(int program) {
-            handle = GLES20.glGetAttribLocation(program, mName);
-            checkError();
+        public void loadHandle(GLES20Api gl, int program) {
+            handle = gl.glGetAttribLocation(program, mName);
+        }
+    }
+
+    // Remembers the GL state set by this canvas and skips the calls which
+    // wouldn't change it. State that is not tracked here must not be changed
+    // behind its back; call invalidate() when that can't be guaranteed.
+    private static class GLState {
+
+        private static final int UNKNOWN = -1;
+        private static final int MAX_ATTRIBUTES = 8;
+
+        private int mProgram = UNKNOWN;
+        private int mActiveTexture = UNKNOWN;
+        private int mTexture2D = UNKNOWN;
+        private int mTextureExternal = UNKNOWN;
+        private int mBlendEnabled = UNKNOWN;
+        private int mScissorEnabled = UNKNOWN;
+        private int mDepthTestEnabled = UNKNOWN;
+        private int mDepthMask = UNKNOWN;
+        // The scissor box: x, y, width, height
+        private final int[] mScissor = new int[4];
+        private float mLineWidth = Float.NaN;
+        private int mArrayBuffer = UNKNOWN;
+        private int mElementArrayBuffer = UNKNOWN;
+        // The attribute arrays we know the state of, and those enabled.
+        private int mKnownAttributes;
+        private int mEnabledAttributes;
+        // The vertex attribute pointers: buffer, size, stride and offset.
+        private final int[] mPointers = new int[MAX_ATTRIBUTES * 4];
+
+        private final GLES20Api mGL;
+
+        private int mIssuedCount;
+        private int mSkippedCount;
+        private int mTextureBindCount;
+        private int mProgramSwitchCount;
+
+        public GLState(GLES20Api gl) {
+            mGL = gl;
+            invalidate();
+        }
+
+        // Forgets everything, so the next call of each kind goes to GL.
+        public void invalidate() {
+            mProgram = UNKNOWN;
+            mActiveTexture = UNKNOWN;
+            mTexture2D = UNKNOWN;
+            mTextureExternal = UNKNOWN;
+            mBlendEnabled = UNKNOWN;
+            mScissorEnabled = UNKNOWN;
+            mDepthTestEnabled = UNKNOWN;
+            mDepthMask = UNKNOWN;
+            Arrays.fill(mScissor, UNKNOWN);
+            mLineWidth = Float.NaN;
+            mArrayBuffer = UNKNOWN;
+            mElementArrayBuffer = UNKNOWN;
+            mKnownAttributes = 0;
+            mEnabledAttributes = 0;
+            Arrays.fill(mPointers, UNKNOWN);
+        }
+
+        public void resetCounters() {
+            mIssuedCount = 0;
+            mSkippedCount = 0;
+            mTextureBindCount = 0;
+            mProgramSwitchCount = 0;
+        }
+
+        public int getIssuedCount() {
+            return mIssuedCount;
+        }
+
+        public int getSkippedCount() {
+            return mSkippedCount;
+        }
+
+        public int getTextureBindCount() {
+            return mTextureBindCount;
+        }
+
+        public int getProgramSwitchCount() {
+            return mProgramSwitchCount;
+        }
+
+        private boolean skip(boolean unchanged) {
+            if (unchanged) {
+                mSkippedCount++;
+            } else {
+                mIssuedCount++;
+            }
+            return unchanged;
+        }
+
+        public void useProgram(int program) {
+            if (skip(mProgram == program)) return;
+            mProgram = program;
+            mProgramSwitchCount++;
+            mGL.glUseProgram(program);
+        }
+
+        public void setActiveTexture(int unit) {
+            if (skip(mActiveTexture == unit)) return;
+            mActiveTexture = unit;
+            mGL.glActiveTexture(unit);
+        }
+
+        public void bindTexture(int target, int id) {
+            if (target == GLES20.GL_TEXTURE_2D) {
+                if (skip(mTexture2D == id)) return;
+                mTexture2D = id;
+            } else if (target == GLES11Ext.GL_TEXTURE_EXTERNAL_OES) {
+                if (skip(mTextureExternal == id)) return;
+                mTextureExternal = id;
+            } else {
+                mIssuedCount++;
+            }
+            mTextureBindCount++;
+            mGL.glBindTexture(target, id);
+        }
+
+        public void setBlendEnabled(boolean enabled) {
+            int value = enabled ? 1 : 0;
+            if (skip(mBlendEnabled == value)) return;
+            mBlendEnabled = value;
+            if (enabled) {
+                mGL.glEnable(GLES20.GL_BLEND);
+            } else {
+                mGL.glDisable(GLES20.GL_BLEND);
+            }
+        }
+
+        public void setScissorEnabled(boolean enabled) {
+            int value = enabled ? 1 : 0;
+            if (skip(mScissorEnabled == value)) return;
+            mScissorEnabled = value;
+            if (enabled) {
+                mGL.glEnable(GLES20.GL_SCISSOR_TEST);
+            } else {
+                mGL.glDisable(GLES20.GL_SCISSOR_TEST);
+            }
+        }
+
+        public void setDepthTestEnabled(boolean enabled) {
+            int value = enabled ? 1 : 0;
+            if (skip(mDepthTestEnabled == value)) return;
+            mDepthTestEnabled = value;
+            if (enabled) {
+                mGL.glEnable(GLES20.GL_DEPTH_TEST);
+            } else {
+                mGL.glDisable(GLES20.GL_DEPTH_TEST);
+            }
+        }
+
+        public void setDepthMask(boolean enabled) {
+            int value = enabled ? 1 : 0;
+            if (skip(mDepthMask == value)) return;
+            mDepthMask = value;
+            mGL.glDepthMask(enabled);
+        }
+
+        public void setScissor(int x, int y, int width, int height) {
+            int[] box = mScissor;
+            if (skip(box[0] == x && box[1] == y && box[2] == width && box[3] == height)) return;
+            box[0] = x;
+            box[1] = y;
+            box[2] = width;
+            box[3] = height;
+            mGL.glScissor(x, y, width, height);
+        }
+
+        public void setLineWidth(float width) {
+            if (skip(mLineWidth == width)) return;
+            mLineWidth = width;
+            mGL.glLineWidth(width);
+        }
+
+        public void bindArrayBuffer(int buffer) {
+            if (skip(mArrayBuffer == buffer)) return;
+            mArrayBuffer = buffer;
+            mGL.glBindBuffer(GLES20.GL_ARRAY_BUFFER, buffer);
+        }
+
+        public void bindElementArrayBuffer(int buffer) {
+            if (skip(mElementArrayBuffer == buffer)) return;
+            mElementArrayBuffer = buffer;
+            mGL.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, buffer);
+        }
+
+        // Points the attribute at the floats in the given buffer. The handle
+        // is -1 if the attribute is not used by the program.
+        public void vertexAttribPointer(int handle, int size, int stride, int buffer,
+                int offset) {
+            if (handle < 0) return;
+            if (handle < MAX_ATTRIBUTES) {
+                int index = handle * 4;
+                int[] p = mPointers;
+                if (skip(p[index] == buffer && p[index + 1] == size
+                        && p[index + 2] == stride && p[index + 3] == offset)) {
+                    return;
+                }
+                p[index] = buffer;
+                p[index + 1] = size;
+                p[index + 2] = stride;
+                p[index + 3] = offset;
+            } else {
+                mIssuedCount++;
+            }
+            bindArrayBuffer(buffer);
+            mGL.glVertexAttribPointer(handle, size, GLES20.GL_FLOAT, false, stride, offset);
+        }
+
+        // Enables exactly the attribute arrays whose handles are set in mask.
+        public void setAttributeArrays(int mask) {
+            int changed = ~mKnownAttributes | (mEnabledAttributes ^ mask);
+            int touched = changed | mask;
+            for (int i = 0; i < MAX_ATTRIBUTES; i++) {
+                int bit = 1 << i;
+                if ((touched & bit) == 0 || skip((changed & bit) == 0)) continue;
+                if ((mask & bit) != 0) {
+                    mGL.glEnableVertexAttribArray(i);
+                } else {
+                    mGL.glDisableVertexAttribArray(i);
+                }
+            }
+            mKnownAttributes = ~0;
+            mEnabledAttributes = mask;
+        }
+
+        public void uniform1i(ShaderParameter param, int value) {
+            UniformShaderParameter uniform = (UniformShaderParameter) param;
+            if (uniform.handle < 0) return;
+            float[] cached = uniform.mValue;
+            if (skip(uniform.mHasValue && cached[0] == value)) return;
+            cached[0] = value;
+            uniform.mHasValue = true;
+            mGL.glUniform1i(uniform.handle, value);
+        }
+
+        public void uniform1f(ShaderParameter param, float value) {
+            UniformShaderParameter uniform = (UniformShaderParameter) param;
+            if (uniform.handle < 0) return;
+            float[] cached = uniform.mValue;
+            if (skip(uniform.mHasValue && cached[0] == value)) return;
+            cached[0] = value;
+            uniform.mHasValue = true;
+            mGL.glUniform1f(uniform.handle, value);
+        }
+
+        public void uniform4fv(ShaderParameter param, float[] value, int offset) {
+            if (param.handle < 0) return;
+            if (skip(setCachedValue(param, value, offset, 4))) return;
+            mGL.glUniform4fv(param.handle, 1, value, offset);
+        }
+
+        public void uniformMatrix4fv(ShaderParameter param, float[] value, int offset) {
+            if (param.handle < 0) return;
+            if (skip(setCachedValue(param, value, offset, MATRIX_SIZE))) return;
+            mGL.glUniformMatrix4fv(param.handle, 1, false, value, offset);
+        }
+
+        // Stores the value in the uniform's cache, returns true if it was
+        // already there.
+        private static boolean setCachedValue(ShaderParameter param, float[] value, int offset,
+                int count) {
+            UniformShaderParameter uniform = (UniformShaderParameter) param;
+            float[] cached = uniform.mValue;
+            boolean unchanged = uniform.mHasValue;
+            for (int i = 0; i < count; i++) {
+                float v = value[offset + i];
+                if (cached[i] != v) {
+                    cached[i] = v;
+                    unchanged = false;
+                }
+            }
+            uniform.mHasValue = true;
+            return unchanged;
+        }
+
+        // GL unbinds the deleted names, and may hand them out again.
+        public void onTexturesDeleted(int[] ids, int count) {
+            for (int i = 0; i < count; i++) {
+                if (mTexture2D == ids[i]) mTexture2D = UNKNOWN;
+                if (mTextureExternal == ids[i]) mTextureExternal = UNKNOWN;
+            }
+        }
+
+        public void onBuffersDeleted(int[] ids, int count) {
+            for (int i = 0; i < count; i++) {
+                int id = ids[i];
+                if (mArrayBuffer == id) mArrayBuffer = UNKNOWN;
+                if (mElementArrayBuffer == id) mElementArrayBuffer = UNKNOWN;
+                for (int j = 0; j < MAX_ATTRIBUTES * 4; j += 4) {
+                    if (mPointers[j] == id) mPointers[j] = UNKNOWN;
+                }
+            }
         }
     }
 
+    private final GLState mGLState;
+
     ShaderParameter[] mDrawParameters = {
             new AttributeShaderParameter(POSITION_ATTRIBUTE), // INDEX_POSITION
             new UniformShaderParameter(MATRIX_UNIFORM), // INDEX_MATRIX
@@ -227,6 +652,59 @@ public class GLES20Canvas implements GLCanvas {
             new UniformShaderParameter(TEXTURE_SAMPLER_UNIFORM), // INDEX_TEXTURE_SAMPLER
             new UniformShaderParameter(ALPHA_UNIFORM), // INDEX_ALPHA
     };
+    ShaderParameter[] mStretchParameters = {
+            new AttributeShaderParameter(POSITION_ATTRIBUTE), // INDEX_POSITION
+            new UniformShaderParameter(MATRIX_UNIFORM), // INDEX_MATRIX
+            new AttributeShaderParameter(TEXTURE_COORD_ATTRIBUTE), // INDEX_TEXTURE_COORD
+            new UniformShaderParameter(TEXTURE_SAMPLER_UNIFORM), // INDEX_TEXTURE_SAMPLER
+            new UniformShaderParameter(ALPHA_UNIFORM), // INDEX_ALPHA
+            new UniformShaderParameter(STRETCH_UNIFORM), // INDEX_STRETCH
+            new AttributeShaderParameter(INSET_ATTRIBUTE), // INDEX_INSET
+    };
+    ShaderParameter[] mMixParameters = {
+            new AttributeShaderParameter(POSITION_ATTRIBUTE), // INDEX_POSITION
+            new UniformShaderParameter(MATRIX_UNIFORM), // INDEX_MATRIX
+            new UniformShaderParameter(TEXTURE_MATRIX_UNIFORM), // INDEX_TEXTURE_MATRIX
+            new UniformShaderParameter(TEXTURE_SAMPLER_UNIFORM), // INDEX_TEXTURE_SAMPLER
+            new UniformShaderParameter(ALPHA_UNIFORM), // INDEX_ALPHA
+            new UniformShaderParameter(MIX_RATIO_UNIFORM), // INDEX_MIX_RATIO
+            new UniformShaderParameter(COLOR_UNIFORM), // INDEX_MIX_COLOR
+    };
+    ShaderParameter[] mBatchDrawParameters = {
+            new AttributeShaderParameter(POSITION_ATTRIBUTE), // INDEX_POSITION
+            new AttributeShaderParameter(TEXTURE_COORD_ATTRIBUTE), // INDEX_BATCH_TEXTURE_COORD
+            new AttributeShaderParameter(COLOR_ATTRIBUTE), // INDEX_BATCH_COLOR
+    };
+    ShaderParameter[] mBatchTextureParameters = {
+            new AttributeShaderParameter(POSITION_ATTRIBUTE), // INDEX_POSITION
+            new AttributeShaderParameter(TEXTURE_COORD_ATTRIBUTE), // INDEX_BATCH_TEXTURE_COORD
+            new AttributeShaderParameter(COLOR_ATTRIBUTE), // INDEX_BATCH_COLOR
+            new UniformShaderParameter(TEXTURE_SAMPLER_UNIFORM), // INDEX_BATCH_TEXTURE_SAMPLER
+    };
+
+    // GL programs, compiled on first use
+    private final Program mDrawProgram =
+            new Program(DRAW_VERTEX_SHADER, DRAW_FRAGMENT_SHADER, mDrawParameters);
+    private final Program mTextureProgram =
+            new Program(TEXTURE_VERTEX_SHADER, TEXTURE_FRAGMENT_SHADER, mTextureParameters);
+    private final Program mOesTextureProgram = new Program(TEXTURE_VERTEX_SHADER,
+            OES_TEXTURE_FRAGMENT_SHADER, mOesTextureParameters);
+    private final Program mMeshProgram =
+            new Program(MESH_VERTEX_SHADER, TEXTURE_FRAGMENT_SHADER, mMeshParameters);
+    private final Program mStretchProgram =
+            new Program(STRETCH_VERTEX_SHADER, TEXTURE_FRAGMENT_SHADER, mStretchParameters);
+    private final Program mMixProgram =
+            new Program(TEXTURE_VERTEX_SHADER, MIX_FRAGMENT_SHADER, mMixParameters);
+    private final Program mBatchDrawProgram = new Program(BATCH_VERTEX_SHADER,
+            BATCH_DRAW_FRAGMENT_SHADER, mBatchDrawParameters);
+    private final Program mBatchTextureProgram = new Program(BATCH_VERTEX_SHADER,
+            BATCH_TEXTURE_FRAGMENT_SHADER, mBatchTextureParameters);
+    private final Program[] mPrograms = {
+            mBatchDrawProgram, mBatchTextureProgram, mDrawProgram, mTextureProgram,
+            mMixProgram, mMeshProgram, mStretchProgram, mOesTextureProgram,
+    };
+    // The compiled shaders by their source, as some are shared by programs.
+    private final HashMap<String, Integer> mShaders = new HashMap<String, Integer>();
 
     private final IntArray mUnboundTextures = new IntArray();
     private final IntArray mDeleteBuffers = new IntArray();
@@ -237,9 +715,64 @@ public class GLES20Canvas implements GLCanvas {
     private int mCountFillRect = 0;
     private int mCountDrawLine = 0;
 
-    // Buffer for framebuffer IDs -- we keep track so we can switch the attached
-    // texture.
-    private int[] mFrameBuffer = new int[1];
+    // Per-frame statistics. A "draw" is a request made through this canvas,
+    // a "draw call" is what is actually issued to GL.
+    private int mFrameDraws;
+    private int mFrameDrawCalls;
+    private int mFrameBatches;
+    private int mLastFrameDraws;
+    private int mLastFrameDrawCalls;
+    private int mLastFrameBatches;
+    private int mLastFrameStateCalls;
+    private int mLastFrameSkippedStateCalls;
+    private int mFrameFramebufferSwitches;
+    private final FrameMetrics mLastFrameMetrics = new FrameMetrics();
+    // The uploads since the end of the last frame, including those done
+    // outside of a frame.
+    private long mUploadedBytes;
+    private int mUploadedTextures;
+    private long mUploadTime;
+    // All the texture uploads, for getTextureUploadTime().
+    private long mTextureUploadTime;
+    private long mTextureUploadBytes;
+    private final FillAccounting mFillAccounting = new FillAccounting();
+    private boolean mDrawingHeatmap;
+
+    // Consecutive quads sharing the same program, texture and blending are
+    // collected here and submitted as a single draw call.
+    private boolean mBatchingEnabled = true;
+    private final float[] mBatchData = new float[BATCH_MAX_QUADS * BATCH_FLOATS_PER_QUAD];
+    private final FloatBuffer mBatchBuffer = createBuffer(mBatchData);
+    private int mBatchQuadCount;
+    private int mBatchProgram;
+    private ShaderParameter[] mBatchParameters;
+    private int mBatchTextureId;
+    private boolean mBatchBlending;
+    private int mBatchVertexBuffer;
+    private int mBatchIndexBuffer;
+
+    // In depth ordering, the batches are held back until the next flush,
+    // then the opaque ones are drawn front to back and the translucent ones
+    // back to front, so the opaque ones hide what is behind them from the
+    // fragment shader. mDepth is the depth of the next quad. mDepthData is
+    // allocated when the depth ordering is first enabled.
+    private boolean mDepthOrderingEnabled;
+    private float[] mDepthData;
+    private int mDepthQuadCount;
+    private final ArrayList<DepthRun> mDepthRuns = new ArrayList<DepthRun>();
+    private int mDepthRunCount;
+    private float mDepth;
+
+    // The geometry streamed each frame, and its GL buffers.
+    private static final int STREAM_VERTEX_STRIDE = StreamBuffer.FLOATS_PER_VERTEX * FLOAT_SIZE;
+    private static final int STREAM_OFFSET_TEXTURE_COORD = COORDS_PER_VERTEX * FLOAT_SIZE;
+    private static final int SHORT_SIZE = Short.SIZE / Byte.SIZE;
+    private final StreamBuffer mStreamBuffer = new StreamBuffer();
+    private int mStreamVertexBuffer;
+    private int mStreamIndexBuffer;
+
+    // The framebuffers used for the render targets, kept across frames.
+    private final FramebufferPool mFramebufferPool = new FramebufferPool();
 
     // Bound textures.
     private ArrayList<RawTexture> mTargetTextures = new ArrayList<RawTexture>();
@@ -251,34 +784,38 @@ public class GLES20Canvas implements GLCanvas {
     private final RectF mTempTargetRect = new RectF();
     private final float[] mTempTextureMatrix = new float[MATRIX_SIZE];
     private final int[] mTempIntArray = new int[1];
+    private final RectF mTempBounds = new RectF();
 
-    private static final GLId mGLId = new GLES20IdImpl();
+    private final GLES20Api mGL;
+    private final ValidatingGLES20Api mValidator;
+    private final GLId mGLId;
+    private int mErrorCheckMode = ERROR_CHECK_PER_FRAME;
 
     public GLES20Canvas() {
+        this(new GLES20ApiImpl());
+    }
+
+    // Creates a canvas issuing its GL calls to the given API, e.g. a
+    // RecordingGLES20Api to run it off the device.
+    public GLES20Canvas(GLES20Api gl) {
+        mValidator = new ValidatingGLES20Api(gl);
+        mGL = mValidator;
+        mGLId = new GLES20IdImpl(mGL);
+        mGLState = new GLState(mGL);
         Matrix.setIdentityM(mTempTextureMatrix, 0);
-        Matrix.setIdentityM(mMatrices, mCurrentMatrixIndex);
+        resetMatrix();
         mAlphas[mCurrentAlphaIndex] = 1f;
+        resetClip();
         mTargetTextures.add(null);
 
         FloatBuffer boxBuffer = createBuffer(BOX_COORDINATES);
         mBoxCoordinates = uploadBuffer(boxBuffer);
 
-        int drawVertexShader = loadShader(GLES20.GL_VERTEX_SHADER, DRAW_VERTEX_SHADER);
-        int textureVertexShader = loadShader(GLES20.GL_VERTEX_SHADER, TEXTURE_VERTEX_SHADER);
-        int meshVertexShader = loadShader(GLES20.GL_VERTEX_SHADER, MESH_VERTEX_SHADER);
-        int drawFragmentShader = loadShader(GLES20.GL_FRAGMENT_SHADER, DRAW_FRAGMENT_SHADER);
-        int textureFragmentShader = loadShader(GLES20.GL_FRAGMENT_SHADER, TEXTURE_FRAGMENT_SHADER);
-        int oesTextureFragmentShader = loadShader(GLES20.GL_FRAGMENT_SHADER,
-                OES_TEXTURE_FRAGMENT_SHADER);
-
-        mDrawProgram = assembleProgram(drawVertexShader, drawFragmentShader, mDrawParameters);
-        mTextureProgram = assembleProgram(textureVertexShader, textureFragmentShader,
-                mTextureParameters);
-        mOesTextureProgram = assembleProgram(textureVertexShader, oesTextureFragmentShader,
-                mOesTextureParameters);
-        mMeshProgram = assembleProgram(meshVertexShader, textureFragmentShader, mMeshParameters);
-        GLES20.glBlendFunc(GLES20.GL_ONE, GLES20.GL_ONE_MINUS_SRC_ALPHA);
-        checkError();
+        // The programs are compiled when they are first used, or ahead of
+        // that by compileNextProgram().
+        mBatchVertexBuffer = uploadBuffer(mBatchBuffer);
+        mBatchIndexBuffer = uploadBuffer(createQuadIndices(BATCH_MAX_QUADS));
+        mGL.glBlendFunc(GLES20.GL_ONE, GLES20.GL_ONE_MINUS_SRC_ALPHA);
     }
 
     private static FloatBuffer createBuffer(float[] values) {
@@ -290,76 +827,467 @@ public class GLES20Canvas implements GLCanvas {
         return buffer;
     }
 
+    // Creates the indices for drawing the quads as triangles. The vertices of
+    // each quad are in the same order as the fill rectangle in BOX_COORDINATES.
+    private static ByteBuffer createQuadIndices(int quadCount) {
+        int size = quadCount * BATCH_INDICES_PER_QUAD * Short.SIZE / Byte.SIZE;
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+        for (int i = 0; i < quadCount; i++) {
+            short first = (short) (i * 4);
+            buffer.putShort(first);
+            buffer.putShort((short) (first + 1));
+            buffer.putShort((short) (first + 2));
+            buffer.putShort((short) (first + 2));
+            buffer.putShort((short) (first + 1));
+            buffer.putShort((short) (first + 3));
+        }
+        buffer.position(0);
+        return buffer;
+    }
+
     private int assembleProgram(int vertexShader, int fragmentShader, ShaderParameter[] params) {
-        int program = GLES20.glCreateProgram();
-        checkError();
+        int program = mGL.glCreateProgram();
         if (program == 0) {
-            throw new RuntimeException("Cannot create GL program: " + GLES20.glGetError());
-        }
-        GLES20.glAttachShader(program, vertexShader);
-        checkError();
-        GLES20.glAttachShader(program, fragmentShader);
-        checkError();
-        GLES20.glLinkProgram(program);
-        checkError();
+            throw new RuntimeException("Cannot create GL program: " + mGL.glGetError());
+        }
+        mGL.glAttachShader(program, vertexShader);
+        mGL.glAttachShader(program, fragmentShader);
+        mGL.glLinkProgram(program);
         int[] mLinkStatus = mTempIntArray;
-        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, mLinkStatus, 0);
+        mGL.glGetProgramiv(program, GLES20.GL_LINK_STATUS, mLinkStatus, 0);
         if (mLinkStatus[0] != GLES20.GL_TRUE) {
             Log.e(TAG, "Could not link program: ");
-            Log.e(TAG, GLES20.glGetProgramInfoLog(program));
-            GLES20.glDeleteProgram(program);
+            Log.e(TAG, mGL.glGetProgramInfoLog(program));
+            mGL.glDeleteProgram(program);
             program = 0;
         }
         for (int i = 0; i < params.length; i++) {
-            params[i].loadHandle(program);
+            params[i].loadHandle(mGL, program);
         }
         return program;
     }
 
-    private static int loadShader(int type, String shaderCode) {
+    private int loadShader(int type, String shaderCode) {
+        Integer cached = mShaders.get(shaderCode);
+        if (cached != null) return cached;
+
         // create a vertex shader type (GLES20.GL_VERTEX_SHADER)
         // or a fragment shader type (GLES20.GL_FRAGMENT_SHADER)
-        int shader = GLES20.glCreateShader(type);
+        int shader = mGL.glCreateShader(type);
 
         // add the source code to the shader and compile it
-        GLES20.glShaderSource(shader, shaderCode);
-        checkError();
-        GLES20.glCompileShader(shader);
-        checkError();
+        mGL.glShaderSource(shader, shaderCode);
+        mGL.glCompileShader(shader);
 
+        mShaders.put(shaderCode, shader);
         return shader;
     }
 
+    /**
+     * Compiles one of the programs which haven't been used yet, so that
+     * drawing doesn't have to wait for it later. Returns false when all the
+     * programs are compiled. This is meant to be called when the GL thread is
+     * idle, see ProgramWarmUp.
+     */
+    public boolean compileNextProgram() {
+        for (Program program : mPrograms) {
+            if (!program.isLinked()) {
+                program.getId();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // A program linked from the given shaders the first time its id is asked.
+    private class Program {
+        private final String mVertexShader;
+        private final String mFragmentShader;
+        private final ShaderParameter[] mParameters;
+        private boolean mLinked;
+        private int mId;
+
+        Program(String vertexShader, String fragmentShader, ShaderParameter[] params) {
+            mVertexShader = vertexShader;
+            mFragmentShader = fragmentShader;
+            mParameters = params;
+        }
+
+        boolean isLinked() {
+            return mLinked;
+        }
+
+        int getId() {
+            if (!mLinked) {
+                mLinked = true;
+                mId = assembleProgram(loadShader(GLES20.GL_VERTEX_SHADER, mVertexShader),
+                        loadShader(GLES20.GL_FRAGMENT_SHADER, mFragmentShader), mParameters);
+            }
+            return mId;
+        }
+    }
+
+    // A batch held back in depth ordering: its state and its quads in
+    // mDepthData.
+    private static class DepthRun {
+        int program;
+        ShaderParameter[] params;
+        int textureId;
+        boolean blending;
+        int firstQuad;
+        int quadCount;
+    }
+
     @Override
     public void setSize(int width, int height) {
+        flushBatch();
         mWidth = width;
         mHeight = height;
-        GLES20.glViewport(0, 0, mWidth, mHeight);
-        checkError();
-        Matrix.setIdentityM(mMatrices, mCurrentMatrixIndex);
+        mGL.glViewport(0, 0, mWidth, mHeight);
+        resetMatrix();
         Matrix.orthoM(mProjectionMatrix, 0, 0, width, 0, height, -1, 1);
         if (getTargetTexture() == null) {
             mScreenWidth = width;
             mScreenHeight = height;
-            Matrix.translateM(mMatrices, mCurrentMatrixIndex, 0, height, 0);
-            Matrix.scaleM(mMatrices, mCurrentMatrixIndex, 1, -1, 1);
+            translate(0, height);
+            scale(1, -1, 1);
+        }
+        updateScissor();
+    }
+
+    @Override
+    public void beginFrame() {
+        // Anything drawn outside of a frame (e.g. by the idle listeners) goes
+        // out before the frame starts.
+        flushBatch();
+        mFrameDraws = 0;
+        mFrameDrawCalls = 0;
+        mFrameBatches = 0;
+        mFrameFramebufferSwitches = 0;
+        mGLState.resetCounters();
+        mStreamBuffer.nextFrame();
+        if (mDepthOrderingEnabled) clearDepth();
+        mFillAccounting.beginFrame(mScreenWidth, mScreenHeight);
+    }
+
+    @Override
+    public void endFrame() {
+        flushBatch();
+        mLastFrameDraws = mFrameDraws;
+        mLastFrameDrawCalls = mFrameDrawCalls;
+        mLastFrameBatches = mFrameBatches;
+        mLastFrameStateCalls = mGLState.getIssuedCount();
+        mLastFrameSkippedStateCalls = mGLState.getSkippedCount();
+        FrameMetrics metrics = mLastFrameMetrics;
+        metrics.mDrawCalls = mFrameDrawCalls;
+        metrics.mStateChanges = mLastFrameStateCalls;
+        metrics.mTextureBinds = mGLState.getTextureBindCount();
+        metrics.mProgramSwitches = mGLState.getProgramSwitchCount();
+        metrics.mFramebufferSwitches = mFrameFramebufferSwitches;
+        metrics.mUploadedBytes = mUploadedBytes;
+        metrics.mUploadedTextures = mUploadedTextures;
+        metrics.mUploadTime = mUploadTime;
+        mUploadedBytes = 0;
+        mUploadedTextures = 0;
+        mUploadTime = 0;
+        mFillAccounting.endFrame();
+        if (mFillAccounting.isHeatmapEnabled()) {
+            drawHeatmap();
+            flushBatch();
+        }
+        setDamage(null);
+        if (mErrorCheckMode == ERROR_CHECK_PER_FRAME) {
+            mValidator.checkErrors("in frame");
+        }
+    }
+
+    @Override
+    public void setDamage(Rect damage) {
+        // The heatmap covers the whole screen, so it is redrawn in full.
+        if (damage == null || mFillAccounting.isHeatmapEnabled()) {
+            mHasDamage = false;
+        } else {
+            mHasDamage = true;
+            mDamage.set(damage.left, mScreenHeight - damage.bottom, damage.right,
+                    mScreenHeight - damage.top);
         }
+        updateScissor();
+    }
+
+    @Override
+    public boolean clipRect(float x, float y, float width, float height) {
+        RectF bounds = mTempBounds;
+        mapRect(x, y, width, height, bounds);
+        int[] clips = mClips;
+        int index = mCurrentClipIndex;
+        clips[index] = Math.max(clips[index], (int) Math.floor(bounds.left));
+        clips[index + 1] = Math.max(clips[index + 1], (int) Math.floor(bounds.top));
+        clips[index + 2] = Math.min(clips[index + 2], (int) Math.ceil(bounds.right));
+        clips[index + 3] = Math.min(clips[index + 3], (int) Math.ceil(bounds.bottom));
+        updateScissor();
+        return !mScissor.isEmpty();
+    }
+
+    private void resetClip() {
+        int index = mCurrentClipIndex;
+        mClips[index] = Integer.MIN_VALUE;
+        mClips[index + 1] = Integer.MIN_VALUE;
+        mClips[index + 2] = Integer.MAX_VALUE;
+        mClips[index + 3] = Integer.MAX_VALUE;
+    }
+
+    // Sets the scissor to the intersection of the viewport, the damage of the
+    // screen and the clip, or disables it if that is the whole viewport.
+    private void updateScissor() {
+        int left = 0;
+        int bottom = 0;
+        int right = mWidth;
+        int top = mHeight;
+        if (mHasDamage && getTargetTexture() == null) {
+            left = Math.max(left, mDamage.left);
+            bottom = Math.max(bottom, mDamage.top);
+            right = Math.min(right, mDamage.right);
+            top = Math.min(top, mDamage.bottom);
+        }
+        int[] clips = mClips;
+        int index = mCurrentClipIndex;
+        left = Math.max(left, clips[index]);
+        bottom = Math.max(bottom, clips[index + 1]);
+        right = Math.max(left, Math.min(right, clips[index + 2]));
+        top = Math.max(bottom, Math.min(top, clips[index + 3]));
+        boolean enabled = left > 0 || bottom > 0 || right < mWidth || top < mHeight;
+
+        Rect scissor = mScissor;
+        if (enabled != mScissorEnabled || scissor.left != left || scissor.top != bottom
+                || scissor.right != right || scissor.bottom != top) {
+            // The pending quads have to be drawn with the old scissor.
+            flushBatch();
+            mScissorEnabled = enabled;
+            scissor.set(left, bottom, right, top);
+        }
+        mGLState.setScissorEnabled(enabled);
+        if (enabled) {
+            mGLState.setScissor(left, bottom, right - left, top - bottom);
+        }
+    }
+
+    @Override
+    public boolean quickReject(float x, float y, float width, float height) {
+        RectF bounds = mTempBounds;
+        mapRect(x, y, width, height, bounds);
+        Rect scissor = mScissor;
+        return bounds.right <= scissor.left || bounds.left >= scissor.right
+                || bounds.bottom <= scissor.top || bounds.top >= scissor.bottom;
+    }
+
+    // Returns true if a draw of the rectangle can be skipped because it is
+    // outside of the scissor. Without a scissor there is nothing to check
+    // against except the viewport, which few draws miss.
+    private boolean isClippedOut(float x, float y, float width, float height) {
+        return mScissorEnabled && quickReject(x, y, width, height);
+    }
+
+    /**
+     * Sets how GL errors are checked for: not at all (ERROR_CHECK_OFF), once
+     * at the end of each frame (ERROR_CHECK_PER_FRAME, the default), or after
+     * every GL call (ERROR_CHECK_FULL). The full mode logs the failing call
+     * with its stack trace and the GL calls leading to it, but glGetError()
+     * stalls the pipeline on many drivers, so it is for debugging only.
+     */
+    public void setErrorCheckMode(int mode) {
+        mErrorCheckMode = mode;
+        mValidator.setFullValidation(mode == ERROR_CHECK_FULL);
+    }
+
+    public int getErrorCheckMode() {
+        return mErrorCheckMode;
+    }
+
+    // Returns the number of GL errors found so far.
+    public int getErrorCount() {
+        return mValidator.getErrorCount();
+    }
+
+    /**
+     * Enables or disables batching of consecutive quads. When disabled, each
+     * drawTexture() and fillRect() is issued to GL as a separate draw call.
+     */
+    public void setBatchingEnabled(boolean enabled) {
+        if (!enabled) {
+            flushBatch();
+        }
+        mBatchingEnabled = enabled;
+    }
+
+    public boolean isBatchingEnabled() {
+        return mBatchingEnabled;
+    }
+
+    /**
+     * Enables or disables depth ordering of the batched quads. When enabled,
+     * each quad gets a depth from the order it is drawn in, and the opaque
+     * ones between two flushes are drawn front to back with the depth test,
+     * so the pixels they cover behind them are not shaded again; the
+     * translucent ones are drawn after them, back to front. The quads drawn
+     * on a render target are not reordered.
+     * <p>
+     * The surface must have a depth buffer.
+     */
+    public void setDepthOrderingEnabled(boolean enabled) {
+        if (mDepthOrderingEnabled == enabled) return;
+        flushBatch();
+        mDepthOrderingEnabled = enabled;
+        if (!enabled) return;
+        if (mDepthData == null) {
+            mDepthData = new float[4 * BATCH_MAX_QUADS * BATCH_FLOATS_PER_QUAD];
+        }
+        clearDepth();
+    }
+
+    public boolean isDepthOrderingEnabled() {
+        return mDepthOrderingEnabled;
+    }
+
+    // Returns the number of draws requested through this canvas in the last
+    // frame.
+    public int getLastFrameDrawCount() {
+        return mLastFrameDraws;
+    }
+
+    // Returns the number of draw calls issued to GL in the last frame,
+    // including the batches.
+    public int getLastFrameDrawCallCount() {
+        return mLastFrameDrawCalls;
+    }
+
+    // Returns the number of batches issued to GL in the last frame.
+    public int getLastFrameBatchCount() {
+        return mLastFrameBatches;
+    }
+
+    // Returns the number of state changes (program, texture, blending,
+    // buffers, attributes and uniforms) issued to GL in the last frame.
+    public int getLastFrameStateCallCount() {
+        return mLastFrameStateCalls;
+    }
+
+    // Returns the number of state changes skipped in the last frame because
+    // they wouldn't have changed anything.
+    public int getLastFrameSkippedStateCallCount() {
+        return mLastFrameSkippedStateCalls;
+    }
+
+    @Override
+    public void getLastFrameMetrics(FrameMetrics metrics) {
+        FrameMetrics last = mLastFrameMetrics;
+        metrics.mDrawCalls = last.mDrawCalls;
+        metrics.mStateChanges = last.mStateChanges;
+        metrics.mTextureBinds = last.mTextureBinds;
+        metrics.mProgramSwitches = last.mProgramSwitches;
+        metrics.mFramebufferSwitches = last.mFramebufferSwitches;
+        metrics.mUploadedBytes = last.mUploadedBytes;
+        metrics.mUploadedTextures = last.mUploadedTextures;
+        metrics.mUploadTime = last.mUploadTime;
+    }
+
+    @Override
+    public long getTextureUploadTime() {
+        return mTextureUploadTime;
+    }
+
+    @Override
+    public long getTextureUploadBytes() {
+        return mTextureUploadBytes;
+    }
+
+    // Returns the number of pixels filled by the opaque draws in the last
+    // frame, on the screen and the render targets. The rectangles drawn are
+    // counted, not the meshes and the lines.
+    public float getLastFrameOpaqueFill() {
+        return mFillAccounting.getLastOpaqueFill();
+    }
+
+    // Returns the number of pixels filled by the blended draws in the last
+    // frame, counted like getLastFrameOpaqueFill().
+    public float getLastFrameBlendedFill() {
+        return mFillAccounting.getLastBlendedFill();
+    }
+
+    // Returns the pixels filled in the last frame per pixel of the screen.
+    public float getLastFrameOverdraw() {
+        return mFillAccounting.getLastOverdraw();
+    }
+
+    /**
+     * Enables or disables the overdraw heatmap, which is drawn over each
+     * frame: the areas drawn twice are tinted blue, three times green, four
+     * times pink and five or more times red. The frames are drawn in full
+     * while it is enabled.
+     */
+    public void setOverdrawHeatmapEnabled(boolean enabled) {
+        mFillAccounting.setHeatmapEnabled(enabled);
+    }
+
+    public boolean isOverdrawHeatmapEnabled() {
+        return mFillAccounting.isHeatmapEnabled();
+    }
+
+    // Adds the rectangle drawn with the current matrix to the fill of the
+    // frame, clipped to the scissor.
+    private void accountFill(float x, float y, float width, float height, boolean blending) {
+        if (mDrawingHeatmap) return;
+        RectF bounds = mTempBounds;
+        mapRect(x, y, width, height, bounds);
+        Rect scissor = mScissor;
+        float left = Math.max(bounds.left, scissor.left);
+        float bottom = Math.max(bounds.top, scissor.top);
+        float right = Math.min(bounds.right, scissor.right);
+        float top = Math.min(bounds.bottom, scissor.bottom);
+        if (left >= right || bottom >= top) return;
+        float area = (right - left) * (top - bottom);
+        if (mMatrixIsAffine[mCurrentMatrixLevel]) {
+            // The bounds of a rotated or skewed rectangle are larger than it.
+            float[] a = mAffines;
+            int i = mCurrentAffineIndex;
+            float exact = Math.abs((a[i] * a[i + 3] - a[i + 1] * a[i + 2]) * width * height);
+            area *= exact / (bounds.width() * bounds.height());
+        }
+        mFillAccounting.add(area, blending, getTargetTexture() == null, left, bottom, right,
+                top);
+    }
+
+    private void drawHeatmap() {
+        FillAccounting fill = mFillAccounting;
+        int size = FillAccounting.CELL_SIZE;
+        mDrawingHeatmap = true;
+        save(SAVE_FLAG_ALPHA);
+        setAlpha(1f);
+        for (int row = 0, rows = fill.getRows(); row < rows; row++) {
+            // The rows are counted from the bottom of the screen.
+            int y = mScreenHeight - (row + 1) * size;
+            for (int column = 0, columns = fill.getColumns(); column < columns; column++) {
+                int level = Math.round(fill.getCoverage(column, row)) - 2;
+                if (level < 0) continue;
+                int color = HEATMAP_COLORS[Math.min(level, HEATMAP_COLORS.length - 1)];
+                fillRect(column * size, y, size, size, color);
+            }
+        }
+        restore();
+        mDrawingHeatmap = false;
     }
 
     @Override
     public void clearBuffer() {
-        GLES20.glClearColor(0f, 0f, 0f, 1f);
-        checkError();
-        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
-        checkError();
+        flushBatch();
+        mGL.glClearColor(0f, 0f, 0f, 1f);
+        mGL.glClear(GLES20.GL_COLOR_BUFFER_BIT);
     }
 
     @Override
     public void clearBuffer(float[] argb) {
-        GLES20.glClearColor(argb[1], argb[2], argb[3], argb[0]);
-        checkError();
-        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
-        checkError();
+        flushBatch();
+        mGL.glClearColor(argb[1], argb[2], argb[3], argb[0]);
+        mGL.glClear(GLES20.GL_COLOR_BUFFER_BIT);
     }
 
     @Override
@@ -377,8 +1305,35 @@ public class GLES20Canvas implements GLCanvas {
         setAlpha(getAlpha() * alpha);
     }
 
+    private void resetMatrix() {
+        MatrixUtils.setAffineIdentity(mAffines, mCurrentAffineIndex);
+        mMatrixIsAffine[mCurrentMatrixLevel] = true;
+    }
+
+    // Makes mMatrices hold the current transform, which then stays there.
+    private void leaveAffine() {
+        if (mMatrixIsAffine[mCurrentMatrixLevel]) {
+            MatrixUtils.affineToMatrix(mAffines, mCurrentAffineIndex, mMatrices,
+                    mCurrentMatrixIndex);
+            mMatrixIsAffine[mCurrentMatrixLevel] = false;
+        }
+    }
+
+    private void mapRect(float x, float y, float width, float height, RectF out) {
+        if (mMatrixIsAffine[mCurrentMatrixLevel]) {
+            MatrixUtils.mapAffineRect(mAffines, mCurrentAffineIndex, x, y, width, height, out);
+        } else {
+            MatrixUtils.mapRect(mMatrices, mCurrentMatrixIndex, x, y, width, height, out);
+        }
+    }
+
     @Override
     public void translate(float x, float y, float z) {
+        if (z == 0f) {
+            translate(x, y);
+            return;
+        }
+        leaveAffine();
         Matrix.translateM(mMatrices, mCurrentMatrixIndex, x, y, z);
     }
 
@@ -387,6 +1342,10 @@ public class GLES20Canvas implements GLCanvas {
     // (3) we unroll the loop
     @Override
     public void translate(float x, float y) {
+        if (mMatrixIsAffine[mCurrentMatrixLevel]) {
+            MatrixUtils.affineTranslate(mAffines, mCurrentAffineIndex, x, y);
+            return;
+        }
         int index = mCurrentMatrixIndex;
         float[] m = mMatrices;
         m[index + 12] += m[index + 0] * x + m[index + 4] * y;
@@ -397,6 +1356,11 @@ public class GLES20Canvas implements GLCanvas {
 
     @Override
     public void scale(float sx, float sy, float sz) {
+        if (sz == 1f && mMatrixIsAffine[mCurrentMatrixLevel]) {
+            MatrixUtils.affineScale(mAffines, mCurrentAffineIndex, sx, sy);
+            return;
+        }
+        leaveAffine();
         Matrix.scaleM(mMatrices, mCurrentMatrixIndex, sx, sy, sz);
     }
 
@@ -405,6 +1369,11 @@ public class GLES20Canvas implements GLCanvas {
         if (angle == 0f) {
             return;
         }
+        if (x == 0f && y == 0f && z != 0f && mMatrixIsAffine[mCurrentMatrixLevel]) {
+            MatrixUtils.affineRotate(mAffines, mCurrentAffineIndex, z > 0f ? angle : -angle);
+            return;
+        }
+        leaveAffine();
         float[] temp = mTempMatrix;
         Matrix.setRotateM(temp, 0, angle, x, y, z);
         float[] matrix = mMatrices;
@@ -415,6 +1384,11 @@ public class GLES20Canvas implements GLCanvas {
 
     @Override
     public void multiplyMatrix(float[] matrix, int offset) {
+        if (mMatrixIsAffine[mCurrentMatrixLevel] && MatrixUtils.isAffine(matrix, offset)) {
+            MatrixUtils.affineConcat(mAffines, mCurrentAffineIndex, matrix, offset);
+            return;
+        }
+        leaveAffine();
         float[] temp = mTempMatrix;
         float[] currentMatrix = mMatrices;
         int index = mCurrentMatrixIndex;
@@ -441,11 +1415,33 @@ public class GLES20Canvas implements GLCanvas {
         boolean saveMatrix = (saveFlags & SAVE_FLAG_MATRIX) == SAVE_FLAG_MATRIX;
         if (saveMatrix) {
             int currentIndex = mCurrentMatrixIndex;
+            int currentAffineIndex = mCurrentAffineIndex;
+            boolean affine = mMatrixIsAffine[mCurrentMatrixLevel];
             mCurrentMatrixIndex += MATRIX_SIZE;
-            if (mMatrices.length <= mCurrentMatrixIndex) {
+            mCurrentAffineIndex += AFFINE_SIZE;
+            mCurrentMatrixLevel++;
+            if (mMatrixIsAffine.length <= mCurrentMatrixLevel) {
                 mMatrices = Arrays.copyOf(mMatrices, mMatrices.length * 2);
+                mAffines = Arrays.copyOf(mAffines, mAffines.length * 2);
+                mMatrixIsAffine = Arrays.copyOf(mMatrixIsAffine, mMatrixIsAffine.length * 2);
+            }
+            mMatrixIsAffine[mCurrentMatrixLevel] = affine;
+            if (affine) {
+                System.arraycopy(mAffines, currentAffineIndex, mAffines, mCurrentAffineIndex,
+                        AFFINE_SIZE);
+            } else {
+                System.arraycopy(mMatrices, currentIndex, mMatrices, mCurrentMatrixIndex,
+                        MATRIX_SIZE);
             }
-            System.arraycopy(mMatrices, currentIndex, mMatrices, mCurrentMatrixIndex, MATRIX_SIZE);
+        }
+        boolean saveClip = (saveFlags & SAVE_FLAG_CLIP) == SAVE_FLAG_CLIP;
+        if (saveClip) {
+            int currentIndex = mCurrentClipIndex;
+            mCurrentClipIndex += CLIP_SIZE;
+            if (mClips.length <= mCurrentClipIndex) {
+                mClips = Arrays.copyOf(mClips, mClips.length * 2);
+            }
+            System.arraycopy(mClips, currentIndex, mClips, mCurrentClipIndex, CLIP_SIZE);
         }
         mSaveFlags.add(saveFlags);
     }
@@ -460,20 +1456,31 @@ public class GLES20Canvas implements GLCanvas {
         boolean restoreMatrix = (restoreFlags & SAVE_FLAG_MATRIX) == SAVE_FLAG_MATRIX;
         if (restoreMatrix) {
             mCurrentMatrixIndex -= MATRIX_SIZE;
+            mCurrentAffineIndex -= AFFINE_SIZE;
+            mCurrentMatrixLevel--;
+        }
+        boolean restoreClip = (restoreFlags & SAVE_FLAG_CLIP) == SAVE_FLAG_CLIP;
+        if (restoreClip) {
+            mCurrentClipIndex -= CLIP_SIZE;
+            updateScissor();
         }
     }
 
     @Override
     public void drawLine(float x1, float y1, float x2, float y2, GLPaint paint) {
+        flushBatch();
         draw(GLES20.GL_LINE_STRIP, OFFSET_DRAW_LINE, COUNT_LINE_VERTEX, x1, y1, x2 - x1, y2 - y1,
                 paint);
         mCountDrawLine++;
+        mFrameDraws++;
     }
 
     @Override
     public void drawRect(float x, float y, float width, float height, GLPaint paint) {
+        flushBatch();
         draw(GLES20.GL_LINE_LOOP, OFFSET_DRAW_RECT, COUNT_RECT_VERTEX, x, y, width, height, paint);
         mCountDrawLine++;
+        mFrameDraws++;
     }
 
     private void draw(int type, int offset, int count, float x, float y, float width, float height,
@@ -488,23 +1495,19 @@ public class GLES20Canvas implements GLCanvas {
     }
 
     private void prepareDraw(int offset, int color, float lineWidth) {
-        GLES20.glUseProgram(mDrawProgram);
-        checkError();
+        mGLState.useProgram(mDrawProgram.getId());
         if (lineWidth > 0) {
-            GLES20.glLineWidth(lineWidth);
-            checkError();
+            mGLState.setLineWidth(lineWidth);
         }
         float[] colorArray = getColor(color);
         boolean blendingEnabled = (colorArray[3] < 1f);
-        enableBlending(blendingEnabled);
+        mGLState.setBlendEnabled(blendingEnabled);
         if (blendingEnabled) {
-            GLES20.glBlendColor(colorArray[0], colorArray[1], colorArray[2], colorArray[3]);
-            checkError();
+            mGL.glBlendColor(colorArray[0], colorArray[1], colorArray[2], colorArray[3]);
         }
 
-        GLES20.glUniform4fv(mDrawParameters[INDEX_COLOR].handle, 1, colorArray, 0);
+        mGLState.uniform4fv(mDrawParameters[INDEX_COLOR], colorArray, 0);
         setPosition(mDrawParameters, offset);
-        checkError();
     }
 
     private float[] getColor(int color) {
@@ -519,48 +1522,57 @@ public class GLES20Canvas implements GLCanvas {
         return mTempColor;
     }
 
-    private void enableBlending(boolean enableBlending) {
-        if (enableBlending) {
-            GLES20.glEnable(GLES20.GL_BLEND);
-            checkError();
-        } else {
-            GLES20.glDisable(GLES20.GL_BLEND);
-            checkError();
-        }
+    private void setPosition(ShaderParameter[] params, int offset) {
+        mGLState.vertexAttribPointer(params[INDEX_POSITION].handle, COORDS_PER_VERTEX,
+                VERTEX_STRIDE, mBoxCoordinates, offset * VERTEX_STRIDE);
     }
 
-    private void setPosition(ShaderParameter[] params, int offset) {
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mBoxCoordinates);
-        checkError();
-        GLES20.glVertexAttribPointer(params[INDEX_POSITION].handle, COORDS_PER_VERTEX,
-                GLES20.GL_FLOAT, false, VERTEX_STRIDE, offset * VERTEX_STRIDE);
-        checkError();
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
-        checkError();
+    private static int attributeBit(int handle) {
+        return handle < 0 ? 0 : 1 << handle;
     }
 
     private void draw(ShaderParameter[] params, int type, int count, float x, float y, float width,
             float height) {
         setMatrix(params, x, y, width, height);
-        int positionHandle = params[INDEX_POSITION].handle;
-        GLES20.glEnableVertexAttribArray(positionHandle);
-        checkError();
-        GLES20.glDrawArrays(type, 0, count);
-        checkError();
-        GLES20.glDisableVertexAttribArray(positionHandle);
-        checkError();
+        mGLState.setAttributeArrays(attributeBit(params[INDEX_POSITION].handle));
+        mGL.glDrawArrays(type, 0, count);
+        mFrameDrawCalls++;
     }
 
     private void setMatrix(ShaderParameter[] params, float x, float y, float width, float height) {
-        Matrix.translateM(mTempMatrix, 0, mMatrices, mCurrentMatrixIndex, x, y, 0f);
-        Matrix.scaleM(mTempMatrix, 0, width, height, 1f);
-        Matrix.multiplyMM(mTempMatrix, MATRIX_SIZE, mProjectionMatrix, 0, mTempMatrix, 0);
-        GLES20.glUniformMatrix4fv(params[INDEX_MATRIX].handle, 1, false, mTempMatrix, MATRIX_SIZE);
-        checkError();
+        computeMvp(mTempMatrix, MATRIX_SIZE, x, y, width, height);
+        mGLState.uniformMatrix4fv(params[INDEX_MATRIX], mTempMatrix, MATRIX_SIZE);
+    }
+
+    // Computes projection * current matrix * translate(x, y) * scale(width,
+    // height) into out at the offset, which must be 0 or MATRIX_SIZE as
+    // mTempMatrix is used.
+    private void computeMvp(float[] out, int offset, float x, float y, float width,
+            float height) {
+        if (mMatrixIsAffine[mCurrentMatrixLevel]) {
+            MatrixUtils.affineMvp(out, offset, mProjectionMatrix, mAffines, mCurrentAffineIndex,
+                    x, y, width, height);
+            return;
+        }
+        float[] temp = mTempMatrix;
+        int tempOffset = MATRIX_SIZE - offset;
+        Matrix.translateM(temp, tempOffset, mMatrices, mCurrentMatrixIndex, x, y, 0f);
+        Matrix.scaleM(temp, tempOffset, width, height, 1f);
+        Matrix.multiplyMM(out, offset, mProjectionMatrix, 0, temp, tempOffset);
     }
 
     @Override
     public void fillRect(float x, float y, float width, float height, int color) {
+        if (isClippedOut(x, y, width, height)) return;
+        mFrameDraws++;
+        float[] colorArray = getColor(color);
+        accountFill(x, y, width, height, colorArray[3] < 1f);
+        if (mBatchingEnabled) {
+            prepareBatch(mBatchDrawProgram.getId(), mBatchDrawParameters, 0, colorArray[3] < 1f);
+            appendQuad(x, y, width, height, null, colorArray);
+            mCountFillRect++;
+            return;
+        }
         draw(GLES20.GL_TRIANGLE_STRIP, OFFSET_FILL_RECT, COUNT_FILL_VERTEX, x, y, width, height,
                 color, 0f);
         mCountFillRect++;
@@ -571,6 +1583,9 @@ public class GLES20Canvas implements GLCanvas {
         if (width <= 0 || height <= 0) {
             return;
         }
+        // onBind() may pack the texture into an atlas page, which sets its
+        // coordinates, so it has to be done before they are read.
+        texture.onBind(this);
         copyTextureCoordinates(texture, mTempSourceRect);
         mTempTargetRect.set(x, y, x + width, y + height);
         convertCoordinate(mTempSourceRect, mTempTargetRect, texture);
@@ -596,6 +1611,7 @@ public class GLES20Canvas implements GLCanvas {
         if (target.width() <= 0 || target.height() <= 0) {
             return;
         }
+        texture.onBind(this);
         mTempSourceRect.set(source);
         mTempTargetRect.set(target);
 
@@ -603,12 +1619,44 @@ public class GLES20Canvas implements GLCanvas {
         drawTextureRect(texture, mTempSourceRect, mTempTargetRect);
     }
 
+    @Override
+    public void drawTintedTexture(BasicTexture texture, RectF target, int color) {
+        if (target.width() <= 0 || target.height() <= 0) {
+            return;
+        }
+        Utils.assertTrue(texture.getTarget() == GLES20.GL_TEXTURE_2D);
+        texture.onBind(this);
+        copyTextureCoordinates(texture, mTempSourceRect);
+        mTempTargetRect.set(target);
+        convertCoordinate(mTempSourceRect, mTempTargetRect, texture);
+        target = mTempTargetRect;
+        if (isClippedOut(target.left, target.top, target.width(), target.height())) return;
+        mFrameDraws++;
+        accountFill(target.left, target.top, target.width(), target.height(), true);
+
+        // The color is applied by the batch shader, so the quad always goes
+        // through a batch, which is drawn at once when batching is disabled.
+        setTextureMatrix(mTempSourceRect);
+        float[] colorArray = getColor(color);
+        prepareBatch(mBatchTextureProgram.getId(), mBatchTextureParameters, texture.getId(), true);
+        if (texture.isFlippedVertically()) {
+            appendQuad(target.left, target.bottom, target.width(), -target.height(),
+                    mTempTextureMatrix, colorArray);
+        } else {
+            appendQuad(target.left, target.top, target.width(), target.height(),
+                    mTempTextureMatrix, colorArray);
+        }
+        if (!mBatchingEnabled) flushBatch();
+        mCountTextureRect++;
+    }
+
     @Override
     public void drawTexture(BasicTexture texture, float[] textureTransform, int x, int y, int w,
             int h) {
         if (w <= 0 || h <= 0) {
             return;
         }
+        texture.onBind(this);
         mTempTargetRect.set(x, y, x + w, y + h);
         drawTextureRect(texture, textureTransform, mTempTargetRect);
     }
@@ -633,19 +1681,21 @@ public class GLES20Canvas implements GLCanvas {
         int height = texture.getHeight();
         int texWidth = texture.getTextureWidth();
         int texHeight = texture.getTextureHeight();
+        int xOffset = texture.getTextureOffsetX();
+        int yOffset = texture.getTextureOffsetY();
         // Convert to texture coordinates
-        source.left /= texWidth;
-        source.right /= texWidth;
-        source.top /= texHeight;
-        source.bottom /= texHeight;
+        source.left = (source.left + xOffset) / texWidth;
+        source.right = (source.right + xOffset) / texWidth;
+        source.top = (source.top + yOffset) / texHeight;
+        source.bottom = (source.bottom + yOffset) / texHeight;
 
         // Clip if the rendering range is beyond the bound of the texture.
-        float xBound = (float) width / texWidth;
+        float xBound = (float) (width + xOffset) / texWidth;
         if (source.right > xBound) {
             target.right = target.left + target.width() * (xBound - source.left) / source.width();
             source.right = xBound;
         }
-        float yBound = (float) height / texHeight;
+        float yBound = (float) (height + yOffset) / texHeight;
         if (source.bottom > yBound) {
             target.bottom = target.top + target.height() * (yBound - source.top) / source.height();
             source.bottom = yBound;
@@ -653,10 +1703,25 @@ public class GLES20Canvas implements GLCanvas {
     }
 
     private void drawTextureRect(BasicTexture texture, float[] textureMatrix, RectF target) {
+        if (isClippedOut(target.left, target.top, target.width(), target.height())) return;
+        mFrameDraws++;
+        accountFill(target.left, target.top, target.width(), target.height(),
+                !texture.isOpaque() || getAlpha() < OPAQUE_ALPHA);
+        if (mBatchingEnabled && texture.getTarget() == GLES20.GL_TEXTURE_2D) {
+            batchTextureRect(texture, textureMatrix, target);
+            return;
+        }
+        flushBatch();
         ShaderParameter[] params = prepareTexture(texture);
+        drawBoundTextureRect(texture, params, textureMatrix, target);
+    }
+
+    // Draws the target rectangle with the program of the parameters, which
+    // is ready except for the position and the texture matrix.
+    private void drawBoundTextureRect(BasicTexture texture, ShaderParameter[] params,
+            float[] textureMatrix, RectF target) {
         setPosition(params, OFFSET_FILL_RECT);
-        GLES20.glUniformMatrix4fv(params[INDEX_TEXTURE_MATRIX].handle, 1, false, textureMatrix, 0);
-        checkError();
+        mGLState.uniformMatrix4fv(params[INDEX_TEXTURE_MATRIX], textureMatrix, 0);
         if (texture.isFlippedVertically()) {
             save(SAVE_FLAG_MATRIX);
             translate(0, target.centerY());
@@ -671,9 +1736,233 @@ public class GLES20Canvas implements GLCanvas {
         mCountTextureRect++;
     }
 
+    // The texture must be bound by the caller, as onBind() may upload it and
+    // change its id, which is the key of the batch.
+    private void batchTextureRect(BasicTexture texture, float[] textureMatrix, RectF target) {
+        float alpha = getAlpha();
+        boolean blending = !texture.isOpaque() || alpha < OPAQUE_ALPHA;
+        prepareBatch(mBatchTextureProgram.getId(), mBatchTextureParameters, texture.getId(), blending);
+        float[] color = mTempColor;
+        color[0] = alpha;
+        color[1] = alpha;
+        color[2] = alpha;
+        color[3] = alpha;
+        if (texture.isFlippedVertically()) {
+            appendQuad(target.left, target.bottom, target.width(), -target.height(),
+                    textureMatrix, color);
+        } else {
+            appendQuad(target.left, target.top, target.width(), target.height(),
+                    textureMatrix, color);
+        }
+        mCountTextureRect++;
+    }
+
+    // Starts a new batch if the pending one doesn't match the given state.
+    private void prepareBatch(int program, ShaderParameter[] params, int textureId,
+            boolean blending) {
+        if (mBatchQuadCount > 0 && (mBatchProgram != program || mBatchTextureId != textureId
+                || mBatchBlending != blending || mBatchQuadCount == BATCH_MAX_QUADS)) {
+            if (isDepthOrdering()) {
+                deferBatch();
+            } else {
+                flushBatch();
+            }
+        }
+        if (isDepthOrdering() && mDepth <= -1f + DEPTH_STEP) {
+            // Out of depths: draw what is held back and start over.
+            flushBatch();
+            clearDepth();
+        }
+        mBatchProgram = program;
+        mBatchParameters = params;
+        mBatchTextureId = textureId;
+        mBatchBlending = blending;
+    }
+
+    // Appends the quad [x, x+width) * [y, y+height) transformed by the current
+    // matrix. The texture coordinates are the unit square transformed by
+    // textureMatrix, which may be null if the program doesn't sample.
+    private void appendQuad(float x, float y, float width, float height, float[] textureMatrix,
+            float[] color) {
+        float[] m = mTempMatrix;
+        computeMvp(m, 0, 0, 0, 1, 1);
+        float[] data = mBatchData;
+        int index = mBatchQuadCount * BATCH_FLOATS_PER_QUAD;
+        boolean depthOrdering = isDepthOrdering();
+        float depth = mDepth;
+        for (int i = 0; i < COUNT_FILL_VERTEX; i++) {
+            float u = BOX_COORDINATES[i * COORDS_PER_VERTEX];
+            float v = BOX_COORDINATES[i * COORDS_PER_VERTEX + 1];
+            float px = x + u * width;
+            float py = y + v * height;
+            data[index] = m[0] * px + m[4] * py + m[12];
+            data[index + 1] = m[1] * px + m[5] * py + m[13];
+            data[index + 2] = m[2] * px + m[6] * py + m[14];
+            data[index + 3] = m[3] * px + m[7] * py + m[15];
+            if (depthOrdering) {
+                // The depth in clip space, so it comes out of the division
+                // by w unchanged.
+                data[index + 2] = depth * data[index + 3];
+            }
+            if (textureMatrix != null) {
+                data[index + 4] = textureMatrix[0] * u + textureMatrix[4] * v + textureMatrix[12];
+                data[index + 5] = textureMatrix[1] * u + textureMatrix[5] * v + textureMatrix[13];
+            } else {
+                data[index + 4] = 0f;
+                data[index + 5] = 0f;
+            }
+            data[index + 6] = color[0];
+            data[index + 7] = color[1];
+            data[index + 8] = color[2];
+            data[index + 9] = color[3];
+            index += BATCH_FLOATS_PER_VERTEX;
+        }
+        if (depthOrdering) mDepth -= DEPTH_STEP;
+        mBatchQuadCount++;
+    }
+
+    // Submits the pending batch, if any, as one draw call, and in depth
+    // ordering the ones held back before it.
+    private void flushBatch() {
+        if (mDepthRunCount > 0 || (mBatchQuadCount > 0 && isDepthOrdering())) {
+            deferBatch();
+            drawDepthRuns();
+            return;
+        }
+        int quadCount = mBatchQuadCount;
+        if (quadCount == 0) {
+            return;
+        }
+        mBatchQuadCount = 0;
+        drawBatch(mBatchProgram, mBatchParameters, mBatchTextureId, mBatchBlending, mBatchData,
+                quadCount);
+    }
+
+    private boolean isDepthOrdering() {
+        // The render targets have no depth buffer.
+        return mDepthOrderingEnabled && getTargetTexture() == null;
+    }
+
+    // Holds the pending batch back until the next flush.
+    private void deferBatch() {
+        int quadCount = mBatchQuadCount;
+        if (quadCount == 0) {
+            return;
+        }
+        mBatchQuadCount = 0;
+        int offset = mDepthQuadCount * BATCH_FLOATS_PER_QUAD;
+        int floatCount = quadCount * BATCH_FLOATS_PER_QUAD;
+        if (offset + floatCount > mDepthData.length) {
+            mDepthData = Arrays.copyOf(mDepthData, 2 * mDepthData.length);
+        }
+        System.arraycopy(mBatchData, 0, mDepthData, offset, floatCount);
+        if (mDepthRunCount == mDepthRuns.size()) {
+            mDepthRuns.add(new DepthRun());
+        }
+        DepthRun run = mDepthRuns.get(mDepthRunCount++);
+        run.program = mBatchProgram;
+        run.params = mBatchParameters;
+        run.textureId = mBatchTextureId;
+        run.blending = mBatchBlending;
+        run.firstQuad = mDepthQuadCount;
+        run.quadCount = quadCount;
+        mDepthQuadCount += quadCount;
+    }
+
+    // Draws the batches held back: the opaque ones front to back, writing
+    // the depth, then the translucent ones back to front, only testing it.
+    private void drawDepthRuns() {
+        ArrayList<DepthRun> runs = mDepthRuns;
+        float[] data = mDepthData;
+        mGLState.setDepthTestEnabled(true);
+        mGLState.setDepthMask(true);
+        for (int i = mDepthRunCount - 1; i >= 0; i--) {
+            DepthRun run = runs.get(i);
+            if (run.blending) continue;
+            // The quads of the run are reversed into mBatchData, which is
+            // free until the next quad.
+            float[] reversed = mBatchData;
+            for (int j = 0, n = run.quadCount; j < n; j++) {
+                System.arraycopy(data, (run.firstQuad + n - 1 - j) * BATCH_FLOATS_PER_QUAD,
+                        reversed, j * BATCH_FLOATS_PER_QUAD, BATCH_FLOATS_PER_QUAD);
+            }
+            drawBatch(run.program, run.params, run.textureId, false, reversed, run.quadCount);
+        }
+        mGLState.setDepthMask(false);
+        for (int i = 0; i < mDepthRunCount; i++) {
+            DepthRun run = runs.get(i);
+            if (!run.blending) continue;
+            System.arraycopy(data, run.firstQuad * BATCH_FLOATS_PER_QUAD, mBatchData, 0,
+                    run.quadCount * BATCH_FLOATS_PER_QUAD);
+            drawBatch(run.program, run.params, run.textureId, true, mBatchData, run.quadCount);
+        }
+        mGLState.setDepthTestEnabled(false);
+        for (int i = 0; i < mDepthRunCount; i++) {
+            runs.get(i).params = null;
+        }
+        mDepthRunCount = 0;
+        mDepthQuadCount = 0;
+    }
+
+    // Clears the depth buffer of the screen, and restarts the depths.
+    private void clearDepth() {
+        mDepth = 1f - DEPTH_STEP;
+        if (getTargetTexture() != null) {
+            // The screen is cleared when the depths are used on it.
+            mDepth = -1f;
+            return;
+        }
+        // The clear is not limited by the scissor or the depth mask.
+        mGLState.setScissorEnabled(false);
+        mGLState.setDepthMask(true);
+        mGL.glClear(GLES20.GL_DEPTH_BUFFER_BIT);
+        mGLState.setScissorEnabled(mScissorEnabled);
+    }
+
+    // Draws the first quadCount quads of data as one draw call.
+    private void drawBatch(int program, ShaderParameter[] params, int textureId,
+            boolean blending, float[] data, int quadCount) {
+        mGLState.useProgram(program);
+        mGLState.setBlendEnabled(blending);
+        if (textureId != 0) {
+            mGLState.setActiveTexture(GLES20.GL_TEXTURE0);
+            mGLState.bindTexture(GLES20.GL_TEXTURE_2D, textureId);
+            mGLState.uniform1i(params[INDEX_BATCH_TEXTURE_SAMPLER], 0);
+        }
+
+        int floatCount = quadCount * BATCH_FLOATS_PER_QUAD;
+        mBatchBuffer.put(data, 0, floatCount).position(0);
+        mGLState.bindArrayBuffer(mBatchVertexBuffer);
+        // Respecify the whole store so the driver doesn't have to wait for
+        // the previous batch to finish reading it.
+        mGL.glBufferData(GLES20.GL_ARRAY_BUFFER, mBatchData.length * FLOAT_SIZE, null,
+                GLES20.GL_STREAM_DRAW);
+        mGL.glBufferSubData(GLES20.GL_ARRAY_BUFFER, 0, floatCount * FLOAT_SIZE, mBatchBuffer);
+        mUploadedBytes += floatCount * FLOAT_SIZE;
+        int positionHandle = params[INDEX_POSITION].handle;
+        int texCoordHandle = params[INDEX_BATCH_TEXTURE_COORD].handle;
+        int colorHandle = params[INDEX_BATCH_COLOR].handle;
+        setBatchAttribute(positionHandle, 4, 0);
+        setBatchAttribute(texCoordHandle, 2, BATCH_OFFSET_TEXTURE_COORD);
+        setBatchAttribute(colorHandle, 4, BATCH_OFFSET_COLOR);
+        mGLState.setAttributeArrays(attributeBit(positionHandle) | attributeBit(texCoordHandle)
+                | attributeBit(colorHandle));
+
+        mGLState.bindElementArrayBuffer(mBatchIndexBuffer);
+        mGL.glDrawElements(GLES20.GL_TRIANGLES, quadCount * BATCH_INDICES_PER_QUAD,
+                GLES20.GL_UNSIGNED_SHORT, 0);
+        mFrameDrawCalls++;
+        mFrameBatches++;
+    }
+
+    private void setBatchAttribute(int handle, int size, int offset) {
+        mGLState.vertexAttribPointer(handle, size, BATCH_VERTEX_STRIDE, mBatchVertexBuffer,
+                offset * FLOAT_SIZE);
+    }
+
     private ShaderParameter[] prepareTexture(BasicTexture texture) {
         ShaderParameter[] params;
-        int program;
+        Program program;
         if (texture.getTarget() == GLES20.GL_TEXTURE_2D) {
             params = mTextureParameters;
             program = mTextureProgram;
@@ -681,64 +1970,158 @@ public class GLES20Canvas implements GLCanvas {
             params = mOesTextureParameters;
             program = mOesTextureProgram;
         }
-        prepareTexture(texture, program, params);
+        prepareTexture(texture, program.getId(), params);
         return params;
     }
 
     private void prepareTexture(BasicTexture texture, int program, ShaderParameter[] params) {
-        GLES20.glUseProgram(program);
-        checkError();
-        enableBlending(!texture.isOpaque() || getAlpha() < OPAQUE_ALPHA);
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-        checkError();
+        mGLState.useProgram(program);
+        mGLState.setBlendEnabled(!texture.isOpaque() || getAlpha() < OPAQUE_ALPHA);
+        mGLState.setActiveTexture(GLES20.GL_TEXTURE0);
         texture.onBind(this);
-        GLES20.glBindTexture(texture.getTarget(), texture.getId());
-        checkError();
-        GLES20.glUniform1i(params[INDEX_TEXTURE_SAMPLER].handle, 0);
-        checkError();
-        GLES20.glUniform1f(params[INDEX_ALPHA].handle, getAlpha());
-        checkError();
+        mGLState.bindTexture(texture.getTarget(), texture.getId());
+        mGLState.uniform1i(params[INDEX_TEXTURE_SAMPLER], 0);
+        mGLState.uniform1f(params[INDEX_ALPHA], getAlpha());
     }
 
     @Override
     public void drawMesh(BasicTexture texture, int x, int y, int xyBuffer, int uvBuffer,
             int indexBuffer, int indexCount) {
-        prepareTexture(texture, mMeshProgram, mMeshParameters);
+        drawMesh(texture, x, y, GLES20.GL_TRIANGLE_STRIP, xyBuffer, 0, uvBuffer, 0,
+                VERTEX_STRIDE, indexBuffer, 0, GLES20.GL_UNSIGNED_BYTE, indexCount);
+    }
 
-        GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, indexBuffer);
-        checkError();
+    @Override
+    public void drawMesh(BasicTexture texture, int x, int y, float[] vertices, int offset,
+            int vertexCount, int indexBuffer, int indexCount) {
+        int first = mStreamBuffer.allocateVertices(vertexCount);
+        mStreamBuffer.getVertices().put(vertices, offset,
+                vertexCount * StreamBuffer.FLOATS_PER_VERTEX);
+        flushBatch();
+        uploadStream();
+        int byteOffset = first * STREAM_VERTEX_STRIDE;
+        drawMesh(texture, x, y, GLES20.GL_TRIANGLE_STRIP, mStreamVertexBuffer, byteOffset,
+                mStreamVertexBuffer, byteOffset + STREAM_OFFSET_TEXTURE_COORD,
+                STREAM_VERTEX_STRIDE, indexBuffer, 0, GLES20.GL_UNSIGNED_BYTE, indexCount);
+    }
 
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, xyBuffer);
-        checkError();
-        int positionHandle = mMeshParameters[INDEX_POSITION].handle;
-        GLES20.glVertexAttribPointer(positionHandle, COORDS_PER_VERTEX, GLES20.GL_FLOAT, false,
-                VERTEX_STRIDE, 0);
-        checkError();
+    @Override
+    public StreamBuffer getStreamBuffer() {
+        return mStreamBuffer;
+    }
 
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, uvBuffer);
-        checkError();
-        int texCoordHandle = mMeshParameters[INDEX_TEXTURE_COORD].handle;
-        GLES20.glVertexAttribPointer(texCoordHandle, COORDS_PER_VERTEX, GLES20.GL_FLOAT,
-                false, VERTEX_STRIDE, 0);
-        checkError();
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
-        checkError();
+    @Override
+    public void drawStreamMesh(BasicTexture texture, int x, int y, int mode, int vertexOffset,
+            int indexOffset, int indexCount) {
+        flushBatch();
+        uploadStream();
+        int byteOffset = vertexOffset * STREAM_VERTEX_STRIDE;
+        drawMesh(texture, x, y, mode, mStreamVertexBuffer, byteOffset, mStreamVertexBuffer,
+                byteOffset + STREAM_OFFSET_TEXTURE_COORD, STREAM_VERTEX_STRIDE,
+                mStreamIndexBuffer, indexOffset * SHORT_SIZE, GLES20.GL_UNSIGNED_SHORT,
+                indexCount);
+    }
+
+    // Uploads what was written to the stream buffer since the last draw.
+    // The buffers are created, and their stores specified, when first used
+    // and when a frame has filled its partition.
+    private void uploadStream() {
+        StreamBuffer.Ring ring = mStreamBuffer.getVertexRing();
+        if (ring.getPendingCount() > 0) {
+            if (mStreamVertexBuffer == 0) {
+                mGLId.glGenBuffers(1, mTempIntArray, 0);
+                mStreamVertexBuffer = mTempIntArray[0];
+            }
+            mGLState.bindArrayBuffer(mStreamVertexBuffer);
+            if (!ring.isStoreValid()) {
+                mGL.glBufferData(GLES20.GL_ARRAY_BUFFER,
+                        ring.getCapacity() * STREAM_VERTEX_STRIDE, null, GLES20.GL_STREAM_DRAW);
+            }
+            mGL.glBufferSubData(GLES20.GL_ARRAY_BUFFER,
+                    ring.getPendingOffset() * STREAM_VERTEX_STRIDE,
+                    ring.getPendingCount() * STREAM_VERTEX_STRIDE,
+                    mStreamBuffer.getPendingVertexData());
+            mUploadedBytes += ring.getPendingCount() * STREAM_VERTEX_STRIDE;
+            ring.onUploaded();
+        }
+        ring = mStreamBuffer.getIndexRing();
+        if (ring.getPendingCount() > 0) {
+            if (mStreamIndexBuffer == 0) {
+                mGLId.glGenBuffers(1, mTempIntArray, 0);
+                mStreamIndexBuffer = mTempIntArray[0];
+            }
+            mGLState.bindElementArrayBuffer(mStreamIndexBuffer);
+            if (!ring.isStoreValid()) {
+                mGL.glBufferData(GLES20.GL_ELEMENT_ARRAY_BUFFER,
+                        ring.getCapacity() * SHORT_SIZE, null, GLES20.GL_STREAM_DRAW);
+            }
+            mGL.glBufferSubData(GLES20.GL_ELEMENT_ARRAY_BUFFER,
+                    ring.getPendingOffset() * SHORT_SIZE, ring.getPendingCount() * SHORT_SIZE,
+                    mStreamBuffer.getPendingIndexData());
+            mUploadedBytes += ring.getPendingCount() * SHORT_SIZE;
+            ring.onUploaded();
+        }
+    }
 
-        GLES20.glEnableVertexAttribArray(positionHandle);
-        checkError();
-        GLES20.glEnableVertexAttribArray(texCoordHandle);
-        checkError();
+    @Override
+    public void drawStretchMesh(BasicTexture texture, StretchMesh mesh, int x, int y,
+            int width, int height) {
+        if (width <= 0 || height <= 0) return;
+        flushBatch();
+        accountFill(x, y, width, height, !texture.isOpaque() || getAlpha() < OPAQUE_ALPHA);
+        ShaderParameter[] params = mStretchParameters;
+        int vertexBuffer = mesh.getVertexBuffer(this);
+        prepareTexture(texture, mStretchProgram.getId(), params);
+
+        mGLState.bindElementArrayBuffer(mesh.getIndexBuffer(this));
+
+        int stride = StretchMesh.FLOATS_PER_VERTEX * FLOAT_SIZE;
+        int positionHandle = params[INDEX_POSITION].handle;
+        mGLState.vertexAttribPointer(positionHandle, 4, stride, vertexBuffer, 0);
+        int insetHandle = params[INDEX_INSET].handle;
+        mGLState.vertexAttribPointer(insetHandle, COORDS_PER_VERTEX, stride, vertexBuffer,
+                StretchMesh.OFFSET_INSET * FLOAT_SIZE);
+        int texCoordHandle = params[INDEX_TEXTURE_COORD].handle;
+        mGLState.vertexAttribPointer(texCoordHandle, COORDS_PER_VERTEX, stride, vertexBuffer,
+                StretchMesh.OFFSET_TEXTURE_COORD * FLOAT_SIZE);
+        mGLState.setAttributeArrays(attributeBit(positionHandle) | attributeBit(insetHandle)
+                | attributeBit(texCoordHandle));
+
+        float[] stretch = mTempColor;
+        stretch[0] = mesh.getStretchScaleX(width);
+        stretch[1] = mesh.getStretchScaleY(height);
+        stretch[2] = 0;
+        stretch[3] = 0;
+        mGLState.uniform4fv(params[INDEX_STRETCH], stretch, 0);
+
+        setMatrix(params, x, y, mesh.getShrinkScaleX(width), mesh.getShrinkScaleY(height));
+        mGL.glDrawElements(GLES20.GL_TRIANGLE_STRIP, mesh.getIndexCount(),
+                GLES20.GL_UNSIGNED_BYTE, 0);
+        mFrameDrawCalls++;
+        mFrameDraws++;
+        mCountDrawMesh++;
+    }
+
+    private void drawMesh(BasicTexture texture, int x, int y, int mode, int xyBuffer,
+            int xyOffset, int uvBuffer, int uvOffset, int stride, int indexBuffer,
+            int indexOffset, int indexType, int indexCount) {
+        flushBatch();
+        prepareTexture(texture, mMeshProgram.getId(), mMeshParameters);
+
+        mGLState.bindElementArrayBuffer(indexBuffer);
+
+        int positionHandle = mMeshParameters[INDEX_POSITION].handle;
+        mGLState.vertexAttribPointer(positionHandle, COORDS_PER_VERTEX, stride, xyBuffer,
+                xyOffset);
+        int texCoordHandle = mMeshParameters[INDEX_TEXTURE_COORD].handle;
+        mGLState.vertexAttribPointer(texCoordHandle, COORDS_PER_VERTEX, stride, uvBuffer,
+                uvOffset);
+        mGLState.setAttributeArrays(attributeBit(positionHandle) | attributeBit(texCoordHandle));
 
         setMatrix(mMeshParameters, x, y, 1, 1);
-        GLES20.glDrawElements(GLES20.GL_TRIANGLE_STRIP, indexCount, GLES20.GL_UNSIGNED_BYTE, 0);
-        checkError();
-
-        GLES20.glDisableVertexAttribArray(positionHandle);
-        checkError();
-        GLES20.glDisableVertexAttribArray(texCoordHandle);
-        checkError();
-        GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
-        checkError();
+        mGL.glDrawElements(mode, indexCount, indexType, indexOffset);
+        mFrameDrawCalls++;
+        mFrameDraws++;
         mCountDrawMesh++;
     }
 
@@ -751,13 +2134,34 @@ public class GLES20Canvas implements GLCanvas {
 
     @Override
     public void drawMixed(BasicTexture texture, int toColor, float ratio, RectF source, RectF target) {
-        if (target.width() <= 0 || target.height() <= 0) {
+        if (target.width() <= 0 || target.height() <= 0
+                || isClippedOut(target.left, target.top, target.width(), target.height())) {
+            return;
+        }
+        texture.onBind(this);
+        float cappedRatio = Math.min(1f, Math.max(0f, ratio));
+        if (texture.getTarget() == GLES20.GL_TEXTURE_2D) {
+            mTempSourceRect.set(source);
+            mTempTargetRect.set(target);
+            convertCoordinate(mTempSourceRect, mTempTargetRect, texture);
+            mFrameDraws++;
+            accountFill(mTempTargetRect.left, mTempTargetRect.top, mTempTargetRect.width(),
+                    mTempTargetRect.height(), true);
+            flushBatch();
+            prepareTexture(texture, mMixProgram.getId(), mMixParameters);
+            // The color may be translucent even over an opaque texture.
+            mGLState.setBlendEnabled(true);
+            mGLState.uniform1f(mMixParameters[INDEX_MIX_RATIO], cappedRatio);
+            mGLState.uniform4fv(mMixParameters[INDEX_MIX_COLOR], getColor(toColor), 0);
+            setTextureMatrix(mTempSourceRect);
+            drawBoundTextureRect(texture, mMixParameters, mTempTextureMatrix, mTempTargetRect);
             return;
         }
+
+        // There is no mix program for the external textures.
         save(SAVE_FLAG_ALPHA);
 
         float currentAlpha = getAlpha();
-        float cappedRatio = Math.min(1f, Math.max(0f, ratio));
 
         float textureAlpha = (1f - cappedRatio) * currentAlpha;
         setAlpha(textureAlpha);
@@ -790,16 +2194,21 @@ public class GLES20Canvas implements GLCanvas {
 
     @Override
     public void deleteRecycledResources() {
+        // The pending quads may still refer to the textures being deleted.
+        flushBatch();
         synchronized (mUnboundTextures) {
             IntArray ids = mUnboundTextures;
             if (mUnboundTextures.size() > 0) {
                 mGLId.glDeleteTextures(null, ids.size(), ids.getInternalArray(), 0);
+                mGLState.onTexturesDeleted(ids.getInternalArray(), ids.size());
+                mFramebufferPool.onTexturesDeleted(ids.getInternalArray(), ids.size());
                 ids.clear();
             }
 
             ids = mDeleteBuffers;
             if (ids.size() > 0) {
                 mGLId.glDeleteBuffers(null, ids.size(), ids.getInternalArray(), 0);
+                mGLState.onBuffersDeleted(ids.getInternalArray(), ids.size());
                 ids.clear();
             }
         }
@@ -807,8 +2216,13 @@ public class GLES20Canvas implements GLCanvas {
 
     @Override
     public void dumpStatisticsAndClear() {
-        String line = String.format("MESH:%d, TEX_RECT:%d, FILL_RECT:%d, LINE:%d", mCountDrawMesh,
-                mCountTextureRect, mCountFillRect, mCountDrawLine);
+        String line = String.format("MESH:%d, TEX_RECT:%d, FILL_RECT:%d, LINE:%d, "
+                + "DRAW_CALLS:%d, BATCHES:%d, STATE_CALLS:%d, SKIPPED_STATE_CALLS:%d, "
+                + "OPAQUE_FILL:%d, BLENDED_FILL:%d, OVERDRAW:%.2f",
+                mCountDrawMesh, mCountTextureRect, mCountFillRect, mCountDrawLine,
+                mLastFrameDrawCalls, mLastFrameBatches, mLastFrameStateCalls,
+                mLastFrameSkippedStateCalls, (int) getLastFrameOpaqueFill(),
+                (int) getLastFrameBlendedFill(), getLastFrameOverdraw());
         mCountDrawMesh = 0;
         mCountTextureRect = 0;
         mCountFillRect = 0;
@@ -818,56 +2232,68 @@ public class GLES20Canvas implements GLCanvas {
 
     @Override
     public void endRenderTarget() {
-        RawTexture oldTexture = mTargetTextures.remove(mTargetTextures.size() - 1);
-        RawTexture texture = getTargetTexture();
-        setRenderTarget(oldTexture, texture);
+        flushBatch();
+        mTargetTextures.remove(mTargetTextures.size() - 1);
+        setRenderTarget(getTargetTexture());
         restore(); // restore matrix and alpha
     }
 
     @Override
     public void beginRenderTarget(RawTexture texture) {
+        flushBatch();
         save(); // save matrix and alpha and blending
-        RawTexture oldTexture = getTargetTexture();
         mTargetTextures.add(texture);
-        setRenderTarget(oldTexture, texture);
+        setRenderTarget(texture);
     }
 
     private RawTexture getTargetTexture() {
         return mTargetTextures.get(mTargetTextures.size() - 1);
     }
 
-    private void setRenderTarget(BasicTexture oldTexture, RawTexture texture) {
-        if (oldTexture == null && texture != null) {
-            GLES20.glGenFramebuffers(1, mFrameBuffer, 0);
-            checkError();
-            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFrameBuffer[0]);
-            checkError();
-        } else if (oldTexture != null && texture == null) {
-            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
-            checkError();
-            GLES20.glDeleteFramebuffers(1, mFrameBuffer, 0);
-            checkError();
-        }
-
+    private void setRenderTarget(RawTexture texture) {
+        mFrameFramebufferSwitches++;
         if (texture == null) {
+            mGL.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
             setSize(mScreenWidth, mScreenHeight);
         } else {
+            // The clip of the screen doesn't apply to the texture.
+            resetClip();
             setSize(texture.getWidth(), texture.getHeight());
 
             if (!texture.isLoaded()) {
                 texture.prepare(this);
             }
 
-            GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
-                    texture.getTarget(), texture.getId(), 0);
-            checkError();
+            bindFramebuffer(mTargetTextures.size() - 1, texture);
+        }
+    }
+
+    // Binds the pooled framebuffer of the nesting level with the texture
+    // attached, attaching it and checking the status only if needed.
+    private void bindFramebuffer(int level, RawTexture texture) {
+        FramebufferPool pool = mFramebufferPool;
+        int framebuffer = pool.getFramebuffer(level);
+        if (framebuffer == 0) {
+            mGL.glGenFramebuffers(1, mTempIntArray, 0);
+            framebuffer = mTempIntArray[0];
+            pool.setFramebuffer(level, framebuffer);
+        }
+        mGL.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffer);
 
+        int textureId = texture.getId();
+        if (pool.getAttachedTexture(level) != textureId) {
+            mGL.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                    texture.getTarget(), textureId, 0);
+            pool.setAttachedTexture(level, textureId);
+        }
+        if (!pool.isComplete(framebuffer, textureId)) {
             checkFramebufferStatus();
+            pool.setComplete(framebuffer, textureId);
         }
     }
 
-    private static void checkFramebufferStatus() {
-        int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+    private void checkFramebufferStatus() {
+        int status = mGL.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
         if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
             String msg = "";
             switch (status) {
@@ -891,39 +2317,68 @@ public class GLES20Canvas implements GLCanvas {
     @Override
     public void setTextureParameters(BasicTexture texture) {
         int target = texture.getTarget();
-        GLES20.glBindTexture(target, texture.getId());
-        checkError();
-        GLES20.glTexParameteri(target, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
-        GLES20.glTexParameteri(target, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
-        GLES20.glTexParameterf(target, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
-        GLES20.glTexParameterf(target, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        mGLState.bindTexture(target, texture.getId());
+        mGL.glTexParameteri(target, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        mGL.glTexParameteri(target, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        mGL.glTexParameterf(target, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        mGL.glTexParameterf(target, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
     }
 
     @Override
     public void initializeTextureSize(BasicTexture texture, int format, int type) {
+        flushBatchIfUsing(texture);
         int target = texture.getTarget();
-        GLES20.glBindTexture(target, texture.getId());
-        checkError();
+        mGLState.bindTexture(target, texture.getId());
         int width = texture.getTextureWidth();
         int height = texture.getTextureHeight();
-        GLES20.glTexImage2D(target, 0, format, width, height, 0, format, type, null);
+        mGL.glTexImage2D(target, 0, format, width, height, 0, format, type, null);
     }
 
     @Override
     public void initializeTexture(BasicTexture texture, Bitmap bitmap) {
+        flushBatchIfUsing(texture);
         int target = texture.getTarget();
-        GLES20.glBindTexture(target, texture.getId());
-        checkError();
-        GLUtils.texImage2D(target, 0, bitmap, 0);
+        mGLState.bindTexture(target, texture.getId());
+        long start = System.nanoTime();
+        mGL.texImage2D(target, 0, bitmap, 0);
+        onTextureUploaded(bitmap, start);
     }
 
     @Override
     public void texSubImage2D(BasicTexture texture, int xOffset, int yOffset, Bitmap bitmap,
             int format, int type) {
+        flushBatchIfUsing(texture);
         int target = texture.getTarget();
-        GLES20.glBindTexture(target, texture.getId());
-        checkError();
-        GLUtils.texSubImage2D(target, 0, xOffset, yOffset, bitmap, format, type);
+        mGLState.bindTexture(target, texture.getId());
+        long start = System.nanoTime();
+        mGL.texSubImage2D(target, 0, xOffset, yOffset, bitmap, format, type);
+        onTextureUploaded(bitmap, start);
+    }
+
+    private void onTextureUploaded(Bitmap bitmap, long start) {
+        long time = System.nanoTime() - start;
+        long bytes = bitmap.getRowBytes() * bitmap.getHeight();
+        mUploadTime += time;
+        mUploadedTextures++;
+        mUploadedBytes += bytes;
+        mTextureUploadTime += time;
+        mTextureUploadBytes += bytes;
+    }
+
+    // The pending quads must be drawn with the old content of the texture,
+    // including those held back for the depth ordering.
+    private void flushBatchIfUsing(BasicTexture texture) {
+        int textureId = texture.getId();
+        if (mBatchQuadCount > 0 && mBatchTextureId == textureId) {
+            flushBatch();
+            return;
+        }
+        for (int i = 0; i < mDepthRunCount; i++) {
+            if (mDepthRuns.get(i).textureId == textureId) {
+                flushBatch();
+                return;
+            }
+        }
     }
 
     @Override
@@ -938,24 +2393,14 @@ public class GLES20Canvas implements GLCanvas {
 
     private int uploadBuffer(Buffer buffer, int elementSize) {
         mGLId.glGenBuffers(1, mTempIntArray, 0);
-        checkError();
         int bufferId = mTempIntArray[0];
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, bufferId);
-        checkError();
-        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, buffer.capacity() * elementSize, buffer,
+        mGLState.bindArrayBuffer(bufferId);
+        mGL.glBufferData(GLES20.GL_ARRAY_BUFFER, buffer.capacity() * elementSize, buffer,
                 GLES20.GL_STATIC_DRAW);
-        checkError();
+        mUploadedBytes += buffer.capacity() * elementSize;
         return bufferId;
     }
 
-    public static void checkError() {
-        int error = GLES20.glGetError();
-        if (error != 0) {
-            Throwable t = new Throwable();
-            Log.e(TAG, "GL error: " + error, t);
-        }
-    }
-
     @SuppressWarnings("unused")
     private static void printMatrix(String message, float[] m, int offset) {
         StringBuilder b = new StringBuilder(message);
@@ -971,23 +2416,19 @@ public class GLES20Canvas implements GLCanvas {
 
     @Override
     public void recoverFromLightCycle() {
-        GLES20.glViewport(0, 0, mWidth, mHeight);
-        GLES20.glDisable(GLES20.GL_DEPTH_TEST);
-        GLES20.glBlendFunc(GLES20.GL_ONE, GLES20.GL_ONE_MINUS_SRC_ALPHA);
-        checkError();
+        flushBatch();
+        mGLState.invalidate();
+        mGL.glViewport(0, 0, mWidth, mHeight);
+        mGL.glDisable(GLES20.GL_DEPTH_TEST);
+        mGL.glBlendFunc(GLES20.GL_ONE, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+        updateScissor();
     }
 
     @Override
     public void getBounds(Rect bounds, int x, int y, int width, int height) {
-        Matrix.translateM(mTempMatrix, 0, mMatrices, mCurrentMatrixIndex, x, y, 0f);
-        Matrix.scaleM(mTempMatrix, 0, width, height, 1f);
-        Matrix.multiplyMV(mTempMatrix, MATRIX_SIZE, mTempMatrix, 0, BOUNDS_COORDINATES, 0);
-        Matrix.multiplyMV(mTempMatrix, MATRIX_SIZE + 4, mTempMatrix, 0, BOUNDS_COORDINATES, 4);
-        bounds.left = Math.round(mTempMatrix[MATRIX_SIZE]);
-        bounds.right = Math.round(mTempMatrix[MATRIX_SIZE + 4]);
-        bounds.top = Math.round(mTempMatrix[MATRIX_SIZE + 1]);
-        bounds.bottom = Math.round(mTempMatrix[MATRIX_SIZE + 5]);
-        bounds.sort();
+        RectF mapped = mTempBounds;
+        mapRect(x, y, width, height, mapped);
+        mapped.roundOut(bounds);
     }
 
     @Override
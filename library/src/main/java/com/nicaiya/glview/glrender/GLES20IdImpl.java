@@ -1,43 +1,45 @@
 package com.nicaiya.glview.glrender;
 
-import android.opengl.GLES20;
-
 import javax.microedition.khronos.opengles.GL11;
 import javax.microedition.khronos.opengles.GL11ExtensionPack;
 
 public class GLES20IdImpl implements GLId {
 
+    private final GLES20Api mGL;
     private final int[] mTempIntArray = new int[1];
 
+    public GLES20IdImpl() {
+        this(new GLES20ApiImpl());
+    }
+
+    public GLES20IdImpl(GLES20Api gl) {
+        mGL = gl;
+    }
+
     @Override
     public int generateTexture() {
-        GLES20.glGenTextures(1, mTempIntArray, 0);
-        GLES20Canvas.checkError();
+        mGL.glGenTextures(1, mTempIntArray, 0);
         return mTempIntArray[0];
     }
 
     @Override
     public void glGenBuffers(int n, int[] buffers, int offset) {
-        GLES20.glGenBuffers(n, buffers, offset);
-        GLES20Canvas.checkError();
+        mGL.glGenBuffers(n, buffers, offset);
     }
 
     @Override
     public void glDeleteTextures(GL11 gl, int n, int[] textures, int offset) {
-        GLES20.glDeleteTextures(n, textures, offset);
-        GLES20Canvas.checkError();
+        mGL.glDeleteTextures(n, textures, offset);
     }
 
 
     @Override
     public void glDeleteBuffers(GL11 gl, int n, int[] buffers, int offset) {
-        GLES20.glDeleteBuffers(n, buffers, offset);
-        GLES20Canvas.checkError();
+        mGL.glDeleteBuffers(n, buffers, offset);
     }
 
     @Override
     public void glDeleteFramebuffers(GL11ExtensionPack gl11ep, int n, int[] buffers, int offset) {
-        GLES20.glDeleteFramebuffers(n, buffers, offset);
-        GLES20Canvas.checkError();
+        mGL.glDeleteFramebuffers(n, buffers, offset);
     }
 }
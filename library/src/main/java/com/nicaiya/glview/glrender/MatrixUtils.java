@@ -0,0 +1,174 @@
+package com.nicaiya.glview.glrender;
+
+import android.graphics.RectF;
+
+import java.util.Arrays;
+
+/**
+ * Helpers for the 4x4 column-major matrices used by the canvases, and for
+ * the 2D affine transforms GLES20Canvas keeps instead of them while it can.
+ * <p>
+ * An affine transform takes AFFINE_SIZE floats: a, b, c, d, tx, ty, which
+ * are the elements 0, 1, 4, 5, 12 and 13 of the equivalent 4x4 matrix, so
+ * x' = a * x + c * y + tx and y' = b * x + d * y + ty. Unlike the
+ * android.opengl.Matrix calls, these are plain Java.
+ */
+class MatrixUtils {
+
+    static final int AFFINE_SIZE = 6;
+
+    private MatrixUtils() {
+    }
+
+    static void setAffineIdentity(float[] a, int offset) {
+        a[offset] = 1;
+        a[offset + 1] = 0;
+        a[offset + 2] = 0;
+        a[offset + 3] = 1;
+        a[offset + 4] = 0;
+        a[offset + 5] = 0;
+    }
+
+    static void affineTranslate(float[] a, int offset, float x, float y) {
+        a[offset + 4] += a[offset] * x + a[offset + 2] * y;
+        a[offset + 5] += a[offset + 1] * x + a[offset + 3] * y;
+    }
+
+    static void affineScale(float[] a, int offset, float sx, float sy) {
+        a[offset] *= sx;
+        a[offset + 1] *= sx;
+        a[offset + 2] *= sy;
+        a[offset + 3] *= sy;
+    }
+
+    // Rotates by the angle in degrees around the z axis, counterclockwise
+    // when looking from the positive z, like Matrix.rotateM(0, 0, 1).
+    static void affineRotate(float[] a, int offset, float angle) {
+        double radians = Math.toRadians(angle);
+        float sin = (float) Math.sin(radians);
+        float cos = (float) Math.cos(radians);
+        float a0 = a[offset];
+        float b0 = a[offset + 1];
+        float c0 = a[offset + 2];
+        float d0 = a[offset + 3];
+        a[offset] = a0 * cos + c0 * sin;
+        a[offset + 1] = b0 * cos + d0 * sin;
+        a[offset + 2] = c0 * cos - a0 * sin;
+        a[offset + 3] = d0 * cos - b0 * sin;
+    }
+
+    // Returns whether the 4x4 matrix only transforms x and y, as a 2D affine
+    // transform.
+    static boolean isAffine(float[] m, int offset) {
+        return m[offset + 2] == 0 && m[offset + 3] == 0
+                && m[offset + 6] == 0 && m[offset + 7] == 0
+                && m[offset + 8] == 0 && m[offset + 9] == 0
+                && m[offset + 10] == 1 && m[offset + 11] == 0
+                && m[offset + 14] == 0 && m[offset + 15] == 1;
+    }
+
+    // Multiplies the affine transform by the 4x4 matrix, which must be affine
+    // as tested by isAffine().
+    static void affineConcat(float[] a, int offset, float[] m, int mOffset) {
+        float a0 = a[offset];
+        float b0 = a[offset + 1];
+        float c0 = a[offset + 2];
+        float d0 = a[offset + 3];
+        float ma = m[mOffset];
+        float mb = m[mOffset + 1];
+        float mc = m[mOffset + 4];
+        float md = m[mOffset + 5];
+        float mtx = m[mOffset + 12];
+        float mty = m[mOffset + 13];
+        a[offset] = a0 * ma + c0 * mb;
+        a[offset + 1] = b0 * ma + d0 * mb;
+        a[offset + 2] = a0 * mc + c0 * md;
+        a[offset + 3] = b0 * mc + d0 * md;
+        a[offset + 4] += a0 * mtx + c0 * mty;
+        a[offset + 5] += b0 * mtx + d0 * mty;
+    }
+
+    static void affineToMatrix(float[] a, int offset, float[] m, int mOffset) {
+        Arrays.fill(m, mOffset, mOffset + 16, 0);
+        m[mOffset] = a[offset];
+        m[mOffset + 1] = a[offset + 1];
+        m[mOffset + 4] = a[offset + 2];
+        m[mOffset + 5] = a[offset + 3];
+        m[mOffset + 10] = 1;
+        m[mOffset + 12] = a[offset + 4];
+        m[mOffset + 13] = a[offset + 5];
+        m[mOffset + 15] = 1;
+    }
+
+    /**
+     * Computes projection * affine * translate(x, y) * scale(width, height)
+     * into the 4x4 matrix out. The projection must be orthographic, like the
+     * ones made by Matrix.orthoM(), so only its diagonal and its translation
+     * are used.
+     */
+    static void affineMvp(float[] out, int outOffset, float[] projection, float[] a,
+            int offset, float x, float y, float width, float height) {
+        float a0 = a[offset];
+        float b0 = a[offset + 1];
+        float c0 = a[offset + 2];
+        float d0 = a[offset + 3];
+        float tx = a0 * x + c0 * y + a[offset + 4];
+        float ty = b0 * x + d0 * y + a[offset + 5];
+        float px = projection[0];
+        float py = projection[5];
+        out[outOffset] = px * a0 * width;
+        out[outOffset + 1] = py * b0 * width;
+        out[outOffset + 2] = 0;
+        out[outOffset + 3] = 0;
+        out[outOffset + 4] = px * c0 * height;
+        out[outOffset + 5] = py * d0 * height;
+        out[outOffset + 6] = 0;
+        out[outOffset + 7] = 0;
+        out[outOffset + 8] = 0;
+        out[outOffset + 9] = 0;
+        out[outOffset + 10] = projection[10];
+        out[outOffset + 11] = 0;
+        out[outOffset + 12] = px * tx + projection[12];
+        out[outOffset + 13] = py * ty + projection[13];
+        out[outOffset + 14] = projection[14];
+        out[outOffset + 15] = projection[15];
+    }
+
+    // Like mapRect(), for an affine transform.
+    static void mapAffineRect(float[] a, int offset, float x, float y, float width,
+            float height, RectF out) {
+        mapRect(a[offset], a[offset + 1], a[offset + 2], a[offset + 3], a[offset + 4],
+                a[offset + 5], x, y, width, height, out);
+    }
+
+    /**
+     * Transforms the four corners of the rectangle [x, x+width) * [y, y+height)
+     * by the matrix and returns their bounding box. Unlike transforming only
+     * two corners, this is correct for any rotation. The z coordinate is
+     * taken as 0 and there must be no perspective.
+     */
+    static void mapRect(float[] m, int offset, float x, float y, float width, float height,
+            RectF out) {
+        mapRect(m[offset], m[offset + 1], m[offset + 4], m[offset + 5], m[offset + 12],
+                m[offset + 13], x, y, width, height, out);
+    }
+
+    private static void mapRect(float m0, float m1, float m4, float m5, float tx, float ty,
+            float x, float y, float width, float height, RectF out) {
+        float right = x + width;
+        float bottom = y + height;
+        float x0 = m0 * x + m4 * y + tx;
+        float y0 = m1 * x + m5 * y + ty;
+        float x1 = m0 * right + m4 * y + tx;
+        float y1 = m1 * right + m5 * y + ty;
+        float x2 = m0 * x + m4 * bottom + tx;
+        float y2 = m1 * x + m5 * bottom + ty;
+        float x3 = m0 * right + m4 * bottom + tx;
+        float y3 = m1 * right + m5 * bottom + ty;
+
+        out.left = Math.min(Math.min(x0, x1), Math.min(x2, x3));
+        out.right = Math.max(Math.max(x0, x1), Math.max(x2, x3));
+        out.top = Math.min(Math.min(y0, y1), Math.min(y2, y3));
+        out.bottom = Math.max(Math.max(y0, y1), Math.max(y2, y3));
+    }
+}
@@ -0,0 +1,30 @@
+package com.nicaiya.glview.glrender;
+
+import com.nicaiya.glview.ui.GLRoot;
+
+/**
+ * ProgramWarmUp compiles the GLES20Canvas programs which haven't been used
+ * yet while the GL thread is idle, one at a time, so the first draw needing
+ * one of them doesn't have to wait for the compiler. It does nothing on a
+ * GLES11Canvas.
+ * <p>
+ * The programs are per canvas, so it should be started again after the GL
+ * context is recreated.
+ */
+public class ProgramWarmUp implements GLRoot.OnGLIdleListener {
+
+    private ProgramWarmUp() {
+    }
+
+    public static void start(GLRoot root) {
+        root.addOnGLIdleListener(new ProgramWarmUp(), GLRoot.IDLE_PRIORITY_BACKGROUND);
+    }
+
+    @Override
+    public boolean onGLIdle(GLCanvas canvas, boolean renderRequested) {
+        if (!(canvas instanceof GLES20Canvas)) return false;
+        // Leave the time to the frame which is about to be drawn.
+        if (renderRequested) return true;
+        return ((GLES20Canvas) canvas).compileNextProgram();
+    }
+}
@@ -0,0 +1,476 @@
+package com.nicaiya.glview.glrender;
+
+import android.graphics.Bitmap;
+
+import com.nicaiya.glview.utils.IntArray;
+
+import java.nio.Buffer;
+
+/**
+ * Records the GL calls made through it before passing them on to another
+ * {@link GLES20Api}, by default a {@link NoOpGLES20Api}.
+ * <p>
+ * Each call is stored in an int buffer as its opcode, the number of recorded
+ * arguments, and then the arguments. Only the first four int, float (as raw
+ * bits) and boolean (as 0 or 1) arguments are kept; arrays, buffers, strings
+ * and bitmaps are not recorded.
+ */
+public class RecordingGLES20Api implements GLES20Api {
+
+    private static final int OP_COUNT = 51;
+
+    private static final String[] OP_NAMES = {
+            "glActiveTexture",
+            "glAttachShader",
+            "glBindBuffer",
+            "glBindFramebuffer",
+            "glBindTexture",
+            "glBlendColor",
+            "glBlendFunc",
+            "glBufferData",
+            "glBufferSubData",
+            "glCheckFramebufferStatus",
+            "glClear",
+            "glClearColor",
+            "glCompileShader",
+            "glCreateProgram",
+            "glCreateShader",
+            "glDeleteBuffers",
+            "glDeleteFramebuffers",
+            "glDeleteProgram",
+            "glDeleteTextures",
+            "glDisable",
+            "glDisableVertexAttribArray",
+            "glDrawArrays",
+            "glDrawElements",
+            "glEnable",
+            "glEnableVertexAttribArray",
+            "glFramebufferTexture2D",
+            "glGenBuffers",
+            "glGenFramebuffers",
+            "glGenTextures",
+            "glGetAttribLocation",
+            "glGetError",
+            "glGetProgramInfoLog",
+            "glGetProgramiv",
+            "glGetUniformLocation",
+            "glLineWidth",
+            "glLinkProgram",
+            "glShaderSource",
+            "glTexImage2D",
+            "glTexParameterf",
+            "glTexParameteri",
+            "glUniform1f",
+            "glUniform1i",
+            "glUniform4fv",
+            "glUniformMatrix4fv",
+            "glUseProgram",
+            "glVertexAttribPointer",
+            "glViewport",
+            "GLUtils.texImage2D",
+            "GLUtils.texSubImage2D",
+            "glScissor",
+            "glDepthMask",
+    };
+
+    private final GLES20Api mDelegate;
+    private final IntArray mRecords = new IntArray();
+    private final int[] mCallCounts = new int[OP_COUNT];
+    private int mCallCount;
+
+    public RecordingGLES20Api() {
+        this(new NoOpGLES20Api());
+    }
+
+    public RecordingGLES20Api(GLES20Api delegate) {
+        mDelegate = delegate;
+    }
+
+    // Returns the GL function name of the opcode, for logging.
+    public static String getOpcodeName(int opcode) {
+        return OP_NAMES[opcode];
+    }
+
+    // Returns the number of calls recorded since the last clear().
+    public int getCallCount() {
+        return mCallCount;
+    }
+
+    // Returns the number of calls with the given opcode since the last clear().
+    public int getCallCount(int opcode) {
+        return mCallCounts[opcode];
+    }
+
+    public int getDrawCallCount() {
+        return mCallCounts[OP_DRAW_ARRAYS] + mCallCounts[OP_DRAW_ELEMENTS];
+    }
+
+    // The recorded calls are in the first getRecordSize() ints of the
+    // returned array, which is only valid until the next call.
+    public int[] getRecords() {
+        return mRecords.getInternalArray();
+    }
+
+    public int getRecordSize() {
+        return mRecords.size();
+    }
+
+    public void clear() {
+        mRecords.clear();
+        for (int i = 0; i < OP_COUNT; i++) {
+            mCallCounts[i] = 0;
+        }
+        mCallCount = 0;
+    }
+
+    private void begin(int opcode, int argumentCount) {
+        mCallCount++;
+        mCallCounts[opcode]++;
+        mRecords.add(opcode);
+        mRecords.add(argumentCount);
+    }
+
+    private void record(int opcode) {
+        begin(opcode, 0);
+    }
+
+    private void record(int opcode, int a) {
+        begin(opcode, 1);
+        mRecords.add(a);
+    }
+
+    private void record(int opcode, int a, int b) {
+        begin(opcode, 2);
+        mRecords.add(a);
+        mRecords.add(b);
+    }
+
+    private void record(int opcode, int a, int b, int c) {
+        begin(opcode, 3);
+        mRecords.add(a);
+        mRecords.add(b);
+        mRecords.add(c);
+    }
+
+    private void record(int opcode, int a, int b, int c, int d) {
+        begin(opcode, 4);
+        mRecords.add(a);
+        mRecords.add(b);
+        mRecords.add(c);
+        mRecords.add(d);
+    }
+
+    @Override
+    public void glActiveTexture(int texture) {
+        record(OP_ACTIVE_TEXTURE, texture);
+        mDelegate.glActiveTexture(texture);
+    }
+
+    @Override
+    public void glAttachShader(int program, int shader) {
+        record(OP_ATTACH_SHADER, program, shader);
+        mDelegate.glAttachShader(program, shader);
+    }
+
+    @Override
+    public void glBindBuffer(int target, int buffer) {
+        record(OP_BIND_BUFFER, target, buffer);
+        mDelegate.glBindBuffer(target, buffer);
+    }
+
+    @Override
+    public void glBindFramebuffer(int target, int framebuffer) {
+        record(OP_BIND_FRAMEBUFFER, target, framebuffer);
+        mDelegate.glBindFramebuffer(target, framebuffer);
+    }
+
+    @Override
+    public void glBindTexture(int target, int texture) {
+        record(OP_BIND_TEXTURE, target, texture);
+        mDelegate.glBindTexture(target, texture);
+    }
+
+    @Override
+    public void glBlendColor(float red, float green, float blue, float alpha) {
+        record(OP_BLEND_COLOR, Float.floatToRawIntBits(red), Float.floatToRawIntBits(green),
+                Float.floatToRawIntBits(blue), Float.floatToRawIntBits(alpha));
+        mDelegate.glBlendColor(red, green, blue, alpha);
+    }
+
+    @Override
+    public void glBlendFunc(int sfactor, int dfactor) {
+        record(OP_BLEND_FUNC, sfactor, dfactor);
+        mDelegate.glBlendFunc(sfactor, dfactor);
+    }
+
+    @Override
+    public void glBufferData(int target, int size, Buffer data, int usage) {
+        record(OP_BUFFER_DATA, target, size, usage);
+        mDelegate.glBufferData(target, size, data, usage);
+    }
+
+    @Override
+    public void glBufferSubData(int target, int offset, int size, Buffer data) {
+        record(OP_BUFFER_SUB_DATA, target, offset, size);
+        mDelegate.glBufferSubData(target, offset, size, data);
+    }
+
+    @Override
+    public int glCheckFramebufferStatus(int target) {
+        record(OP_CHECK_FRAMEBUFFER_STATUS, target);
+        return mDelegate.glCheckFramebufferStatus(target);
+    }
+
+    @Override
+    public void glClear(int mask) {
+        record(OP_CLEAR, mask);
+        mDelegate.glClear(mask);
+    }
+
+    @Override
+    public void glClearColor(float red, float green, float blue, float alpha) {
+        record(OP_CLEAR_COLOR, Float.floatToRawIntBits(red), Float.floatToRawIntBits(green),
+                Float.floatToRawIntBits(blue), Float.floatToRawIntBits(alpha));
+        mDelegate.glClearColor(red, green, blue, alpha);
+    }
+
+    @Override
+    public void glCompileShader(int shader) {
+        record(OP_COMPILE_SHADER, shader);
+        mDelegate.glCompileShader(shader);
+    }
+
+    @Override
+    public int glCreateProgram() {
+        record(OP_CREATE_PROGRAM);
+        return mDelegate.glCreateProgram();
+    }
+
+    @Override
+    public int glCreateShader(int type) {
+        record(OP_CREATE_SHADER, type);
+        return mDelegate.glCreateShader(type);
+    }
+
+    @Override
+    public void glDeleteBuffers(int n, int[] buffers, int offset) {
+        record(OP_DELETE_BUFFERS, n, offset);
+        mDelegate.glDeleteBuffers(n, buffers, offset);
+    }
+
+    @Override
+    public void glDeleteFramebuffers(int n, int[] framebuffers, int offset) {
+        record(OP_DELETE_FRAMEBUFFERS, n, offset);
+        mDelegate.glDeleteFramebuffers(n, framebuffers, offset);
+    }
+
+    @Override
+    public void glDeleteProgram(int program) {
+        record(OP_DELETE_PROGRAM, program);
+        mDelegate.glDeleteProgram(program);
+    }
+
+    @Override
+    public void glDeleteTextures(int n, int[] textures, int offset) {
+        record(OP_DELETE_TEXTURES, n, offset);
+        mDelegate.glDeleteTextures(n, textures, offset);
+    }
+
+    @Override
+    public void glDisable(int cap) {
+        record(OP_DISABLE, cap);
+        mDelegate.glDisable(cap);
+    }
+
+    @Override
+    public void glDisableVertexAttribArray(int index) {
+        record(OP_DISABLE_VERTEX_ATTRIB_ARRAY, index);
+        mDelegate.glDisableVertexAttribArray(index);
+    }
+
+    @Override
+    public void glDrawArrays(int mode, int first, int count) {
+        record(OP_DRAW_ARRAYS, mode, first, count);
+        mDelegate.glDrawArrays(mode, first, count);
+    }
+
+    @Override
+    public void glDrawElements(int mode, int count, int type, int offset) {
+        record(OP_DRAW_ELEMENTS, mode, count, type, offset);
+        mDelegate.glDrawElements(mode, count, type, offset);
+    }
+
+    @Override
+    public void glEnable(int cap) {
+        record(OP_ENABLE, cap);
+        mDelegate.glEnable(cap);
+    }
+
+    @Override
+    public void glEnableVertexAttribArray(int index) {
+        record(OP_ENABLE_VERTEX_ATTRIB_ARRAY, index);
+        mDelegate.glEnableVertexAttribArray(index);
+    }
+
+    @Override
+    public void glFramebufferTexture2D(int target, int attachment, int textarget, int texture,
+            int level) {
+        record(OP_FRAMEBUFFER_TEXTURE_2D, target, attachment, textarget, texture);
+        mDelegate.glFramebufferTexture2D(target, attachment, textarget, texture, level);
+    }
+
+    @Override
+    public void glGenBuffers(int n, int[] buffers, int offset) {
+        record(OP_GEN_BUFFERS, n, offset);
+        mDelegate.glGenBuffers(n, buffers, offset);
+    }
+
+    @Override
+    public void glGenFramebuffers(int n, int[] framebuffers, int offset) {
+        record(OP_GEN_FRAMEBUFFERS, n, offset);
+        mDelegate.glGenFramebuffers(n, framebuffers, offset);
+    }
+
+    @Override
+    public void glGenTextures(int n, int[] textures, int offset) {
+        record(OP_GEN_TEXTURES, n, offset);
+        mDelegate.glGenTextures(n, textures, offset);
+    }
+
+    @Override
+    public int glGetAttribLocation(int program, String name) {
+        record(OP_GET_ATTRIB_LOCATION, program);
+        return mDelegate.glGetAttribLocation(program, name);
+    }
+
+    @Override
+    public int glGetError() {
+        record(OP_GET_ERROR);
+        return mDelegate.glGetError();
+    }
+
+    @Override
+    public String glGetProgramInfoLog(int program) {
+        record(OP_GET_PROGRAM_INFO_LOG, program);
+        return mDelegate.glGetProgramInfoLog(program);
+    }
+
+    @Override
+    public void glGetProgramiv(int program, int pname, int[] params, int offset) {
+        record(OP_GET_PROGRAM_IV, program, pname, offset);
+        mDelegate.glGetProgramiv(program, pname, params, offset);
+    }
+
+    @Override
+    public int glGetUniformLocation(int program, String name) {
+        record(OP_GET_UNIFORM_LOCATION, program);
+        return mDelegate.glGetUniformLocation(program, name);
+    }
+
+    @Override
+    public void glLineWidth(float width) {
+        record(OP_LINE_WIDTH, Float.floatToRawIntBits(width));
+        mDelegate.glLineWidth(width);
+    }
+
+    @Override
+    public void glLinkProgram(int program) {
+        record(OP_LINK_PROGRAM, program);
+        mDelegate.glLinkProgram(program);
+    }
+
+    @Override
+    public void glShaderSource(int shader, String string) {
+        record(OP_SHADER_SOURCE, shader);
+        mDelegate.glShaderSource(shader, string);
+    }
+
+    @Override
+    public void glTexImage2D(int target, int level, int internalformat, int width, int height,
+            int border, int format, int type, Buffer pixels) {
+        record(OP_TEX_IMAGE_2D, target, level, internalformat, width);
+        mDelegate.glTexImage2D(target, level, internalformat, width, height, border, format, type,
+                pixels);
+    }
+
+    @Override
+    public void glTexParameterf(int target, int pname, float param) {
+        record(OP_TEX_PARAMETER_F, target, pname, Float.floatToRawIntBits(param));
+        mDelegate.glTexParameterf(target, pname, param);
+    }
+
+    @Override
+    public void glTexParameteri(int target, int pname, int param) {
+        record(OP_TEX_PARAMETER_I, target, pname, param);
+        mDelegate.glTexParameteri(target, pname, param);
+    }
+
+    @Override
+    public void glUniform1f(int location, float x) {
+        record(OP_UNIFORM_1F, location, Float.floatToRawIntBits(x));
+        mDelegate.glUniform1f(location, x);
+    }
+
+    @Override
+    public void glUniform1i(int location, int x) {
+        record(OP_UNIFORM_1I, location, x);
+        mDelegate.glUniform1i(location, x);
+    }
+
+    @Override
+    public void glUniform4fv(int location, int count, float[] v, int offset) {
+        record(OP_UNIFORM_4FV, location, count, offset);
+        mDelegate.glUniform4fv(location, count, v, offset);
+    }
+
+    @Override
+    public void glUniformMatrix4fv(int location, int count, boolean transpose, float[] value,
+            int offset) {
+        record(OP_UNIFORM_MATRIX_4FV, location, count, transpose ? 1 : 0, offset);
+        mDelegate.glUniformMatrix4fv(location, count, transpose, value, offset);
+    }
+
+    @Override
+    public void glUseProgram(int program) {
+        record(OP_USE_PROGRAM, program);
+        mDelegate.glUseProgram(program);
+    }
+
+    @Override
+    public void glVertexAttribPointer(int indx, int size, int type, boolean normalized, int stride,
+            int offset) {
+        record(OP_VERTEX_ATTRIB_POINTER, indx, size, stride, offset);
+        mDelegate.glVertexAttribPointer(indx, size, type, normalized, stride, offset);
+    }
+
+    @Override
+    public void glViewport(int x, int y, int width, int height) {
+        record(OP_VIEWPORT, x, y, width, height);
+        mDelegate.glViewport(x, y, width, height);
+    }
+
+    @Override
+    public void glScissor(int x, int y, int width, int height) {
+        record(OP_SCISSOR, x, y, width, height);
+        mDelegate.glScissor(x, y, width, height);
+    }
+
+    @Override
+    public void glDepthMask(boolean flag) {
+        record(OP_DEPTH_MASK, flag ? 1 : 0);
+        mDelegate.glDepthMask(flag);
+    }
+
+    @Override
+    public void texImage2D(int target, int level, Bitmap bitmap, int border) {
+        record(OP_UTILS_TEX_IMAGE_2D, target, level, border);
+        mDelegate.texImage2D(target, level, bitmap, border);
+    }
+
+    @Override
+    public void texSubImage2D(int target, int level, int xoffset, int yoffset, Bitmap bitmap,
+            int format, int type) {
+        record(OP_UTILS_TEX_SUB_IMAGE_2D, target, level, xoffset, yoffset);
+        mDelegate.texSubImage2D(target, level, xoffset, yoffset, bitmap, format, type);
+    }
+}
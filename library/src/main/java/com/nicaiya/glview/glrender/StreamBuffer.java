@@ -0,0 +1,203 @@
+package com.nicaiya.glview.glrender;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * StreamBuffer holds geometry which changes each frame, like particles or
+ * progress arcs, for a canvas to draw. It is obtained from
+ * {@link GLCanvas#getStreamBuffer()}:
+ * <pre>
+ *     StreamBuffer stream = canvas.getStreamBuffer();
+ *     int first = stream.allocateVertices(4);
+ *     stream.getVertices().put(x0).put(y0).put(u0).put(v0)...;
+ *     int index = stream.allocateIndices(6);
+ *     stream.getIndices().put((short) 0).put((short) 1)...;
+ *     canvas.drawStreamMesh(texture, x, y, GL11.GL_TRIANGLES, first, index, 6);
+ * </pre>
+ * The vertices are interleaved x, y, u, v. The indices are relative to the
+ * first vertex of the draw.
+ * <p>
+ * The data is written into the region of the buffers returned by the
+ * allocations, and uploaded just before it is drawn, so only what was
+ * written is uploaded, once. The buffers are split into three partitions
+ * used by the frames in turn, so the GPU can still read the previous two
+ * frames while the current one is written, without a fence. When a frame
+ * fills its partition, the store is respecified, so the driver gives it a
+ * new one instead of waiting; the regions allocated before are then no
+ * longer valid, so the geometry should be drawn before the next allocation.
+ * <p>
+ * Only the canvas doing the GL calls uploads; this class does the
+ * bookkeeping.
+ */
+public class StreamBuffer {
+
+    public static final int FLOATS_PER_VERTEX = 4;
+
+    static final int PARTITION_COUNT = 3;
+    private static final int PARTITION_VERTICES = 1024;
+    private static final int PARTITION_INDICES = 3 * PARTITION_VERTICES;
+
+    private final Ring mVertexRing;
+    private final Ring mIndexRing;
+    private final FloatBuffer mVertexData;
+    private final ShortBuffer mIndexData;
+    // The views returned to be written to, so their positions are not
+    // changed by the uploads.
+    private final FloatBuffer mVertexWriter;
+    private final ShortBuffer mIndexWriter;
+
+    StreamBuffer() {
+        this(PARTITION_VERTICES, PARTITION_INDICES);
+    }
+
+    StreamBuffer(int partitionVertices, int partitionIndices) {
+        mVertexRing = new Ring(partitionVertices);
+        mIndexRing = new Ring(partitionIndices);
+        int vertexSize = FLOATS_PER_VERTEX * Float.SIZE / Byte.SIZE;
+        mVertexData = ByteBuffer.allocateDirect(mVertexRing.getCapacity() * vertexSize)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        mIndexData = ByteBuffer.allocateDirect(mIndexRing.getCapacity() * Short.SIZE / Byte.SIZE)
+                .order(ByteOrder.nativeOrder()).asShortBuffer();
+        mVertexWriter = mVertexData.duplicate();
+        mIndexWriter = mIndexData.duplicate();
+    }
+
+    /**
+     * Allocates the vertices and sets the position and limit of
+     * {@link #getVertices()} to their region. Returns the offset of the first
+     * one, to give to drawStreamMesh().
+     *
+     * @throws IllegalArgumentException if they don't fit in a frame's partition
+     */
+    public int allocateVertices(int count) {
+        int first = mVertexRing.allocate(count);
+        mVertexWriter.limit((first + count) * FLOATS_PER_VERTEX);
+        mVertexWriter.position(first * FLOATS_PER_VERTEX);
+        return first;
+    }
+
+    public FloatBuffer getVertices() {
+        return mVertexWriter;
+    }
+
+    /**
+     * Allocates the indices and sets the position and limit of
+     * {@link #getIndices()} to their region. Returns the offset of the first
+     * one, to give to drawStreamMesh().
+     *
+     * @throws IllegalArgumentException if they don't fit in a frame's partition
+     */
+    public int allocateIndices(int count) {
+        int first = mIndexRing.allocate(count);
+        mIndexWriter.limit(first + count);
+        mIndexWriter.position(first);
+        return first;
+    }
+
+    public ShortBuffer getIndices() {
+        return mIndexWriter;
+    }
+
+    // Moves on to the partition of the next frame.
+    void nextFrame() {
+        mVertexRing.nextFrame();
+        mIndexRing.nextFrame();
+    }
+
+    Ring getVertexRing() {
+        return mVertexRing;
+    }
+
+    Ring getIndexRing() {
+        return mIndexRing;
+    }
+
+    // Copies the vertices out, e.g. to record them.
+    void getVertices(int first, float[] out, int offset, int count) {
+        for (int i = 0, n = count * FLOATS_PER_VERTEX, base = first * FLOATS_PER_VERTEX;
+                i < n; i++) {
+            out[offset + i] = mVertexData.get(base + i);
+        }
+    }
+
+    short getIndex(int index) {
+        return mIndexData.get(index);
+    }
+
+    // Returns the vertex data positioned at the pending vertices.
+    FloatBuffer getPendingVertexData() {
+        mVertexData.position(mVertexRing.mUploaded * FLOATS_PER_VERTEX);
+        return mVertexData;
+    }
+
+    // Returns the index data positioned at the pending indices.
+    ShortBuffer getPendingIndexData() {
+        mIndexData.position(mIndexRing.mUploaded);
+        return mIndexData;
+    }
+
+    // The allocation of one of the buffers, in elements.
+    static class Ring {
+        private final int mPartitionSize;
+        private int mPartition;
+        // The end of the allocations, and of the uploaded ones.
+        private int mEnd;
+        private int mUploaded;
+        // Whether the GL store can be written to, false if it has to be
+        // (re)specified first.
+        private boolean mStoreValid;
+
+        Ring(int partitionSize) {
+            mPartitionSize = partitionSize;
+        }
+
+        int getCapacity() {
+            return mPartitionSize * PARTITION_COUNT;
+        }
+
+        int allocate(int count) {
+            if (count > mPartitionSize) {
+                throw new IllegalArgumentException("too large for a stream buffer: " + count);
+            }
+            int start = mPartition * mPartitionSize;
+            if (mEnd + count > start + mPartitionSize) {
+                // Orphan the store and start the partition over.
+                mStoreValid = false;
+                mEnd = start;
+                mUploaded = start;
+            }
+            int first = mEnd;
+            mEnd += count;
+            return first;
+        }
+
+        void nextFrame() {
+            mPartition = (mPartition + 1) % PARTITION_COUNT;
+            mEnd = mPartition * mPartitionSize;
+            mUploaded = mEnd;
+        }
+
+        boolean isStoreValid() {
+            return mStoreValid;
+        }
+
+        // Returns the offset of the data to upload, in elements.
+        int getPendingOffset() {
+            return mUploaded;
+        }
+
+        int getPendingCount() {
+            return mEnd - mUploaded;
+        }
+
+        // Called by the canvas after respecifying the store, if needed, and
+        // uploading the pending data.
+        void onUploaded() {
+            mStoreValid = true;
+            mUploaded = mEnd;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.nicaiya.glview.glrender;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * StretchMesh is a triangle strip mesh whose vertices are placed for the
+ * size it is drawn at, like the grid of a nine-patch. The position of a
+ * vertex along each axis is
+ * <pre>
+ *     fixed + stretch * scale + inset
+ * </pre>
+ * where fixed and stretch are the lengths of the fixed and the stretchy
+ * segments before it in the texture, and scale is how much the stretchy
+ * segments are stretched to fill the size. The inset moves the vertices at
+ * the ends of a stretchy segment half a pixel into it, so the filtering
+ * doesn't pick up the neighboring fixed segments. It is given by the signed
+ * length of that segment, and shrinks with the segment, so the vertices
+ * never cross.
+ * <p>
+ * The mesh doesn't change with the size, so its buffers are uploaded once:
+ * GLES20Canvas places the vertices in the vertex shader, GLES11Canvas with
+ * computeVertices().
+ */
+public class StretchMesh {
+
+    // fixed x, y, stretch x, y, inset x, y, u, v
+    public static final int FLOATS_PER_VERTEX = 8;
+    static final int OFFSET_INSET = 4;
+    static final int OFFSET_TEXTURE_COORD = 6;
+
+    private final float[] mVertices;
+    private final int mVertexCount;
+    private final byte[] mIndices;
+    private final int mIndexCount;
+
+    // The total lengths of the fixed and the stretchy segments.
+    private final float mFixedWidth;
+    private final float mFixedHeight;
+    private final float mStretchWidth;
+    private final float mStretchHeight;
+
+    // The buffers uploaded to mCanvas, 0 until they are needed.
+    private GLCanvas mCanvas;
+    private int mVertexBuffer;
+    private int mIndexBuffer;
+
+    /**
+     * @param vertices the vertex data, FLOATS_PER_VERTEX floats per vertex
+     * @param indices  the indices of the triangle strip
+     */
+    public StretchMesh(float[] vertices, int vertexCount, byte[] indices, int indexCount,
+            float fixedWidth, float fixedHeight, float stretchWidth, float stretchHeight) {
+        mVertices = vertices;
+        mVertexCount = vertexCount;
+        mIndices = indices;
+        mIndexCount = indexCount;
+        mFixedWidth = fixedWidth;
+        mFixedHeight = fixedHeight;
+        mStretchWidth = stretchWidth;
+        mStretchHeight = stretchHeight;
+    }
+
+    public int getVertexCount() {
+        return mVertexCount;
+    }
+
+    public int getIndexCount() {
+        return mIndexCount;
+    }
+
+    // Returns how much the stretchy segments are stretched to fill the
+    // length. They are gone if the fixed ones don't fit.
+    static float getStretchScale(float fixed, float stretch, int length) {
+        if (stretch <= 0 || length <= fixed) return 0;
+        return (length - fixed) / stretch;
+    }
+
+    // Returns how much the mesh is shrunk to fit the length, when the fixed
+    // segments alone are longer.
+    static float getShrinkScale(float fixed, int length) {
+        return length < fixed ? length / fixed : 1;
+    }
+
+    float getStretchScaleX(int width) {
+        return getStretchScale(mFixedWidth, mStretchWidth, width);
+    }
+
+    float getStretchScaleY(int height) {
+        return getStretchScale(mFixedHeight, mStretchHeight, height);
+    }
+
+    float getShrinkScaleX(int width) {
+        return getShrinkScale(mFixedWidth, width);
+    }
+
+    float getShrinkScaleY(int height) {
+        return getShrinkScale(mFixedHeight, height);
+    }
+
+    /**
+     * Computes the vertices for the given size into out, interleaved x, y,
+     * u, v, as taken by {@link GLCanvas#drawMesh(com.nicaiya.glview.texture.BasicTexture,
+     * int, int, float[], int, int, int, int)}.
+     */
+    void computeVertices(float[] out, int width, int height) {
+        float scaleX = getStretchScaleX(width);
+        float scaleY = getStretchScaleY(height);
+        float shrinkX = getShrinkScaleX(width);
+        float shrinkY = getShrinkScaleY(height);
+        float[] v = mVertices;
+        for (int i = 0, j = 0, n = mVertexCount * FLOATS_PER_VERTEX; i < n;
+                i += FLOATS_PER_VERTEX, j += 4) {
+            out[j] = (v[i] + v[i + 2] * scaleX + inset(v[i + 4], scaleX)) * shrinkX;
+            out[j + 1] = (v[i + 1] + v[i + 3] * scaleY + inset(v[i + 5], scaleY)) * shrinkY;
+            out[j + 2] = v[i + 6];
+            out[j + 3] = v[i + 7];
+        }
+    }
+
+    // The same as the vertex shader of GLES20Canvas.
+    private static float inset(float segment, float scale) {
+        return Math.signum(segment) * Math.min(0.5f, 0.5f * Math.abs(segment) * scale);
+    }
+
+    int getVertexBuffer(GLCanvas canvas) {
+        setCanvas(canvas);
+        if (mVertexBuffer == 0) {
+            FloatBuffer buffer = ByteBuffer
+                    .allocateDirect(mVertexCount * FLOATS_PER_VERTEX * Float.SIZE / Byte.SIZE)
+                    .order(ByteOrder.nativeOrder()).asFloatBuffer();
+            buffer.put(mVertices, 0, mVertexCount * FLOATS_PER_VERTEX).position(0);
+            mVertexBuffer = canvas.uploadBuffer(buffer);
+        }
+        return mVertexBuffer;
+    }
+
+    int getIndexBuffer(GLCanvas canvas) {
+        setCanvas(canvas);
+        if (mIndexBuffer == 0) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(mIndexCount)
+                    .order(ByteOrder.nativeOrder());
+            buffer.put(mIndices, 0, mIndexCount).position(0);
+            mIndexBuffer = canvas.uploadBuffer(buffer);
+        }
+        return mIndexBuffer;
+    }
+
+    // The buffers uploaded to another canvas are gone with its GL context.
+    private void setCanvas(GLCanvas canvas) {
+        if (mCanvas != canvas) {
+            mCanvas = canvas;
+            mVertexBuffer = 0;
+            mIndexBuffer = 0;
+        }
+    }
+
+    /**
+     * Deletes the buffers of the mesh. It can still be drawn, the buffers are
+     * uploaded again then.
+     */
+    public void recycle() {
+        GLCanvas canvas = mCanvas;
+        if (canvas == null) return;
+        if (mVertexBuffer != 0) canvas.deleteBuffer(mVertexBuffer);
+        if (mIndexBuffer != 0) canvas.deleteBuffer(mIndexBuffer);
+        mCanvas = null;
+        mVertexBuffer = 0;
+        mIndexBuffer = 0;
+    }
+}
@@ -0,0 +1,595 @@
+package com.nicaiya.glview.glrender;
+
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+import android.util.Log;
+
+import java.nio.Buffer;
+
+/**
+ * Checks for GL errors on behalf of {@link GLES20Canvas}.
+ * <p>
+ * When full validation is off, the calls are passed on untouched. When it is
+ * on, glGetError() is called after every call, and the last calls are kept in
+ * a ring buffer (in the format of {@link RecordingGLES20Api}) so the failing
+ * call site and what led to it can be logged.
+ */
+public class ValidatingGLES20Api implements GLES20Api {
+
+    private static final String TAG = "ValidatingGLES20Api";
+
+    private static final int DEFAULT_HISTORY_SIZE = 64;
+    // Each entry is the opcode followed by four arguments.
+    private static final int ENTRY_SIZE = 5;
+
+    private final GLES20Api mDelegate;
+    private final int[] mHistory;
+    private final int mHistorySize;
+    private int mHistoryCount;
+    private int mHistoryIndex;
+    private boolean mFullValidation;
+    private int mErrorCount;
+
+    public ValidatingGLES20Api(GLES20Api delegate) {
+        this(delegate, DEFAULT_HISTORY_SIZE);
+    }
+
+    public ValidatingGLES20Api(GLES20Api delegate, int historySize) {
+        mDelegate = delegate;
+        mHistorySize = historySize;
+        mHistory = new int[historySize * ENTRY_SIZE];
+    }
+
+    public void setFullValidation(boolean enabled) {
+        mFullValidation = enabled;
+        mHistoryCount = 0;
+        mHistoryIndex = 0;
+    }
+
+    public boolean isFullValidation() {
+        return mFullValidation;
+    }
+
+    // Returns the number of GL errors seen by check() and checkErrors().
+    public int getErrorCount() {
+        return mErrorCount;
+    }
+
+    // Drains the GL error flags and logs them, returns the number of errors.
+    // This is the only check done when full validation is off.
+    public int checkErrors(String where) {
+        int count = 0;
+        int error;
+        // Each call clears one flag, there are only a few of them.
+        while ((error = mDelegate.glGetError()) != GLES20.GL_NO_ERROR && count < 8) {
+            Log.e(TAG, "GL error " + Integer.toHexString(error) + " " + where);
+            count++;
+        }
+        mErrorCount += count;
+        return count;
+    }
+
+    private void record(int opcode) {
+        record(opcode, 0, 0, 0, 0);
+    }
+
+    private void record(int opcode, int a) {
+        record(opcode, a, 0, 0, 0);
+    }
+
+    private void record(int opcode, int a, int b) {
+        record(opcode, a, b, 0, 0);
+    }
+
+    private void record(int opcode, int a, int b, int c) {
+        record(opcode, a, b, c, 0);
+    }
+
+    private void record(int opcode, int a, int b, int c, int d) {
+        int[] history = mHistory;
+        int index = mHistoryIndex * ENTRY_SIZE;
+        history[index] = opcode;
+        history[index + 1] = a;
+        history[index + 2] = b;
+        history[index + 3] = c;
+        history[index + 4] = d;
+        mHistoryIndex = (mHistoryIndex + 1) % mHistorySize;
+        if (mHistoryCount < mHistorySize) mHistoryCount++;
+    }
+
+    private void check() {
+        int error = mDelegate.glGetError();
+        if (error == GLES20.GL_NO_ERROR) return;
+        mErrorCount++;
+        int last = (mHistoryIndex + mHistorySize - 1) % mHistorySize;
+        Log.e(TAG, "GL error " + Integer.toHexString(error) + " after "
+                + RecordingGLES20Api.getOpcodeName(mHistory[last * ENTRY_SIZE]), new Throwable());
+        dumpHistory();
+    }
+
+    // Logs the recorded calls, oldest first.
+    public void dumpHistory() {
+        int first = (mHistoryIndex + mHistorySize - mHistoryCount) % mHistorySize;
+        StringBuilder b = new StringBuilder("Last GL calls:");
+        for (int i = 0; i < mHistoryCount; i++) {
+            int index = ((first + i) % mHistorySize) * ENTRY_SIZE;
+            b.append("\n  ").append(RecordingGLES20Api.getOpcodeName(mHistory[index]));
+            b.append('(');
+            for (int j = 1; j < ENTRY_SIZE; j++) {
+                if (j > 1) b.append(", ");
+                b.append(mHistory[index + j]);
+            }
+            b.append(')');
+        }
+        Log.e(TAG, b.toString());
+    }
+
+    @Override
+    public void glActiveTexture(int texture) {
+        if (mFullValidation) {
+            record(OP_ACTIVE_TEXTURE, texture);
+        }
+        mDelegate.glActiveTexture(texture);
+        if (mFullValidation) check();
+    }
+
+    @Override
+    public void glAttachShader(int program, int shader) {
+        if (mFullValidation) {
+            record(OP_ATTACH_SHADER, program, shader);
+        }
+        mDelegate.glAttachShader(program, shader);
+        if (mFullValidation) check();
+    }
+
+    @Override
+    public void glBindBuffer(int target, int buffer) {
+        if (mFullValidation) {
+            record(OP_BIND_BUFFER, target, buffer);
+        }
+        mDelegate.glBindBuffer(target, buffer);
+        if (mFullValidation) check();
+    }
+
+    @Override
+    public void glBindFramebuffer(int target, int framebuffer) {
+        if (mFullValidation) {
+            record(OP_BIND_FRAMEBUFFER, target, framebuffer);
+        }
+        mDelegate.glBindFramebuffer(target, framebuffer);
+        if (mFullValidation) check();
+    }
+
+    @Override
+    public void glBindTexture(int target, int texture) {
+        if (mFullValidation) {
+            record(OP_BIND_TEXTURE, target, texture);
+        }
+        mDelegate.glBindTexture(target, texture);
+        if (mFullValidation) check();
+    }
+
+    @Override
+    public void glBlendColor(float red, float green, float blue, float alpha) {
+        if (mFullValidation) {
+            record(OP_BLEND_COLOR, Float.floatToRawIntBits(red), Float.floatToRawIntBits(green),
+                    Float.floatToRawIntBits(blue), Float.floatToRawIntBits(alpha));
+        }
+        mDelegate.glBlendColor(red, green, blue, alpha);
+        if (mFullValidation) check();
+    }
+
+    @Override
+    public void glBlendFunc(int sfactor, int dfactor) {
+        if (mFullValidation) {
+            record(OP_BLEND_FUNC, sfactor, dfactor);
+        }
+        mDelegate.glBlendFunc(sfactor, dfactor);
+        if (mFullValidation) check();
+    }
+
+    @Override
+    public void glBufferData(int target, int size, Buffer data, int usage) {
+        if (mFullValidation) {
+            record(OP_BUFFER_DATA, target, size, usage);
+        }
+        mDelegate.glBufferData(target, size, data, usage);
+        if (mFullValidation) check();
+    }
+
+    @Override
+    public void glBufferSubData(int target, int offset, int size, Buffer data) {
+        if (mFullValidation) {
+            record(OP_BUFFER_SUB_DATA, target, offset, size);
+        }
+        mDelegate.glBufferSubData(target, offset, size, data);
+        if (mFullValidation) check();
+    }
+
+    @Override
+    public int glCheckFramebufferStatus(int target) {
+        if (mFullValidation) {
+            record(OP_CHECK_FRAMEBUFFER_STATUS, target);
+        }
+        int result = mDelegate.glCheckFramebufferStatus(target);
+        if (mFullValidation) check();
+        return result;
+    }
+
+    @Override
+    public void glClear(int mask) {
+        if (mFullValidation) {
+            record(OP_CLEAR, mask);
+        }
+        mDelegate.glClear(mask);
+        if (mFullValidation) check();
+    }
+
+    @Override
+    public void glClearColor(float red, float green, float blue, float alpha) {
+        if (mFullValidation) {
+            record(OP_CLEAR_COLOR, Float.floatToRawIntBits(red), Float.floatToRawIntBits(green),
+                    Float.floatToRawIntBits(blue), Float.floatToRawIntBits(alpha));
+        }
+        mDelegate.glClearColor(red, green, blue, alpha);
+        if (mFullValidation) check();
+    }
+
+    @Override
+    public void glCompileShader(int shader) {
+        if (mFullValidation) {
+            record(OP_COMPILE_SHADER, shader);
+        }
+        mDelegate.glCompileShader(shader);
+        if (mFullValidation) check();
+    }
+
+    @Override
+    public int glCreateProgram() {
+        if (mFullValidation) {
+            record(OP_CREATE_PROGRAM);
+        }
+        int result = mDelegate.glCreateProgram();
+        if (mFullValidation) check();
+        return result;
+    }
+
+    @Override
+    public int glCreateShader(int type) {
+        if (mFullValidation) {
+            record(OP_CREATE_SHADER, type);
+        }
+        int result = mDelegate.glCreateShader(type);
+        if (mFullValidation) check();
+        return result;
+    }
+
+    @Override
+    public void glDeleteBuffers(int n, int[] buffers, int offset) {
+        if (mFullValidation) {
+            record(OP_DELETE_BUFFERS, n, offset);
+        }
+        mDelegate.glDeleteBuffers(n, buffers, offset);
+        if (mFullValidation) check();
+    }
+
+    @Override
+    public void glDeleteFramebuffers(int n, int[] framebuffers, int offset) {
+        if (mFullValidation) {
+            record(OP_DELETE_FRAMEBUFFERS, n, offset);
+        }
+        mDelegate.glDeleteFramebuffers(n, framebuffers, offset);
+        if (mFullValidation) check();
+    }
+
+    @Override
+    public void glDeleteProgram(int program) {
+        if (mFullValidation) {
+            record(OP_DELETE_PROGRAM, program);
+        }
+        mDelegate.glDeleteProgram(program);
+        if (mFullValidation) check();
+    }
+
+    @Override
+    public void glDeleteTextures(int n, int[] textures, int offset) {
+        if (mFullValidation) {
+            record(OP_DELETE_TEXTURES, n, offset);
+        }
+        mDelegate.glDeleteTextures(n, textures, offset);
+        if (mFullValidation) check();
+    }
+
+    @Override
+    public void glDisable(int cap) {
+        if (mFullValidation) {
+            record(OP_DISABLE, cap);
+        }
+        mDelegate.glDisable(cap);
+        if (mFullValidation) check();
+    }
+
+    @Override
+    public void glDisableVertexAttribArray(int index) {
+        if (mFullValidation) {
+            record(OP_DISABLE_VERTEX_ATTRIB_ARRAY, index);
+        }
+        mDelegate.glDisableVertexAttribArray(index);
+        if (mFullValidation) check();
+    }
+
+    @Override
+    public void glDrawArrays(int mode, int first, int count) {
+        if (mFullValidation) {
+            record(OP_DRAW_ARRAYS, mode, first, count);
+        }
+        mDelegate.glDrawArrays(mode, first, count);
+        if (mFullValidation) check();
+    }
+
+    @Override
+    public void glDrawElements(int mode, int count, int type, int offset) {
+        if (mFullValidation) {
+            record(OP_DRAW_ELEMENTS, mode, count, type, offset);
+        }
+        mDelegate.glDrawElements(mode, count, type, offset);
+        if (mFullValidation) check();
+    }
+
+    @Override
+    public void glEnable(int cap) {
+        if (mFullValidation) {
+            record(OP_ENABLE, cap);
+        }
+        mDelegate.glEnable(cap);
+        if (mFullValidation) check();
+    }
+
+    @Override
+    public void glEnableVertexAttribArray(int index) {
+        if (mFullValidation) {
+            record(OP_ENABLE_VERTEX_ATTRIB_ARRAY, index);
+        }
+        mDelegate.glEnableVertexAttribArray(index);
+        if (mFullValidation) check();
+    }
+
+    @Override
+    public void glFramebufferTexture2D(int target, int attachment, int textarget, int texture,
+            int level) {
+        if (mFullValidation) {
+            record(OP_FRAMEBUFFER_TEXTURE_2D, target, attachment, textarget, texture);
+        }
+        mDelegate.glFramebufferTexture2D(target, attachment, textarget, texture, level);
+        if (mFullValidation) check();
+    }
+
+    @Override
+    public void glGenBuffers(int n, int[] buffers, int offset) {
+        if (mFullValidation) {
+            record(OP_GEN_BUFFERS, n, offset);
+        }
+        mDelegate.glGenBuffers(n, buffers, offset);
+        if (mFullValidation) check();
+    }
+
+    @Override
+    public void glGenFramebuffers(int n, int[] framebuffers, int offset) {
+        if (mFullValidation) {
+            record(OP_GEN_FRAMEBUFFERS, n, offset);
+        }
+        mDelegate.glGenFramebuffers(n, framebuffers, offset);
+        if (mFullValidation) check();
+    }
+
+    @Override
+    public void glGenTextures(int n, int[] textures, int offset) {
+        if (mFullValidation) {
+            record(OP_GEN_TEXTURES, n, offset);
+        }
+        mDelegate.glGenTextures(n, textures, offset);
+        if (mFullValidation) check();
+    }
+
+    @Override
+    public int glGetAttribLocation(int program, String name) {
+        if (mFullValidation) {
+            record(OP_GET_ATTRIB_LOCATION, program);
+        }
+        int result = mDelegate.glGetAttribLocation(program, name);
+        if (mFullValidation) check();
+        return result;
+    }
+
+    @Override
+    public int glGetError() {
+        return mDelegate.glGetError();
+    }
+
+    @Override
+    public String glGetProgramInfoLog(int program) {
+        if (mFullValidation) {
+            record(OP_GET_PROGRAM_INFO_LOG, program);
+        }
+        String result = mDelegate.glGetProgramInfoLog(program);
+        if (mFullValidation) check();
+        return result;
+    }
+
+    @Override
+    public void glGetProgramiv(int program, int pname, int[] params, int offset) {
+        if (mFullValidation) {
+            record(OP_GET_PROGRAM_IV, program, pname, offset);
+        }
+        mDelegate.glGetProgramiv(program, pname, params, offset);
+        if (mFullValidation) check();
+    }
+
+    @Override
+    public int glGetUniformLocation(int program, String name) {
+        if (mFullValidation) {
+            record(OP_GET_UNIFORM_LOCATION, program);
+        }
+        int result = mDelegate.glGetUniformLocation(program, name);
+        if (mFullValidation) check();
+        return result;
+    }
+
+    @Override
+    public void glLineWidth(float width) {
+        if (mFullValidation) {
+            record(OP_LINE_WIDTH, Float.floatToRawIntBits(width));
+        }
+        mDelegate.glLineWidth(width);
+        if (mFullValidation) check();
+    }
+
+    @Override
+    public void glLinkProgram(int program) {
+        if (mFullValidation) {
+            record(OP_LINK_PROGRAM, program);
+        }
+        mDelegate.glLinkProgram(program);
+        if (mFullValidation) check();
+    }
+
+    @Override
+    public void glShaderSource(int shader, String string) {
+        if (mFullValidation) {
+            record(OP_SHADER_SOURCE, shader);
+        }
+        mDelegate.glShaderSource(shader, string);
+        if (mFullValidation) check();
+    }
+
+    @Override
+    public void glTexImage2D(int target, int level, int internalformat, int width, int height,
+            int border, int format, int type, Buffer pixels) {
+        if (mFullValidation) {
+            record(OP_TEX_IMAGE_2D, target, level, internalformat, width);
+        }
+        mDelegate.glTexImage2D(target, level, internalformat, width, height, border, format, type,
+                pixels);
+        if (mFullValidation) check();
+    }
+
+    @Override
+    public void glTexParameterf(int target, int pname, float param) {
+        if (mFullValidation) {
+            record(OP_TEX_PARAMETER_F, target, pname, Float.floatToRawIntBits(param));
+        }
+        mDelegate.glTexParameterf(target, pname, param);
+        if (mFullValidation) check();
+    }
+
+    @Override
+    public void glTexParameteri(int target, int pname, int param) {
+        if (mFullValidation) {
+            record(OP_TEX_PARAMETER_I, target, pname, param);
+        }
+        mDelegate.glTexParameteri(target, pname, param);
+        if (mFullValidation) check();
+    }
+
+    @Override
+    public void glUniform1f(int location, float x) {
+        if (mFullValidation) {
+            record(OP_UNIFORM_1F, location, Float.floatToRawIntBits(x));
+        }
+        mDelegate.glUniform1f(location, x);
+        if (mFullValidation) check();
+    }
+
+    @Override
+    public void glUniform1i(int location, int x) {
+        if (mFullValidation) {
+            record(OP_UNIFORM_1I, location, x);
+        }
+        mDelegate.glUniform1i(location, x);
+        if (mFullValidation) check();
+    }
+
+    @Override
+    public void glUniform4fv(int location, int count, float[] v, int offset) {
+        if (mFullValidation) {
+            record(OP_UNIFORM_4FV, location, count, offset);
+        }
+        mDelegate.glUniform4fv(location, count, v, offset);
+        if (mFullValidation) check();
+    }
+
+    @Override
+    public void glUniformMatrix4fv(int location, int count, boolean transpose, float[] value,
+            int offset) {
+        if (mFullValidation) {
+            record(OP_UNIFORM_MATRIX_4FV, location, count, transpose ? 1 : 0, offset);
+        }
+        mDelegate.glUniformMatrix4fv(location, count, transpose, value, offset);
+        if (mFullValidation) check();
+    }
+
+    @Override
+    public void glUseProgram(int program) {
+        if (mFullValidation) {
+            record(OP_USE_PROGRAM, program);
+        }
+        mDelegate.glUseProgram(program);
+        if (mFullValidation) check();
+    }
+
+    @Override
+    public void glVertexAttribPointer(int indx, int size, int type, boolean normalized, int stride,
+            int offset) {
+        if (mFullValidation) {
+            record(OP_VERTEX_ATTRIB_POINTER, indx, size, stride, offset);
+        }
+        mDelegate.glVertexAttribPointer(indx, size, type, normalized, stride, offset);
+        if (mFullValidation) check();
+    }
+
+    @Override
+    public void glViewport(int x, int y, int width, int height) {
+        if (mFullValidation) {
+            record(OP_VIEWPORT, x, y, width, height);
+        }
+        mDelegate.glViewport(x, y, width, height);
+        if (mFullValidation) check();
+    }
+
+    @Override
+    public void glScissor(int x, int y, int width, int height) {
+        if (mFullValidation) {
+            record(OP_SCISSOR, x, y, width, height);
+        }
+        mDelegate.glScissor(x, y, width, height);
+        if (mFullValidation) check();
+    }
+
+    @Override
+    public void glDepthMask(boolean flag) {
+        if (mFullValidation) {
+            record(OP_DEPTH_MASK, flag ? 1 : 0);
+        }
+        mDelegate.glDepthMask(flag);
+        if (mFullValidation) check();
+    }
+
+    @Override
+    public void texImage2D(int target, int level, Bitmap bitmap, int border) {
+        if (mFullValidation) {
+            record(OP_UTILS_TEX_IMAGE_2D, target, level, border);
+        }
+        mDelegate.texImage2D(target, level, bitmap, border);
+        if (mFullValidation) check();
+    }
+
+    @Override
+    public void texSubImage2D(int target, int level, int xoffset, int yoffset, Bitmap bitmap,
+            int format, int type) {
+        if (mFullValidation) {
+            record(OP_UTILS_TEX_SUB_IMAGE_2D, target, level, xoffset, yoffset);
+        }
+        mDelegate.texSubImage2D(target, level, xoffset, yoffset, bitmap, format, type);
+        if (mFullValidation) check();
+    }
+}
@@ -99,6 +99,22 @@ public abstract class BasicTexture implements Texture {
         return mTextureHeight;
     }
 
+    // Returns true if the content is a part of a GL texture shared with other
+    // textures, like a page of a TextureAtlas. The content then starts at
+    // (getTextureOffsetX(), getTextureOffsetY()) in the GL texture, whose
+    // size is getTextureWidth() x getTextureHeight().
+    public boolean isSubTexture() {
+        return false;
+    }
+
+    public int getTextureOffsetX() {
+        return 0;
+    }
+
+    public int getTextureOffsetY() {
+        return 0;
+    }
+
     // Returns true if the texture has one pixel transparent border around the
     // actual content. This is used to avoid jigged edges.
     //
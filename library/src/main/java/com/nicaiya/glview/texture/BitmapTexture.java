@@ -35,6 +35,11 @@ public class BitmapTexture extends UploadedTexture {
         return mContentBitmap;
     }
 
+    @Override
+    protected int getUploadByteCount() {
+        return mContentBitmap.getRowBytes() * mContentBitmap.getHeight();
+    }
+
     public Bitmap getBitmap() {
         return mContentBitmap;
     }
@@ -0,0 +1,197 @@
+package com.nicaiya.glview.texture;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint.FontMetricsInt;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.Typeface;
+import android.text.TextPaint;
+import android.util.LruCache;
+
+import com.nicaiya.glview.glrender.GLCanvas;
+
+import java.util.HashMap;
+
+/**
+ * GlyphCache draws text from glyphs rasterized once per typeface, text size
+ * and character. The glyphs are white, and are put into an atlas shared by
+ * all the caches, so text of any color is drawn as a batch of quads from a
+ * single texture, and changing the text or its color doesn't upload anything.
+ * <p>
+ * To get a GlyphCache, use getInstance() and specify the typeface and the
+ * text size. The glyphs are drawn side by side by their advances, without
+ * kerning or shaping, which suits the short labels it is meant for.
+ * <p>
+ * Each cache keeps the MAX_GLYPHS glyphs drawn last, so a text of many
+ * different characters doesn't fill the atlas. The textures of the others
+ * are recycled, which releases their space in the atlas.
+ */
+public class GlyphCache {
+
+    private static final int MAX_GLYPHS = 256;
+
+    private static final TextureAtlas sAtlas = new TextureAtlas();
+    private static final HashMap<CacheKey, GlyphCache> sCaches =
+            new HashMap<CacheKey, GlyphCache>();
+    private static final CacheKey sCacheKey = new CacheKey();
+
+    private final TextPaint mPaint;
+    private final FontMetricsInt mMetrics;
+    private final LruCache<Integer, Glyph> mGlyphs = new LruCache<Integer, Glyph>(MAX_GLYPHS) {
+        @Override
+        protected void entryRemoved(boolean evicted, Integer key, Glyph oldValue,
+                Glyph newValue) {
+            if (oldValue.mTexture != null) oldValue.mTexture.recycle();
+        }
+    };
+
+    private final Rect mTempBounds = new Rect();
+    private final RectF mTempTarget = new RectF();
+
+    private GlyphCache(Typeface typeface, float textSize) {
+        mPaint = new TextPaint();
+        mPaint.setTextSize(textSize);
+        mPaint.setAntiAlias(true);
+        mPaint.setColor(Color.WHITE);
+        mPaint.setTypeface(typeface);
+        mMetrics = mPaint.getFontMetricsInt();
+    }
+
+    // The typeface may be null for the default one.
+    public static GlyphCache getInstance(Typeface typeface, float textSize) {
+        synchronized (sCaches) {
+            sCacheKey.typeface = typeface;
+            sCacheKey.textSize = textSize;
+            GlyphCache cache = sCaches.get(sCacheKey);
+            if (cache == null) {
+                cache = new GlyphCache(typeface, textSize);
+                sCaches.put(sCacheKey.clone(), cache);
+            }
+            return cache;
+        }
+    }
+
+    // Returns the height of a line, the same as a StringTexture's.
+    public int getHeight() {
+        return Math.max(mMetrics.bottom - mMetrics.top, 1);
+    }
+
+    public int measureText(String text) {
+        int width = 0;
+        for (int i = 0, n = text.length(); i < n; ) {
+            int codePoint = text.codePointAt(i);
+            width += getGlyph(codePoint).mAdvance;
+            i += Character.charCount(codePoint);
+        }
+        return width;
+    }
+
+    /**
+     * Draws the text with its top left corner at (x, y), in the given color.
+     * The glyphs are rasterized the first time they are drawn.
+     */
+    public void drawText(GLCanvas canvas, String text, int x, int y, int color) {
+        int baseline = y - mMetrics.ascent;
+        for (int i = 0, n = text.length(); i < n; ) {
+            int codePoint = text.codePointAt(i);
+            Glyph glyph = getGlyph(codePoint);
+            if (glyph.mTexture != null) {
+                int left = x + glyph.mLeft;
+                int top = baseline + glyph.mTop;
+                mTempTarget.set(left, top, left + glyph.mTexture.getWidth(),
+                        top + glyph.mTexture.getHeight());
+                canvas.drawTintedTexture(glyph.mTexture, mTempTarget, color);
+            }
+            x += glyph.mAdvance;
+            i += Character.charCount(codePoint);
+        }
+    }
+
+    private synchronized Glyph getGlyph(int codePoint) {
+        Glyph glyph = mGlyphs.get(codePoint);
+        if (glyph == null) {
+            glyph = new Glyph(new String(Character.toChars(codePoint)));
+            mGlyphs.put(codePoint, glyph);
+        }
+        return glyph;
+    }
+
+    private class Glyph {
+        final int mAdvance;
+        // The position of the texture relative to the pen on the baseline.
+        final int mLeft;
+        final int mTop;
+        // Null if the glyph has no ink, like a space.
+        final GlyphTexture mTexture;
+
+        Glyph(String text) {
+            // The advances are rounded so the glyphs stay on the pixel grid.
+            mAdvance = Math.round(mPaint.measureText(text));
+            Rect bounds = mTempBounds;
+            mPaint.getTextBounds(text, 0, text.length(), bounds);
+            if (bounds.isEmpty()) {
+                mLeft = 0;
+                mTop = 0;
+                mTexture = null;
+            } else {
+                // Leave a pixel around the bounds for the antialiasing.
+                mLeft = bounds.left - 1;
+                mTop = bounds.top - 1;
+                mTexture = new GlyphTexture(text, mPaint, -mLeft, -mTop,
+                        bounds.width() + 2, bounds.height() + 2);
+                mTexture.setAtlas(sAtlas);
+            }
+        }
+    }
+
+    private static class GlyphTexture extends CanvasTexture {
+        private final String mText;
+        private final TextPaint mPaint;
+        private final int mOriginX;
+        private final int mOriginY;
+
+        GlyphTexture(String text, TextPaint paint, int originX, int originY,
+                int width, int height) {
+            super(width, height);
+            mText = text;
+            mPaint = paint;
+            mOriginX = originX;
+            mOriginY = originY;
+        }
+
+        @Override
+        protected void onDraw(Canvas canvas, Bitmap backing) {
+            canvas.drawText(mText, mOriginX, mOriginY, mPaint);
+        }
+    }
+
+    private static class CacheKey implements Cloneable {
+        public Typeface typeface;
+        public float textSize;
+
+        @Override
+        public int hashCode() {
+            int x = Float.floatToIntBits(textSize);
+            return typeface == null ? x : x ^ typeface.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (!(object instanceof CacheKey)) return false;
+            CacheKey o = (CacheKey) object;
+            return textSize == o.textSize
+                    && (typeface == null ? o.typeface == null : typeface.equals(o.typeface));
+        }
+
+        @Override
+        public CacheKey clone() {
+            try {
+                return (CacheKey) super.clone();
+            } catch (CloneNotSupportedException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+}
@@ -14,6 +14,8 @@ public class ResourceTexture extends UploadedTexture {
 
     protected final Context mContext;
     protected final int mResId;
+    // The bytes of the decoded resource, read from its header.
+    private int mUploadByteCount = UNKNOWN_BYTE_COUNT;
 
     public ResourceTexture(Context context, int resId) {
         Utils.checkNotNull(context);
@@ -30,6 +32,21 @@ public class ResourceTexture extends UploadedTexture {
                 mContext.getResources(), mResId, options);
     }
 
+    @Override
+    protected int getUploadByteCount() {
+        if (mWidth != UNSPECIFIED) return super.getUploadByteCount();
+        if (mUploadByteCount == UNKNOWN_BYTE_COUNT) {
+            // Only decode the size, which is enough to estimate the cost.
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeResource(mContext.getResources(), mResId, options);
+            if (options.outWidth > 0 && options.outHeight > 0) {
+                mUploadByteCount = options.outWidth * options.outHeight * BYTES_PER_PIXEL;
+            }
+        }
+        return mUploadByteCount;
+    }
+
     @Override
     protected void onFreeBitmap(Bitmap bitmap) {
         if (!inFinalizer()) {
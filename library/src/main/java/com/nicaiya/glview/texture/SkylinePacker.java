@@ -0,0 +1,151 @@
+package com.nicaiya.glview.texture;
+
+import java.util.Arrays;
+
+/**
+ * SkylinePacker places rectangles in an area of a fixed size. It keeps the
+ * "skyline", the top edge of the rectangles placed so far, as a list of
+ * horizontal segments, and puts each new rectangle where its top ends up the
+ * lowest (bottom-left rule). The space below the skyline is never reused, so
+ * removed rectangles are only accounted for by the caller.
+ */
+class SkylinePacker {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final int mWidth;
+    private final int mHeight;
+
+    // The segments, sorted by x. Each one spans [mX[i], mX[i] + mW[i]) at
+    // height mY[i], and together they cover the whole width.
+    private int[] mX = new int[INITIAL_CAPACITY];
+    private int[] mY = new int[INITIAL_CAPACITY];
+    private int[] mW = new int[INITIAL_CAPACITY];
+    private int mCount;
+
+    private int mUsedArea;
+
+    // The position of the last rectangle placed by pack().
+    private int mPackedX;
+    private int mPackedY;
+
+    SkylinePacker(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        reset();
+    }
+
+    void reset() {
+        mX[0] = 0;
+        mY[0] = 0;
+        mW[0] = mWidth;
+        mCount = 1;
+        mUsedArea = 0;
+    }
+
+    // Returns the area of all the rectangles placed since the last reset().
+    int getUsedArea() {
+        return mUsedArea;
+    }
+
+    int getPackedX() {
+        return mPackedX;
+    }
+
+    int getPackedY() {
+        return mPackedY;
+    }
+
+    /**
+     * Places a rectangle of the given size. Returns false if it doesn't fit,
+     * otherwise its position is returned by getPackedX() and getPackedY().
+     */
+    boolean pack(int width, int height) {
+        int bestIndex = -1;
+        int bestTop = Integer.MAX_VALUE;
+        int bestWidth = Integer.MAX_VALUE;
+        for (int i = 0; i < mCount; i++) {
+            int y = fit(i, width, height);
+            if (y < 0) continue;
+            int top = y + height;
+            if (top < bestTop || (top == bestTop && mW[i] < bestWidth)) {
+                bestIndex = i;
+                bestTop = top;
+                bestWidth = mW[i];
+            }
+        }
+        if (bestIndex < 0) return false;
+
+        mPackedX = mX[bestIndex];
+        mPackedY = bestTop - height;
+        addSegment(bestIndex, mPackedX, bestTop, width);
+        mUsedArea += width * height;
+        return true;
+    }
+
+    // Returns the lowest y a rectangle starting at the segment can be put at,
+    // or -1 if it doesn't fit there.
+    private int fit(int index, int width, int height) {
+        int x = mX[index];
+        if (x + width > mWidth) return -1;
+        int y = 0;
+        int remaining = width;
+        for (int i = index; remaining > 0; i++) {
+            y = Math.max(y, mY[i]);
+            if (y + height > mHeight) return -1;
+            remaining -= mW[i];
+        }
+        return y;
+    }
+
+    // Inserts the segment at the index, and cuts the following ones it covers.
+    private void addSegment(int index, int x, int y, int width) {
+        ensureCapacity(mCount + 1);
+        System.arraycopy(mX, index, mX, index + 1, mCount - index);
+        System.arraycopy(mY, index, mY, index + 1, mCount - index);
+        System.arraycopy(mW, index, mW, index + 1, mCount - index);
+        mX[index] = x;
+        mY[index] = y;
+        mW[index] = width;
+        mCount++;
+
+        int right = x + width;
+        int i = index + 1;
+        while (i < mCount && mX[i] < right) {
+            int end = mX[i] + mW[i];
+            if (end <= right) {
+                removeSegment(i);
+            } else {
+                mW[i] = end - right;
+                mX[i] = right;
+                break;
+            }
+        }
+
+        // Merge the neighbors at the same height.
+        for (i = 0; i < mCount - 1; ) {
+            if (mY[i] == mY[i + 1]) {
+                mW[i] += mW[i + 1];
+                removeSegment(i + 1);
+            } else {
+                i++;
+            }
+        }
+    }
+
+    private void removeSegment(int index) {
+        System.arraycopy(mX, index + 1, mX, index, mCount - index - 1);
+        System.arraycopy(mY, index + 1, mY, index, mCount - index - 1);
+        System.arraycopy(mW, index + 1, mW, index, mCount - index - 1);
+        mCount--;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > mX.length) {
+            int length = mX.length * 2;
+            mX = Arrays.copyOf(mX, length);
+            mY = Arrays.copyOf(mY, length);
+            mW = Arrays.copyOf(mW, length);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.nicaiya.glview.texture;
+
+import android.graphics.Bitmap;
+
+import com.nicaiya.glview.glrender.GLCanvas;
+
+import java.util.ArrayList;
+
+import javax.microedition.khronos.opengles.GL11;
+
+/**
+ * TextureAtlas packs small UploadedTextures into shared GL textures, the
+ * pages, so they don't each need a power of 2 texture of their own and can
+ * be drawn without switching textures. A texture is put into an atlas with
+ * {@link UploadedTexture#setAtlas(TextureAtlas)} and can then be used like
+ * any other texture.
+ * <p>
+ * The entries are placed by a {@link SkylinePacker}, which can't reuse the
+ * space of the removed ones. When no page has room for a new entry, a page
+ * which has lost more than a quarter of its area to removed entries is
+ * compacted instead of adding a page: its entries are unloaded, and packed
+ * again when they are drawn next.
+ * <p>
+ * Every entry is surrounded by a one pixel gutter, filled with its edge
+ * pixels (or left transparent if the texture has a border of its own), so
+ * the filtering doesn't pick up the neighbors. Only ARGB_8888 content is
+ * put into an atlas, the others get a texture of their own.
+ * <p>
+ * Adding entries must happen in the GL thread, removing them can happen in
+ * any thread.
+ */
+public class TextureAtlas {
+
+    public static final int PAGE_SIZE_SMALL = 1024;
+    public static final int PAGE_SIZE_LARGE = 2048;
+
+    static final int GUTTER = 1;
+
+    // The rows of the page cleared by each upload.
+    private static final int CLEAR_ROWS = 64;
+    private static final float COMPACT_THRESHOLD = 0.25f;
+
+    private final int mPageSize;
+    private final int mMaxEntrySize;
+    private final ArrayList<Page> mPages = new ArrayList<Page>();
+
+    public TextureAtlas() {
+        this(PAGE_SIZE_SMALL);
+    }
+
+    // The page size must be a power of 2. Textures larger than a quarter of
+    // it along a dimension are not put into the atlas.
+    public TextureAtlas(int pageSize) {
+        mPageSize = pageSize;
+        mMaxEntrySize = pageSize / 4;
+    }
+
+    public int getPageSize() {
+        return mPageSize;
+    }
+
+    public synchronized int getPageCount() {
+        return mPages.size();
+    }
+
+    // Returns whether a texture of the given size, including its border, can
+    // be put into the atlas.
+    public boolean accepts(int width, int height, Bitmap.Config config) {
+        return width <= mMaxEntrySize && height <= mMaxEntrySize
+                && config == Bitmap.Config.ARGB_8888;
+    }
+
+    /**
+     * Reserves the space for the texture of the given size. Returns the page
+     * and sets the position of the texture content in it.
+     */
+    synchronized Page add(GLCanvas canvas, UploadedTexture texture, int width, int height) {
+        // The pages are gone with their GL context.
+        for (int i = mPages.size() - 1; i >= 0; i--) {
+            if (!mPages.get(i).isLoaded()) mPages.remove(i).mEntries.clear();
+        }
+
+        int packedWidth = width + 2 * GUTTER;
+        int packedHeight = height + 2 * GUTTER;
+        Page page = null;
+        for (int i = 0, n = mPages.size(); i < n; i++) {
+            if (mPages.get(i).mPacker.pack(packedWidth, packedHeight)) {
+                page = mPages.get(i);
+                break;
+            }
+        }
+        if (page == null) {
+            page = findFragmentedPage();
+            if (page != null) {
+                compact(canvas, page);
+            } else {
+                page = new Page(mPageSize);
+                page.prepare(canvas);
+                mPages.add(page);
+            }
+            page.mPacker.pack(packedWidth, packedHeight);
+        }
+
+        texture.mAtlasX = page.mPacker.getPackedX() + GUTTER;
+        texture.mAtlasY = page.mPacker.getPackedY() + GUTTER;
+        texture.mAtlasArea = packedWidth * packedHeight;
+        page.mEntries.add(texture);
+        return page;
+    }
+
+    // Releases the space of the texture. A page without entries is deleted.
+    synchronized void remove(UploadedTexture texture, Page page) {
+        if (!page.mEntries.remove(texture)) return;
+        page.mRemovedArea += texture.mAtlasArea;
+        if (page.mEntries.isEmpty() && mPages.remove(page)) {
+            page.recycle();
+        }
+    }
+
+    private Page findFragmentedPage() {
+        Page result = null;
+        float maxRatio = COMPACT_THRESHOLD;
+        for (int i = 0, n = mPages.size(); i < n; i++) {
+            Page page = mPages.get(i);
+            float ratio = (float) page.mRemovedArea / (mPageSize * mPageSize);
+            if (ratio > maxRatio) {
+                maxRatio = ratio;
+                result = page;
+            }
+        }
+        return result;
+    }
+
+    // Unloads the entries of the page and empties it.
+    private void compact(GLCanvas canvas, Page page) {
+        for (int i = 0, n = page.mEntries.size(); i < n; i++) {
+            page.mEntries.get(i).onEvictedFromAtlas();
+        }
+        page.mEntries.clear();
+        page.mPacker.reset();
+        page.mRemovedArea = 0;
+        page.clear(canvas);
+    }
+
+    static class Page extends RawTexture {
+
+        final SkylinePacker mPacker;
+        final ArrayList<UploadedTexture> mEntries = new ArrayList<UploadedTexture>();
+        int mRemovedArea;
+
+        Page(int size) {
+            super(size, size, false);
+            mPacker = new SkylinePacker(size, size);
+        }
+
+        @Override
+        public void prepare(GLCanvas canvas) {
+            super.prepare(canvas);
+            clear(canvas);
+        }
+
+        // Makes the page transparent, the initial content of a GL texture is
+        // undefined.
+        void clear(GLCanvas canvas) {
+            int size = getWidth();
+            int rows = Math.min(CLEAR_ROWS, size);
+            Bitmap bitmap = Bitmap.createBitmap(size, rows, Bitmap.Config.ARGB_8888);
+            for (int y = 0; y < size; y += rows) {
+                canvas.texSubImage2D(this, 0, y, bitmap, GL11.GL_RGBA, GL11.GL_UNSIGNED_BYTE);
+            }
+            bitmap.recycle();
+        }
+    }
+}
@@ -1,89 +1,227 @@
 package com.nicaiya.glview.texture;
 
+import android.graphics.Rect;
+
 import com.nicaiya.glview.glrender.GLCanvas;
+import com.nicaiya.glview.ui.AnimationTime;
+import com.nicaiya.glview.ui.FrameScheduler;
 import com.nicaiya.glview.ui.GLRoot;
 
 import java.util.ArrayDeque;
 
-public class TextureUploader implements GLRoot.OnGLIdleListener {
+/**
+ * TextureUploader uploads the content of textures while the GL thread is
+ * idle. The foreground textures, needed on the screen, are uploaded by an
+ * idle listener of GLRoot.IDLE_PRIORITY_FOREGROUND and the background ones,
+ * prefetched, by one of GLRoot.IDLE_PRIORITY_BACKGROUND, so the other idle
+ * work runs between them.
+ * <p>
+ * The uploads between two vsyncs share a time budget. A texture is uploaded
+ * if its bytes, estimated from its size, at the rate measured from the
+ * texImage2D() and texSubImage2D() calls so far, fit in what is left of the
+ * budget and of the time until the frame deadline, if there is one. A
+ * texture of an unknown size never fits. FG_SHARE of the budget is kept for
+ * the foreground textures, and one of them is uploaded between two vsyncs
+ * anyway, as is a background one while there is no foreground one. While no
+ * frame is requested, a texture is also uploaded in each run of the
+ * listeners, which would otherwise wait for the next vsync. The budget grows
+ * by BUDGET_STEP after the uploads if no frame missed a vsync or a deadline
+ * meanwhile, and is halved otherwise.
+ */
+public class TextureUploader {
     private static final int INIT_CAPACITY = 64;
-    private static final int QUOTA_PER_FRAME = 1;
 
-    private final ArrayDeque<UploadedTexture> mFgTextures =
-            new ArrayDeque<UploadedTexture>(INIT_CAPACITY);
-    private final ArrayDeque<UploadedTexture> mBgTextures =
-            new ArrayDeque<UploadedTexture>(INIT_CAPACITY);
+    private static final long NS_PER_MS = 1000000;
+    private static final long MIN_BUDGET = NS_PER_MS / 2;
+    private static final long MAX_BUDGET = 8 * NS_PER_MS;
+    private static final long INITIAL_BUDGET = 4 * NS_PER_MS;
+    private static final long BUDGET_STEP = NS_PER_MS / 4;
+    private static final float FG_SHARE = 0.75f;
+
+    // Until it is measured, the upload rate is assumed to be 500MB/s.
+    private static final float INITIAL_NS_PER_BYTE = 2;
+    // The weight of each upload in the average of the rate.
+    private static final float RATE_WEIGHT = 0.25f;
+
+    private final Queue mFgTextures = new Queue(GLRoot.IDLE_PRIORITY_FOREGROUND, false);
+    private final Queue mBgTextures = new Queue(GLRoot.IDLE_PRIORITY_BACKGROUND, true);
     private final GLRoot mGLRoot;
-    private volatile boolean mIsQueued = false;
+
+    // Only used in the GL thread.
+    private long mBudget = INITIAL_BUDGET;
+    private float mNanosPerByte = INITIAL_NS_PER_BYTE;
+    // The deadline the uploads are counted until, the time they took since
+    // the last one and the missed vsyncs and deadlines then.
+    private long mDeadline = -1;
+    private long mFgTime;
+    private long mBgTime;
+    private int mFgCount;
+    private int mMissedCount;
+    // The area of the back buffer drawn by the first draw of a texture.
+    private final Rect mDrawnRect = new Rect();
 
     public TextureUploader(GLRoot root) {
         mGLRoot = root;
     }
 
     public synchronized void clear() {
-        while (!mFgTextures.isEmpty()) {
-            mFgTextures.pop().setIsUploading(false);
-        }
-        while (!mBgTextures.isEmpty()) {
-            mBgTextures.pop().setIsUploading(false);
-        }
-    }
-
-    // caller should hold synchronized on "this"
-    private void queueSelfIfNeed() {
-        if (mIsQueued) return;
-        mIsQueued = true;
-        mGLRoot.addOnGLIdleListener(this);
+        mFgTextures.clear();
+        mBgTextures.clear();
     }
 
     public synchronized void addBgTexture(UploadedTexture t) {
-        if (t.isContentValid()) return;
-        mBgTextures.addLast(t);
-        t.setIsUploading(true);
-        queueSelfIfNeed();
+        mBgTextures.add(t);
     }
 
     public synchronized void addFgTexture(UploadedTexture t) {
-        if (t.isContentValid()) return;
-        mFgTextures.addLast(t);
-        t.setIsUploading(true);
-        queueSelfIfNeed();
+        mFgTextures.add(t);
     }
 
-    private int upload(GLCanvas canvas, ArrayDeque<UploadedTexture> deque,
-                       int uploadQuota, boolean isBackground) {
-        while (uploadQuota > 0) {
-            UploadedTexture t;
-            synchronized (this) {
-                if (deque.isEmpty()) break;
-                t = deque.removeFirst();
-                t.setIsUploading(false);
-                if (t.isContentValid()) continue;
-
-                // this has to be protected by the synchronized block
-                // to prevent the inner bitmap get recycled
-                t.updateContent(canvas);
+    // Starts counting the uploads until the next deadline once the last one
+    // has passed, and adapts the budget to how the frames did meanwhile.
+    private void updateDeadline(long now) {
+        // Without a deadline, each run of a listener counts on its own.
+        long deadline = AnimationTime.getNextDeadline(now);
+        if (deadline == mDeadline && deadline != 0) return;
+        FrameScheduler scheduler = mGLRoot.getFrameScheduler();
+        int missed = scheduler.getMissedVsyncCount() + scheduler.getMissedDeadlineCount();
+        // The frames before the first uploads don't count.
+        if (mDeadline != -1) {
+            if (missed != mMissedCount) {
+                mBudget = Math.max(MIN_BUDGET, mBudget / 2);
+            } else if (mFgTime + mBgTime > 0) {
+                mBudget = Math.min(MAX_BUDGET, mBudget + BUDGET_STEP);
             }
+        }
+        mMissedCount = missed;
+        mDeadline = deadline;
+        mFgTime = 0;
+        mBgTime = 0;
+        mFgCount = 0;
+    }
 
-            // It will took some more time for a texture to be drawn for
-            // the first time.
-            // Thus, when scrolling, if a new column appears on screen,
-            // it may cause a UI jank even these textures are uploaded.
-            if (isBackground) t.draw(canvas, 0, 0);
-            --uploadQuota;
+    // Returns whether an upload of the given cost fits in the budget.
+    // caller should hold synchronized on "this"
+    private boolean canUpload(boolean isBackground, long cost, long now, boolean idle) {
+        if (idle) return true;
+        long available = mBudget - mFgTime - mBgTime;
+        if (!isBackground) {
+            if (mFgCount == 0) return true;
+        } else if (!mFgTextures.isEmpty()) {
+            // Leave the share of the foreground textures waiting.
+            available -= Math.max(0, (long) (mBudget * FG_SHARE) - mFgTime);
+        } else if (mFgTime + mBgTime == 0) {
+            return true;
         }
-        return uploadQuota;
+        // Without a deadline, only the budget limits the uploads.
+        if (mDeadline != 0) available = Math.min(available, mDeadline - now);
+        return cost <= available;
     }
 
-    @Override
-    public boolean onGLIdle(GLCanvas canvas, boolean renderRequested) {
-        int uploadQuota = QUOTA_PER_FRAME;
-        uploadQuota = upload(canvas, mFgTextures, uploadQuota, false);
-        if (uploadQuota < QUOTA_PER_FRAME) mGLRoot.requestRender();
-        upload(canvas, mBgTextures, uploadQuota, true);
-        synchronized (this) {
-            mIsQueued = !mFgTextures.isEmpty() || !mBgTextures.isEmpty();
-            return mIsQueued;
+    // Adds an upload measured by the canvas to the average rate.
+    private void learnRate(long time, long bytes) {
+        if (bytes <= 0) return;
+        mNanosPerByte += ((float) time / bytes - mNanosPerByte) * RATE_WEIGHT;
+    }
+
+    // The textures of a priority and their idle listener. It is guarded by
+    // the TextureUploader.
+    private class Queue implements GLRoot.OnGLIdleListener {
+        private final ArrayDeque<UploadedTexture> mTextures =
+                new ArrayDeque<UploadedTexture>(INIT_CAPACITY);
+        private final int mPriority;
+        private final boolean mIsBackground;
+        private volatile boolean mIsQueued = false;
+
+        Queue(int priority, boolean isBackground) {
+            mPriority = priority;
+            mIsBackground = isBackground;
+        }
+
+        boolean isEmpty() {
+            return mTextures.isEmpty();
+        }
+
+        // caller should hold synchronized on the TextureUploader
+        void clear() {
+            while (!mTextures.isEmpty()) {
+                mTextures.pop().setIsUploading(false);
+            }
+        }
+
+        // caller should hold synchronized on the TextureUploader
+        void add(UploadedTexture t) {
+            if (t.isContentValid()) return;
+            mTextures.addLast(t);
+            t.setIsUploading(true);
+            if (mIsQueued) return;
+            mIsQueued = true;
+            mGLRoot.addOnGLIdleListener(this, mPriority);
+        }
+
+        // Uploads the textures which fit in the budget, or one anyway if no
+        // frame is requested. Returns whether one was uploaded.
+        private boolean upload(GLCanvas canvas, boolean renderRequested) {
+            boolean uploaded = false;
+            updateDeadline(System.nanoTime());
+            while (true) {
+                long start = System.nanoTime();
+                UploadedTexture t;
+                synchronized (TextureUploader.this) {
+                    if (mTextures.isEmpty()) break;
+                    t = mTextures.peekFirst();
+                    if (!t.isContentValid()) {
+                        int bytes = t.getUploadByteCount();
+                        long cost = bytes != UploadedTexture.UNKNOWN_BYTE_COUNT
+                                ? (long) (bytes * mNanosPerByte) : Long.MAX_VALUE;
+                        boolean idle = !renderRequested && !uploaded;
+                        if (!canUpload(mIsBackground, cost, start, idle)) break;
+                    }
+                    mTextures.removeFirst();
+                    t.setIsUploading(false);
+                    if (t.isContentValid()) continue;
+
+                    // this has to be protected by the synchronized block
+                    // to prevent the inner bitmap get recycled
+                    long glTime = canvas.getTextureUploadTime();
+                    long glBytes = canvas.getTextureUploadBytes();
+                    t.updateContent(canvas);
+                    learnRate(canvas.getTextureUploadTime() - glTime,
+                            canvas.getTextureUploadBytes() - glBytes);
+                }
+
+                // It will took some more time for a texture to be drawn for
+                // the first time.
+                // Thus, when scrolling, if a new column appears on screen,
+                // it may cause a UI jank even these textures are uploaded.
+                if (mIsBackground) {
+                    t.draw(canvas, 0, 0);
+                    // The draw stays in the back buffer, so the next frame
+                    // has to cover it if it keeps the buffer.
+                    mDrawnRect.set(0, 0, t.getWidth(), t.getHeight());
+                    mGLRoot.addDamage(mDrawnRect);
+                }
+                long time = System.nanoTime() - start;
+                if (mIsBackground) {
+                    mBgTime += time;
+                } else {
+                    mFgTime += time;
+                    mFgCount++;
+                }
+                uploaded = true;
+            }
+            return uploaded;
+        }
+
+        @Override
+        public boolean onGLIdle(GLCanvas canvas, boolean renderRequested) {
+            if (upload(canvas, renderRequested) && !mIsBackground) {
+                mGLRoot.requestRender();
+            }
+            synchronized (TextureUploader.this) {
+                mIsQueued = !mTextures.isEmpty();
+                return mIsQueued;
+            }
         }
     }
 }
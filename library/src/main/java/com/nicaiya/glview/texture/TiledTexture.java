@@ -8,9 +8,9 @@ import android.graphics.Paint;
 import android.graphics.PorterDuff.Mode;
 import android.graphics.PorterDuffXfermode;
 import android.graphics.RectF;
-import android.os.SystemClock;
 
 import com.nicaiya.glview.glrender.GLCanvas;
+import com.nicaiya.glview.ui.AnimationTime;
 import com.nicaiya.glview.ui.GLRoot;
 
 import java.util.ArrayDeque;
@@ -31,6 +31,7 @@ public class TiledTexture implements Texture {
     // We are targeting at 60fps, so we have 16ms for each frame.
     // In this 16ms, we use about 4~8 ms to upload tiles.
     private static final long UPLOAD_TILE_LIMIT = 4; // ms
+    private static final long NS_PER_MS = 1000000;
 
     private static Tile sFreeTileHead = null;
     private static final Object sFreeTileLock = new Object();
@@ -77,15 +78,19 @@ public class TiledTexture implements Texture {
         public boolean onGLIdle(GLCanvas canvas, boolean renderRequested) {
             ArrayDeque<TiledTexture> deque = mTextures;
             synchronized (this) {
-                long now = SystemClock.uptimeMillis();
-                long dueTime = now + UPLOAD_TILE_LIMIT;
-                while (now < dueTime && !deque.isEmpty()) {
+                // Upload a tile at least, then as many as fit in the time
+                // left until the deadline of the frame.
+                long now = System.nanoTime();
+                long dueTime = now + Math.min(UPLOAD_TILE_LIMIT * NS_PER_MS,
+                        AnimationTime.getRemainingFrameTime());
+                while (!deque.isEmpty()) {
                     TiledTexture t = deque.peekFirst();
                     if (t.uploadNextTile(canvas)) {
                         deque.removeFirst();
                         mGlRoot.requestRender();
                     }
-                    now = SystemClock.uptimeMillis();
+                    now = System.nanoTime();
+                    if (now >= dueTime) break;
                 }
                 mIsQueued = !mTextures.isEmpty();
 
@@ -45,10 +45,20 @@ public abstract class UploadedTexture extends BasicTexture {
     private boolean mThrottled = false;
     private static int sUploadedCount;
     private static final int UPLOAD_LIMIT = 100;
+    protected static final int BYTES_PER_PIXEL = 4;
+    protected static final int UNKNOWN_BYTE_COUNT = -1;
 
     protected Bitmap mBitmap;
     private int mBorder;
 
+    // The atlas the texture is put into if it is small enough, and where it
+    // is in there while loaded. The fields are set by TextureAtlas.
+    private TextureAtlas mAtlas;
+    private TextureAtlas.Page mAtlasPage;
+    int mAtlasX;
+    int mAtlasY;
+    int mAtlasArea;
+
     protected UploadedTexture() {
         this(false);
     }
@@ -98,6 +108,48 @@ public abstract class UploadedTexture extends BasicTexture {
         }
     }
 
+    /**
+     * Sets the atlas to share a GL texture with other small textures, or null
+     * to always use a texture of its own. This must be called before the
+     * texture is loaded.
+     */
+    public void setAtlas(TextureAtlas atlas) {
+        Utils.assertTrue(!isLoaded());
+        mAtlas = atlas;
+    }
+
+    // Returns whether the texture may share a page of its atlas. A subclass
+    // whose drawing needs a texture of its own returns false, and then
+    // ignores the atlas.
+    protected boolean canUseAtlas() {
+        return true;
+    }
+
+    @Override
+    public boolean isSubTexture() {
+        return mAtlasPage != null;
+    }
+
+    @Override
+    public int getTextureOffsetX() {
+        return mAtlasPage != null ? mAtlasX : 0;
+    }
+
+    @Override
+    public int getTextureOffsetY() {
+        return mAtlasPage != null ? mAtlasY : 0;
+    }
+
+    @Override
+    public int getTextureWidth() {
+        return mAtlasPage != null ? mAtlasPage.getTextureWidth() : super.getTextureWidth();
+    }
+
+    @Override
+    public int getTextureHeight() {
+        return mAtlasPage != null ? mAtlasPage.getTextureHeight() : super.getTextureHeight();
+    }
+
     protected void setThrottled(boolean throttled) {
         mThrottled = throttled;
     }
@@ -177,6 +229,10 @@ public abstract class UploadedTexture extends BasicTexture {
                 return;
             }
             uploadToCanvas(canvas);
+        } else if (!mContentValid && mAtlasPage != null) {
+            // The size may have changed, so it is packed again.
+            removeFromAtlas();
+            uploadToCanvas(canvas);
         } else if (!mContentValid) {
             Bitmap bitmap = getBitmap();
             int format = GLUtils.getInternalFormat(bitmap);
@@ -187,6 +243,18 @@ public abstract class UploadedTexture extends BasicTexture {
         }
     }
 
+    /**
+     * Estimates the bytes which updateContent() uploads, without creating the
+     * bitmap. It is computed from the size of the texture, as 32-bit pixels,
+     * or is UNKNOWN_BYTE_COUNT while the size is only known from the bitmap.
+     * Subclasses which know the size of their bitmap beforehand should
+     * override it.
+     */
+    protected int getUploadByteCount() {
+        if (mWidth == UNSPECIFIED) return UNKNOWN_BYTE_COUNT;
+        return mWidth * mHeight * BYTES_PER_PIXEL;
+    }
+
     public static void resetUploadLimit() {
         sUploadedCount = 0;
     }
@@ -198,7 +266,11 @@ public abstract class UploadedTexture extends BasicTexture {
     private void uploadToCanvas(GLCanvas canvas) {
 
         Bitmap bitmap = getBitmap();
-        if (bitmap != null) {
+        if (bitmap != null && mAtlas != null && canUseAtlas() && mAtlas.accepts(
+                bitmap.getWidth() + mBorder * 2, bitmap.getHeight() + mBorder * 2,
+                bitmap.getConfig())) {
+            uploadToAtlas(canvas, bitmap);
+        } else if (bitmap != null) {
             try {
                 int bWidth = bitmap.getWidth();
                 int bHeight = bitmap.getHeight();
@@ -258,6 +330,67 @@ public abstract class UploadedTexture extends BasicTexture {
         }
     }
 
+    private void uploadToAtlas(GLCanvas canvas, Bitmap bitmap) {
+        try {
+            int bWidth = bitmap.getWidth();
+            int bHeight = bitmap.getHeight();
+            int width = bWidth + mBorder * 2;
+            int height = bHeight + mBorder * 2;
+            // Forget the place in a page lost with the GL context.
+            if (mAtlasPage != null) mAtlas.remove(this, mAtlasPage);
+            mAtlasPage = mAtlas.add(canvas, this, width, height);
+            mId = mAtlasPage.getId();
+
+            int format = GLUtils.getInternalFormat(bitmap);
+            int type = GLUtils.getType(bitmap);
+            int x = mAtlasX + mBorder;
+            int y = mAtlasY + mBorder;
+            canvas.texSubImage2D(this, x, y, bitmap, format, type);
+
+            // The page is transparent, which is what the border and the
+            // gutter around it need. Without a border, the gutter repeats the
+            // edge pixels, like GL_CLAMP_TO_EDGE on a texture of its own.
+            if (mBorder == 0) {
+                int g = TextureAtlas.GUTTER;
+                uploadEdge(canvas, bitmap, 0, 0, 1, bHeight, x - g, y, format, type);
+                uploadEdge(canvas, bitmap, bWidth - 1, 0, 1, bHeight, x + bWidth, y,
+                        format, type);
+                uploadEdge(canvas, bitmap, 0, 0, bWidth, 1, x, y - g, format, type);
+                uploadEdge(canvas, bitmap, 0, bHeight - 1, bWidth, 1, x, y + bHeight,
+                        format, type);
+            }
+        } finally {
+            freeBitmap();
+        }
+        setAssociatedCanvas(canvas);
+        mState = STATE_LOADED;
+        mContentValid = true;
+    }
+
+    private void uploadEdge(GLCanvas canvas, Bitmap bitmap, int x, int y, int width,
+            int height, int xOffset, int yOffset, int format, int type) {
+        Bitmap edge = Bitmap.createBitmap(bitmap, x, y, width, height);
+        canvas.texSubImage2D(this, xOffset, yOffset, edge, format, type);
+        edge.recycle();
+    }
+
+    private void removeFromAtlas() {
+        mAtlas.remove(this, mAtlasPage);
+        mAtlasPage = null;
+        mId = -1;
+        mState = STATE_UNLOADED;
+        setAssociatedCanvas(null);
+    }
+
+    // Called by TextureAtlas when it compacts the page the texture is in.
+    // The texture is packed again the next time it is drawn.
+    void onEvictedFromAtlas() {
+        mAtlasPage = null;
+        mId = -1;
+        mState = STATE_UNLOADED;
+        setAssociatedCanvas(null);
+    }
+
     @Override
     public boolean onBind(GLCanvas canvas) {
         updateContent(canvas);
@@ -278,8 +411,16 @@ public abstract class UploadedTexture extends BasicTexture {
         return mOpaque;
     }
 
+    @Override
+    public void yield() {
+        // The page is shared, only the space in it can be released.
+        if (mAtlasPage != null) removeFromAtlas();
+        super.yield();
+    }
+
     @Override
     public void recycle() {
+        if (mAtlasPage != null) removeFromAtlas();
         super.recycle();
         if (mBitmap != null) freeBitmap();
     }
@@ -4,17 +4,38 @@ import android.os.SystemClock;
 
 /**
  * The animation time should ideally be the vsync time the frame will be
- * displayed, but that is an unknown time in the future. So we use the system
- * time just after eglSwapBuffers (when GLSurfaceView.onDrawFrame is called)
- * as a approximation.
+ * displayed, but that is an unknown time in the future. So we use the time
+ * of the vsync the frame is started at, given by FrameScheduler, or without
+ * one the system time just after eglSwapBuffers (when
+ * GLSurfaceView.onDrawFrame is called) as a approximation.
+ * <p>
+ * A frame stamped with its vsync also has a deadline, the next vsync, which
+ * the work done between the frames, e.g. the texture uploads, should leave
+ * alone: see {@link #getRemainingFrameTime()}.
  */
 public class AnimationTime {
 
+    private static final long NS_PER_MS = 1000000;
+
     private static volatile long sTime;
+    // The vsync the last frame was started at and its deadline, in
+    // nanoseconds. The deadline is 0 if the frame has none.
+    private static volatile long sFrameTime;
+    private static volatile long sDeadline;
 
     // Sets current time as the animation time.
     public static void update() {
         sTime = SystemClock.uptimeMillis();
+        sDeadline = 0;
+    }
+
+    // Sets the vsync a frame is started at as the animation time. The times
+    // are in the System.nanoTime() timebase, which in milliseconds is the
+    // SystemClock.uptimeMillis() one.
+    public static void update(long frameTimeNanos, long deadlineNanos) {
+        sFrameTime = frameTimeNanos;
+        sDeadline = deadlineNanos;
+        sTime = frameTimeNanos / NS_PER_MS;
     }
 
     // Returns the animation time.
@@ -22,6 +43,42 @@ public class AnimationTime {
         return sTime;
     }
 
+    // Returns the vsync the last frame was started at, in nanoseconds, 0 if
+    // it wasn't stamped with one.
+    public static long getFrameTimeNanos() {
+        return sDeadline != 0 ? sFrameTime : 0;
+    }
+
+    // Returns the deadline of the last frame, in nanoseconds, 0 if it has
+    // none.
+    public static long getDeadlineNanos() {
+        return sDeadline;
+    }
+
+    /**
+     * Returns the nanoseconds left until the deadline of the last frame. It
+     * is 0 once the deadline has passed, so the work done in a late frame
+     * doesn't make it later, and if the last frame has no deadline.
+     */
+    public static long getRemainingFrameTime() {
+        long deadline = sDeadline;
+        if (deadline == 0) return 0;
+        return Math.max(0, deadline - System.nanoTime());
+    }
+
+    // Returns the deadline of the last frame or, once it has passed at the
+    // given time, the vsync after it, which the work between the frames can
+    // be counted until. It is 0 if the last frame has no deadline.
+    public static long getNextDeadline(long now) {
+        long deadline = sDeadline;
+        if (deadline == 0) return 0;
+        long interval = deadline - sFrameTime;
+        if (now >= deadline && interval > 0) {
+            deadline += ((now - deadline) / interval + 1) * interval;
+        }
+        return deadline;
+    }
+
     public static long startTime() {
         sTime = SystemClock.uptimeMillis();
         return sTime;
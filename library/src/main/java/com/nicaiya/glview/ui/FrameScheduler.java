@@ -0,0 +1,146 @@
+package com.nicaiya.glview.ui;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.view.Choreographer;
+import android.view.Display;
+import android.view.WindowManager;
+
+import com.nicaiya.glview.utils.ApiHelper;
+
+/**
+ * FrameScheduler paces the frames of a GLRootView by the vsync of the
+ * display. A requested frame is started by a Choreographer callback, which
+ * gives the time of the vsync the frame follows. The frame is stamped with
+ * that time, through {@link AnimationTime}, and has to be done by the next
+ * vsync, its deadline. A frame starting after the next vsync has missed
+ * vsyncs, and a frame ending after its deadline has missed it.
+ * <p>
+ * Without a Choreographer, before Jelly Bean, a frame is started right away
+ * and timed at when it starts, with no deadline. So are the frames before
+ * the first vsync.
+ * <p>
+ * The times are in nanoseconds, in the System.nanoTime() timebase. The
+ * counts can be read from any thread.
+ */
+public class FrameScheduler {
+
+    private static final float DEFAULT_REFRESH_RATE = 60;
+    private static final long NS_PER_S = 1000000000L;
+
+    private final Runnable mStartFrame;
+    private final long mFrameInterval;
+    private final Choreographer mChoreographer;
+    private final Choreographer.FrameCallback mFrameCallback;
+
+    // The last vsync a frame was started at, 0 if none was yet.
+    private volatile long mVsyncTime;
+
+    // Only used in the GL thread.
+    private long mStartedVsyncTime;
+    private long mDeadline;
+
+    private volatile int mFrameCount;
+    private volatile int mMissedVsyncCount;
+    private volatile int mMissedDeadlineCount;
+
+    // Must be created in the main thread, whose Choreographer is used.
+    // startFrame is run in the main thread to start each requested frame.
+    FrameScheduler(Context context, Runnable startFrame) {
+        mStartFrame = startFrame;
+        mFrameInterval = (long) (NS_PER_S / getRefreshRate(context));
+        if (ApiHelper.HAS_CHOREOGRAPHER) {
+            mChoreographer = Choreographer.getInstance();
+            mFrameCallback = newFrameCallback();
+        } else {
+            mChoreographer = null;
+            mFrameCallback = null;
+        }
+    }
+
+    private static float getRefreshRate(Context context) {
+        WindowManager wm = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
+        Display display = wm != null ? wm.getDefaultDisplay() : null;
+        float rate = display != null ? display.getRefreshRate() : 0;
+        // Some devices report nonsense, e.g. 0.
+        return rate >= 10 ? rate : DEFAULT_REFRESH_RATE;
+    }
+
+    @TargetApi(ApiHelper.VERSION_CODES.JELLY_BEAN)
+    private Choreographer.FrameCallback newFrameCallback() {
+        return new Choreographer.FrameCallback() {
+            @Override
+            public void doFrame(long frameTimeNanos) {
+                mVsyncTime = frameTimeNanos;
+                mStartFrame.run();
+            }
+        };
+    }
+
+    // Starts a frame at the next vsync. It may be called from any thread,
+    // once per frame.
+    @TargetApi(ApiHelper.VERSION_CODES.JELLY_BEAN)
+    void scheduleFrame() {
+        if (mChoreographer != null) {
+            mChoreographer.postFrameCallback(mFrameCallback);
+        } else {
+            mStartFrame.run();
+        }
+    }
+
+    /**
+     * Called in the GL thread when a frame starts, at the given time. It
+     * stamps the frame with the last vsync before it: the one which started
+     * it, or if it wasn't started by a vsync, e.g. because the surface was
+     * resized, the one the vsyncs before it are spaced to. Without any vsync
+     * yet, the frame has no deadline.
+     */
+    void beginFrame(long now) {
+        mFrameCount++;
+        long interval = mFrameInterval;
+        long vsync = mVsyncTime;
+        if (vsync == 0) {
+            mDeadline = 0;
+            AnimationTime.update(now, 0);
+            return;
+        }
+        long late = Math.max(0, (now - vsync) / interval);
+        if (vsync != mStartedVsyncTime) {
+            mStartedVsyncTime = vsync;
+            mMissedVsyncCount += late;
+        }
+        long frameTime = vsync + late * interval;
+        mDeadline = frameTime + interval;
+        AnimationTime.update(frameTime, mDeadline);
+    }
+
+    // Called in the GL thread when the frame ends, at the given time.
+    void endFrame(long now) {
+        if (mDeadline != 0 && now > mDeadline) mMissedDeadlineCount++;
+    }
+
+    // The time between two vsyncs.
+    public long getFrameInterval() {
+        return mFrameInterval;
+    }
+
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    // The vsyncs which passed between those starting frames and the frames.
+    public int getMissedVsyncCount() {
+        return mMissedVsyncCount;
+    }
+
+    // The frames which ended after their deadline.
+    public int getMissedDeadlineCount() {
+        return mMissedDeadlineCount;
+    }
+
+    public void resetCounts() {
+        mFrameCount = 0;
+        mMissedVsyncCount = 0;
+        mMissedDeadlineCount = 0;
+    }
+}
@@ -0,0 +1,103 @@
+package com.nicaiya.glview.ui;
+
+import com.nicaiya.glview.utils.TimingHistogram;
+
+/**
+ * FrameTimings keeps how long the phases of the frames of a GLRootView take,
+ * in a histogram per phase and for the last frame. The times are in
+ * nanoseconds:
+ * <ul>
+ * <li>PHASE_DELETE: deleting the recycled textures and buffers.</li>
+ * <li>PHASE_LAYOUT: laying out the content pane, only counted when done.</li>
+ * <li>PHASE_RENDER: rendering the views, from beginFrame() to endFrame().</li>
+ * <li>PHASE_IDLE: each run of an idle listener; for the last frame, all the
+ * runs since the frame before it.</li>
+ * <li>PHASE_SWAP: from the end of a frame to the start of the next, which
+ * includes the buffer swap, when the next was requested during the first.
+ * </li>
+ * <li>PHASE_FRAME: the whole frame, including the wait for the lock.</li>
+ * </ul>
+ * The histograms can be read from any thread.
+ */
+public class FrameTimings {
+
+    public static final int PHASE_DELETE = 0;
+    public static final int PHASE_LAYOUT = 1;
+    public static final int PHASE_RENDER = 2;
+    public static final int PHASE_IDLE = 3;
+    public static final int PHASE_SWAP = 4;
+    public static final int PHASE_FRAME = 5;
+    static final int PHASE_COUNT = 6;
+
+    private static final String[] PHASE_NAMES = {
+            "delete", "layout", "render", "idle", "swap", "frame",
+    };
+
+    private final TimingHistogram[] mHistograms = new TimingHistogram[PHASE_COUNT];
+    // Only used in the GL thread.
+    private final long[] mLastFrameTimes = new long[PHASE_COUNT];
+    private long mIdleTime;
+
+    FrameTimings() {
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            mHistograms[i] = new TimingHistogram();
+        }
+    }
+
+    public TimingHistogram getHistogram(int phase) {
+        return mHistograms[phase];
+    }
+
+    // Returns the time of the phase in the last frame, 0 if it didn't happen.
+    // Only valid in the GL thread, e.g. in OnJankListener.onJank().
+    public long getLastFrameTime(int phase) {
+        return mLastFrameTimes[phase];
+    }
+
+    public static String getPhaseName(int phase) {
+        return PHASE_NAMES[phase];
+    }
+
+    public void reset() {
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            mHistograms[i].reset();
+        }
+    }
+
+    // Starts the times of a frame.
+    void beginFrame() {
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            mLastFrameTimes[i] = 0;
+        }
+        mLastFrameTimes[PHASE_IDLE] = mIdleTime;
+        mIdleTime = 0;
+    }
+
+    void record(int phase, long nanos) {
+        mHistograms[phase].record(nanos);
+        if (phase == PHASE_IDLE) {
+            mIdleTime += nanos;
+        } else {
+            mLastFrameTimes[phase] = nanos;
+        }
+    }
+
+    // Returns the times of the last frame, e.g. "frame 40.1ms (render 38.0ms,
+    // delete 0.1ms, ...)".
+    String describeLastFrame() {
+        StringBuilder b = new StringBuilder();
+        b.append(PHASE_NAMES[PHASE_FRAME]).append(' ');
+        appendMillis(b, mLastFrameTimes[PHASE_FRAME]);
+        b.append(" (");
+        for (int i = 0; i < PHASE_FRAME; i++) {
+            if (i > 0) b.append(", ");
+            b.append(PHASE_NAMES[i]).append(' ');
+            appendMillis(b, mLastFrameTimes[i]);
+        }
+        return b.append(')').toString();
+    }
+
+    private static void appendMillis(StringBuilder b, long nanos) {
+        b.append(nanos / 1000000).append('.').append(nanos / 100000 % 10).append("ms");
+    }
+}
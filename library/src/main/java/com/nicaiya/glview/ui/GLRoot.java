@@ -2,8 +2,10 @@ package com.nicaiya.glview.ui;
 
 import android.content.Context;
 import android.graphics.Matrix;
+import android.graphics.Rect;
 
 import com.nicaiya.glview.anim.Animation;
+import com.nicaiya.glview.glrender.FrameMetrics;
 import com.nicaiya.glview.glrender.GLCanvas;
 
 public interface GLRoot {
@@ -14,16 +16,58 @@ public interface GLRoot {
         boolean onGLIdle(GLCanvas canvas, boolean renderRequested);
     }
 
+    // The priorities of the idle listeners, the listeners of a lower value
+    // run first.
+    int IDLE_PRIORITY_FOREGROUND = 0;
+    int IDLE_PRIORITY_NORMAL = 1;
+    int IDLE_PRIORITY_BACKGROUND = 2;
+    int IDLE_PRIORITY_COUNT = 3;
+
+    // Adds a listener of IDLE_PRIORITY_NORMAL.
     void addOnGLIdleListener(OnGLIdleListener listener);
 
+    void addOnGLIdleListener(OnGLIdleListener listener, int priority);
+
+    // Listener called in the GL thread after each frame. The metrics are
+    // only valid during the call.
+    interface OnFrameMetricsListener {
+        void onFrameMetrics(FrameMetrics metrics);
+    }
+
+    // Sets the listener of the frame metrics, or removes it if null.
+    void setOnFrameMetricsListener(OnFrameMetricsListener listener);
+
     void registerLaunchedAnimation(Animation animation);
 
     void requestRenderForced();
 
     void requestRender();
 
+    // Requests a render which only needs to redraw the dirty rectangle, given
+    // in the coordinates of the content pane. The root may still redraw more.
+    void requestRender(Rect dirty);
+
+    // Adds the rectangle, in the coordinates of the surface, to the area the
+    // next frame redraws, without requesting the frame. It is called after
+    // drawing into the back buffer between the frames, e.g. by the idle
+    // listeners, so a partial redraw doesn't leave that drawing on screen.
+    void addDamage(Rect dirty);
+
     void requestLayoutContentPane();
 
+    // Called by GLViewGroup for each child it renders, or skips because the
+    // child is entirely outside of the area being drawn if culled is true.
+    void onChildRendered(boolean culled);
+
+    // Returns the number of views rendered and culled in the last frame.
+    int getLastFrameRenderedViewCount();
+
+    int getLastFrameCulledViewCount();
+
+    // Returns the scheduler of the frames, which counts the missed vsyncs
+    // and deadlines.
+    FrameScheduler getFrameScheduler();
+
     void lockRenderThread();
 
     void unlockRenderThread();
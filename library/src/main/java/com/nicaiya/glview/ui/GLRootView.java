@@ -1,9 +1,12 @@
 package com.nicaiya.glview.ui;
 
 import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.graphics.Matrix;
 import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.opengl.EGL14;
 import android.opengl.GLSurfaceView;
 import android.os.Build;
 import android.os.Process;
@@ -16,6 +19,7 @@ import android.view.View;
 
 import com.nicaiya.glview.R;
 import com.nicaiya.glview.anim.Animation;
+import com.nicaiya.glview.glrender.FrameMetrics;
 import com.nicaiya.glview.glrender.GLCanvas;
 import com.nicaiya.glview.glrender.GLES11Canvas;
 import com.nicaiya.glview.glrender.GLES20Canvas;
@@ -26,7 +30,6 @@ import com.nicaiya.glview.utils.MotionEventHelper;
 import com.nicaiya.glview.utils.Profile;
 import com.nicaiya.glview.utils.Utils;
 
-import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
@@ -59,7 +62,11 @@ public class GLRootView extends GLSurfaceView implements GLSurfaceView.Renderer,
     private static final boolean DEBUG_DRAWING_STAT = false;
 
     private static final boolean DEBUG_PROFILE = false;
-    private static final boolean DEBUG_PROFILE_SLOW_ONLY = false;
+
+    private static final boolean DEBUG_FIRST_FRAME = false;
+
+    private static final int NS_PER_MS = 1000000;
+    private static final int DEFAULT_JANK_SAMPLE_INTERVAL_MS = 5;
 
     private static final int FLAG_INITIALIZED = 1;
     private static final int FLAG_NEED_LAYOUT = 2;
@@ -80,35 +87,92 @@ public class GLRootView extends GLSurfaceView implements GLSurfaceView.Renderer,
     private int mFlags = FLAG_NEED_LAYOUT;
     private volatile boolean mRenderRequested = false;
 
+    // The area to redraw in the next frame, accumulated by
+    // requestRender(Rect), unless mFullRedraw is set. Both are guarded by
+    // mDamage.
+    private final Rect mDamage = new Rect();
+    private boolean mFullRedraw = true;
+    // The damage being drawn, only used in the GL thread.
+    private final Rect mFrameDamage = new Rect();
+    // Whether the surface keeps its content after a swap, which partial
+    // redraws depend on.
+    private boolean mBufferPreserved;
+    // Whether the surface has a depth buffer for the depth ordering of
+    // GLES20Canvas, see GLES20Canvas.setDepthOrderingEnabled().
+    private final boolean mDepthOrdering;
+
+    // The views rendered and culled by GLViewGroup, see onChildRendered().
+    private int mFrameRenderedViews;
+    private int mFrameCulledViews;
+    private int mLastFrameRenderedViews;
+    private int mLastFrameCulledViews;
+
     private final ArrayList<Animation> mAnimations =
             new ArrayList<Animation>();
 
-    private final ArrayDeque<OnGLIdleListener> mIdleListeners =
-            new ArrayDeque<OnGLIdleListener>();
+    private final IdleScheduler mIdleScheduler = new IdleScheduler(this);
 
-    private final IdleRunner mIdleRunner = new IdleRunner();
+    private volatile OnFrameMetricsListener mFrameMetricsListener;
+    // Filled in onDrawFrameLocked() when there is a listener, which is
+    // called once the lock is released.
+    private final FrameMetrics mFrameMetrics = new FrameMetrics();
 
     private final ReentrantLock mRenderLock = new ReentrantLock();
     private final Condition mFreezeCondition = mRenderLock.newCondition();
     private boolean mFreeze;
 
-    private long mLastDrawFinishTime;
+    // The timings of the frames. A frame requested while the last one was
+    // drawn starts after the swap, which is timed from mLastFrameEnd.
+    private final FrameTimings mFrameTimings = new FrameTimings();
+    private long mLastFrameEnd;
+    private boolean mSwapTimed;
+
+    // Starts the requested frames at the vsyncs, and stamps them.
+    private final FrameScheduler mFrameScheduler;
+
+    // The jank detection, off while the threshold is 0. mJankSampleInterval
+    // is the interval the GL thread is sampled at, 0 while it isn't.
+    private volatile int mJankThresholdMs;
+    private volatile int mJankSampleIntervalMs = DEFAULT_JANK_SAMPLE_INTERVAL_MS;
+    private volatile OnJankListener mJankListener;
+    private int mJankSampleInterval;
+    private Thread mJankSampledThread;
     private boolean mInDownState = false;
     private boolean mFirstDraw = true;
+    // When the current GL surface was created, until its first frame is drawn.
+    private long mSurfaceCreatedTime;
 
     public GLRootView(Context context) {
         this(context, null);
     }
 
     public GLRootView(Context context, AttributeSet attrs) {
+        this(context, attrs, false);
+    }
+
+    /**
+     * @param depthOrdering whether to draw the opaque quads front to back with
+     *                      a depth buffer, so the views they cover are not
+     *                      shaded, at the cost of the depth buffer. It only
+     *                      applies to GLES20.
+     */
+    public GLRootView(Context context, AttributeSet attrs, boolean depthOrdering) {
         super(context, attrs);
         mFlags |= FLAG_INITIALIZED;
+        mDepthOrdering = depthOrdering && ApiHelper.HAS_GLES20_REQUIRED;
+        mFrameScheduler = new FrameScheduler(context, new Runnable() {
+            @Override
+            public void run() {
+                superRequestRender();
+            }
+        });
         setBackground(null);
         setEGLContextClientVersion(ApiHelper.HAS_GLES20_REQUIRED ? 2 : 1);
+        int depthSize = mDepthOrdering ? 16 : 0;
         if (ApiHelper.USE_888_PIXEL_FORMAT) {
-            setEGLConfigChooser(8, 8, 8, 0, 0, 0);
+            setEGLConfigChooser(8, 8, 8, 0, depthSize, 0);
         } else {
-            setEGLConfigChooser(5, 6, 5, 0, 0, 0);
+            setEGLConfigChooser(5, 6, 5, 0, depthSize, 0);
         }
         setRenderer(this);
         if (ApiHelper.USE_888_PIXEL_FORMAT) {
@@ -132,10 +196,56 @@ public class GLRootView extends GLSurfaceView implements GLSurfaceView.Renderer,
 
     @Override
     public void addOnGLIdleListener(OnGLIdleListener listener) {
-        synchronized (mIdleListeners) {
-            mIdleListeners.addLast(listener);
-            mIdleRunner.enable();
-        }
+        addOnGLIdleListener(listener, IDLE_PRIORITY_NORMAL);
+    }
+
+    @Override
+    public void addOnGLIdleListener(OnGLIdleListener listener, int priority) {
+        mIdleScheduler.add(listener, priority);
+    }
+
+    // Returns the scheduler of the idle listeners, which keeps the time spent
+    // in each.
+    public IdleScheduler getIdleScheduler() {
+        return mIdleScheduler;
+    }
+
+    @Override
+    public void setOnFrameMetricsListener(OnFrameMetricsListener listener) {
+        mFrameMetricsListener = listener;
+    }
+
+    // Listener called in the GL thread after a frame taking longer than the
+    // jank threshold.
+    public interface OnJankListener {
+        void onJank(FrameTimings timings);
+    }
+
+    // Returns the timings of the frames, which are always kept.
+    public FrameTimings getFrameTimings() {
+        return mFrameTimings;
+    }
+
+    @Override
+    public FrameScheduler getFrameScheduler() {
+        return mFrameScheduler;
+    }
+
+    /**
+     * Enables the detection of the frames taking longer than thresholdMs, or
+     * disables it if it is 0. While it is enabled, the stack of the GL thread
+     * is sampled every sampleIntervalMs, and the samples taken during a
+     * janky frame are kept by {@link Profile}, to be written by
+     * Profile.dumpToFile(). The times of the phases of the frame are logged
+     * and given to the listener, if any.
+     */
+    public void setJankDetection(int thresholdMs, int sampleIntervalMs) {
+        mJankSampleIntervalMs = sampleIntervalMs;
+        mJankThresholdMs = thresholdMs;
+    }
+
+    public void setOnJankListener(OnJankListener listener) {
+        mJankListener = listener;
     }
 
     @Override
@@ -167,29 +277,68 @@ public class GLRootView extends GLSurfaceView implements GLSurfaceView.Renderer,
 
     @Override
     public void requestRender() {
+        synchronized (mDamage) {
+            mFullRedraw = true;
+        }
+        scheduleRender();
+    }
+
+    @Override
+    public void requestRender(Rect dirty) {
+        synchronized (mDamage) {
+            if (!mFullRedraw) mDamage.union(dirty);
+        }
+        scheduleRender();
+    }
+
+    @Override
+    public void addDamage(Rect dirty) {
+        synchronized (mDamage) {
+            if (!mFullRedraw) mDamage.union(dirty);
+        }
+    }
+
+    private void scheduleRender() {
         if (DEBUG_INVALIDATE) {
-            StackTraceElement e = Thread.currentThread().getStackTrace()[4];
+            StackTraceElement e = Thread.currentThread().getStackTrace()[5];
             String caller = e.getFileName() + ":" + e.getLineNumber() + " ";
             Log.i(TAG, "invalidate: " + caller);
         }
         if (mRenderRequested) return;
         mRenderRequested = true;
-        if (ApiHelper.HAS_POST_ON_ANIMATION) {
-            postOnAnimation(mRequestRenderOnAnimationFrame);
+        mFrameScheduler.scheduleFrame();
+    }
+
+    private void superRequestRender() {
+        super.requestRender();
+    }
+
+    // Only valid while holding the render lock.
+    GLCanvas getCanvas() {
+        return mCanvas;
+    }
+
+    boolean isRenderRequested() {
+        return mRenderRequested;
+    }
+
+    @Override
+    public void onChildRendered(boolean culled) {
+        if (culled) {
+            mFrameCulledViews++;
         } else {
-            super.requestRender();
+            mFrameRenderedViews++;
         }
     }
 
-    private Runnable mRequestRenderOnAnimationFrame = new Runnable() {
-        @Override
-        public void run() {
-            superRequestRender();
-        }
-    };
+    @Override
+    public int getLastFrameRenderedViewCount() {
+        return mLastFrameRenderedViews;
+    }
 
-    private void superRequestRender() {
-        super.requestRender();
+    @Override
+    public int getLastFrameCulledViewCount() {
+        return mLastFrameCulledViews;
     }
 
     @Override
@@ -272,11 +421,21 @@ public class GLRootView extends GLSurfaceView implements GLSurfaceView.Renderer,
             // The GL Object has changed
             Log.i(TAG, "GLObject has changed from " + mGL + " to " + gl);
         }
+        if (DEBUG_FIRST_FRAME) mSurfaceCreatedTime = System.nanoTime();
         mRenderLock.lock();
         try {
             mGL = gl;
-            mCanvas = ApiHelper.HAS_GLES20_REQUIRED ? new GLES20Canvas() : new GLES11Canvas(gl);
+            if (ApiHelper.HAS_GLES20_REQUIRED) {
+                GLES20Canvas canvas = new GLES20Canvas();
+                canvas.setDepthOrderingEnabled(mDepthOrdering);
+                mCanvas = canvas;
+            } else {
+                mCanvas = new GLES11Canvas(gl);
+            }
             BasicTexture.invalidateAllTextures();
+            // The layers have lost their content, and the display lists
+            // drawing them must be recorded again.
+            if (mContentView != null) mContentView.freeLayers();
         } finally {
             mRenderLock.unlock();
         }
@@ -306,6 +465,19 @@ public class GLRootView extends GLSurfaceView implements GLSurfaceView.Renderer,
         Utils.assertTrue(mGL == gl);
 
         mCanvas.setSize(width, height);
+        mBufferPreserved = ApiHelper.HAS_EGL14 && preserveBuffer();
+        synchronized (mDamage) {
+            mFullRedraw = true;
+        }
+    }
+
+    // Asks EGL to keep the content of the surface after a swap, so only the
+    // damaged area needs to be redrawn. Returns false if it isn't supported.
+    @TargetApi(ApiHelper.VERSION_CODES.JELLY_BEAN_MR1)
+    private static boolean preserveBuffer() {
+        return EGL14.eglSurfaceAttrib(EGL14.eglGetCurrentDisplay(),
+                EGL14.eglGetCurrentSurface(EGL14.EGL_DRAW),
+                EGL14.EGL_SWAP_BEHAVIOR, EGL14.EGL_BUFFER_PRESERVED);
     }
 
     private void outputFps() {
@@ -323,23 +495,40 @@ public class GLRootView extends GLSurfaceView implements GLSurfaceView.Renderer,
 
     @Override
     public void onDrawFrame(GL10 gl) {
-        AnimationTime.update();
-        long t0;
-        if (DEBUG_PROFILE_SLOW_ONLY) {
+        long frameStart = System.nanoTime();
+        FrameTimings timings = mFrameTimings;
+        timings.beginFrame();
+        if (mSwapTimed) timings.record(FrameTimings.PHASE_SWAP, frameStart - mLastFrameEnd);
+        boolean detectJank = updateJankSampling();
+        if (detectJank) {
+            // Forget the samples taken since the last frame.
+            Profile.drop();
             Profile.hold();
-            t0 = System.nanoTime();
         }
+        mFrameScheduler.beginFrame(frameStart);
         mRenderLock.lock();
 
         while (mFreeze) {
             mFreezeCondition.awaitUninterruptibly();
         }
 
+        OnFrameMetricsListener listener = mFrameMetricsListener;
         try {
-            onDrawFrameLocked(gl);
+            onDrawFrameLocked(gl, listener != null);
         } finally {
             mRenderLock.unlock();
         }
+        long frameEnd = System.nanoTime();
+        long frameTime = frameEnd - frameStart;
+        timings.record(FrameTimings.PHASE_FRAME, frameTime);
+        mFrameScheduler.endFrame(frameEnd);
+        if (listener != null) listener.onFrameMetrics(mFrameMetrics);
+
+        if (DEBUG_FIRST_FRAME && mSurfaceCreatedTime != 0) {
+            Log.i(TAG, "time to first frame: "
+                    + (System.nanoTime() - mSurfaceCreatedTime) / NS_PER_MS + "ms");
+            mSurfaceCreatedTime = 0;
+        }
 
         // We put a black cover View in front of the SurfaceView and hide it
         // after the first draw. This prevents the SurfaceView being transparent
@@ -356,48 +545,96 @@ public class GLRootView extends GLSurfaceView implements GLSurfaceView.Renderer,
             });
         }
 
-        if (DEBUG_PROFILE_SLOW_ONLY) {
-            long t = System.nanoTime();
-            long durationInMs = (t - mLastDrawFinishTime) / 1000000;
-            long durationDrawInMs = (t - t0) / 1000000;
-            mLastDrawFinishTime = t;
-
-            if (durationInMs > 34) {  // 34ms -> we skipped at least 2 frames
-                Log.v(TAG, "----- SLOW (" + durationDrawInMs + "/" +
-                        durationInMs + ") -----");
+        if (detectJank) {
+            if (frameTime > (long) mJankThresholdMs * NS_PER_MS) {
                 Profile.commit();
+                Log.w(TAG, "jank: " + timings.describeLastFrame());
+                OnJankListener jankListener = mJankListener;
+                if (jankListener != null) jankListener.onJank(timings);
             } else {
                 Profile.drop();
             }
+            // Hold the samples until the next frame, which drops them.
+            Profile.hold();
         }
+
+        // The swap is only timed if the next frame follows it immediately.
+        mSwapTimed = mRenderRequested;
+        mLastFrameEnd = System.nanoTime();
+    }
+
+    // Samples the stack of the GL thread, at the requested interval, while
+    // the jank detection is enabled. Returns whether it is.
+    private boolean updateJankSampling() {
+        int interval = mJankThresholdMs > 0 ? Math.max(1, mJankSampleIntervalMs) : 0;
+        if (mJankSampledThread != Thread.currentThread()) {
+            // The GL thread was recreated, the old one is gone.
+            mJankSampledThread = Thread.currentThread();
+            mJankSampleInterval = 0;
+        }
+        if (interval != mJankSampleInterval) {
+            if (mJankSampleInterval != 0) Profile.disable();
+            if (interval != 0) Profile.enable(interval);
+            mJankSampleInterval = interval;
+        }
+        return interval != 0;
     }
 
-    private void onDrawFrameLocked(GL10 gl) {
+    private void onDrawFrameLocked(GL10 gl, boolean measure) {
         if (DEBUG_FPS) outputFps();
+        FrameTimings timings = mFrameTimings;
 
         // release the unbound textures and deleted buffers.
+        long deleteStart = System.nanoTime();
         mCanvas.deleteRecycledResources();
+        long deleteTime = System.nanoTime() - deleteStart;
+        timings.record(FrameTimings.PHASE_DELETE, deleteTime);
 
         // reset texture upload limit
         UploadedTexture.resetUploadLimit();
 
         mRenderRequested = false;
 
+        boolean partial;
+        synchronized (mDamage) {
+            partial = !mFullRedraw && !mDamage.isEmpty();
+            mFrameDamage.set(mDamage);
+            mDamage.setEmpty();
+            mFullRedraw = false;
+        }
+
+        long layoutTime = 0;
         if ((mOrientationSource != null
                 && mDisplayRotation != mOrientationSource.getDisplayRotation())
                 || (mFlags & FLAG_NEED_LAYOUT) != 0) {
+            long layoutStart = System.nanoTime();
             layoutContentPane();
+            layoutTime = System.nanoTime() - layoutStart;
+            timings.record(FrameTimings.PHASE_LAYOUT, layoutTime);
+            partial = false;
         }
 
+        // The damage is in the coordinates of the content pane, which are
+        // only those of the surface without compensation.
+        partial = partial && mBufferPreserved && mCompensation == 0;
+
+        long renderStart = System.nanoTime();
+        mCanvas.beginFrame();
+        mCanvas.setDamage(partial ? mFrameDamage : null);
         mCanvas.save(GLCanvas.SAVE_FLAG_ALL);
         rotateCanvas(-mCompensation);
+        mFrameRenderedViews = 0;
+        mFrameCulledViews = 0;
         if (mContentView != null) {
-            mContentView.render(mCanvas);
+            mFrameRenderedViews++;
+            mContentView.dispatchRender(mCanvas);
         } else {
             // Make sure we always draw something to prevent displaying garbage
             mCanvas.clearBuffer();
         }
         mCanvas.restore();
+        mLastFrameRenderedViews = mFrameRenderedViews;
+        mLastFrameCulledViews = mFrameCulledViews;
 
         if (!mAnimations.isEmpty()) {
             long now = AnimationTime.get();
@@ -411,17 +648,27 @@ public class GLRootView extends GLSurfaceView implements GLSurfaceView.Renderer,
             requestRender();
         }
 
-        synchronized (mIdleListeners) {
-            if (!mIdleListeners.isEmpty()) mIdleRunner.enable();
-        }
+        mIdleScheduler.enableIfQueued();
 
         if (DEBUG_INVALIDATE) {
             mCanvas.fillRect(10, 10, 5, 5, mInvalidateColor);
             mInvalidateColor = ~mInvalidateColor;
         }
 
+        mCanvas.endFrame();
+        long renderTime = System.nanoTime() - renderStart;
+        timings.record(FrameTimings.PHASE_RENDER, renderTime);
+
+        if (measure) {
+            FrameMetrics metrics = mFrameMetrics;
+            mCanvas.getLastFrameMetrics(metrics);
+            metrics.setViewCounts(mLastFrameRenderedViews, mLastFrameCulledViews);
+            metrics.setPhaseTimes(layoutTime, renderTime, deleteTime);
+        }
+
         if (DEBUG_DRAWING_STAT) {
             mCanvas.dumpStatisticsAndClear();
+            Log.d(TAG, "VIEWS:" + mLastFrameRenderedViews + ", CULLED:" + mLastFrameCulledViews);
         }
     }
 
@@ -469,39 +716,6 @@ public class GLRootView extends GLSurfaceView implements GLSurfaceView.Renderer,
         }
     }
 
-    private class IdleRunner implements Runnable {
-        // true if the idle runner is in the queue
-        private boolean mActive = false;
-
-        @Override
-        public void run() {
-            OnGLIdleListener listener;
-            synchronized (mIdleListeners) {
-                mActive = false;
-                if (mIdleListeners.isEmpty()) return;
-                listener = mIdleListeners.removeFirst();
-            }
-            mRenderLock.lock();
-            boolean keepInQueue;
-            try {
-                keepInQueue = listener.onGLIdle(mCanvas, mRenderRequested);
-            } finally {
-                mRenderLock.unlock();
-            }
-            synchronized (mIdleListeners) {
-                if (keepInQueue) mIdleListeners.addLast(listener);
-                if (!mRenderRequested && !mIdleListeners.isEmpty()) enable();
-            }
-        }
-
-        public void enable() {
-            // Who gets the flag can add it to the queue
-            if (mActive) return;
-            mActive = true;
-            queueEvent(this);
-        }
-    }
-
     @Override
     public void lockRenderThread() {
         mRenderLock.lock();
@@ -512,6 +726,21 @@ public class GLRootView extends GLSurfaceView implements GLSurfaceView.Renderer,
         mRenderLock.unlock();
     }
 
+    /**
+     * Frees the layers of the views when the memory is low. This should be
+     * called from ComponentCallbacks2.onTrimMemory() of the activity.
+     */
+    public void onTrimMemory(int level) {
+        if (level < ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) return;
+        mRenderLock.lock();
+        try {
+            if (mContentView != null) mContentView.freeLayers();
+        } finally {
+            mRenderLock.unlock();
+        }
+        requestRender();
+    }
+
     @Override
     public void onPause() {
         unfreeze();
@@ -3,7 +3,7 @@ package com.nicaiya.glview.ui;
 import android.graphics.Color;
 
 import com.nicaiya.glview.glrender.GLCanvas;
-import com.nicaiya.glview.texture.StringTexture;
+import com.nicaiya.glview.texture.GlyphCache;
 
 /**
  * GLTextView
@@ -15,11 +15,15 @@ public class GLTextView extends GLView {
     private float mTextSize;
     private int mTextColor;
 
-    private StringTexture mStringTexture;
+    // The glyphs are shared by all the views using the same text size, so
+    // changing the text or the color doesn't rasterize or upload anything.
+    private GlyphCache mGlyphCache;
 
     public GLTextView() {
+        mText = "";
         mTextColor = Color.BLACK;
         mTextSize = 20;
+        mGlyphCache = GlyphCache.getInstance(null, mTextSize);
     }
 
     public void setText(String text) {
@@ -27,34 +31,20 @@ public class GLTextView extends GLView {
             text = "";
         }
         mText = text;
-        if (mStringTexture != null) {
-            mStringTexture.recycle();
-            mStringTexture = null;
-        }
-        mStringTexture = StringTexture.newInstance(mText, mTextSize, mTextColor);
         requestLayout();
     }
 
     public void setTextSize(float size) {
         if (mTextSize != size) {
-            if (mStringTexture != null) {
-                mStringTexture.recycle();
-                mStringTexture = null;
-            }
             mTextSize = size;
-            mStringTexture = StringTexture.newInstance(mText, mTextSize, mTextColor);
+            mGlyphCache = GlyphCache.getInstance(null, mTextSize);
             requestLayout();
         }
     }
 
     public void setTextColor(int color) {
         if (mTextColor != color) {
-            if (mStringTexture != null) {
-                mStringTexture.recycle();
-                mStringTexture = null;
-            }
             mTextColor = color;
-            mStringTexture = StringTexture.newInstance(mText, mTextSize, mTextColor);
             invalidate();
         }
     }
@@ -62,9 +52,7 @@ public class GLTextView extends GLView {
     @Override
     protected void render(GLCanvas canvas) {
         super.render(canvas);
-        if (mStringTexture != null) {
-            mStringTexture.draw(canvas, 0, 0);
-        }
+        mGlyphCache.drawText(canvas, mText, 0, 0, mTextColor);
     }
 
 }
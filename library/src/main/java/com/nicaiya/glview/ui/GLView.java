@@ -6,9 +6,11 @@ import android.graphics.Rect;
 import android.view.MotionEvent;
 
 import com.nicaiya.glview.anim.Animation;
+import com.nicaiya.glview.glrender.DisplayList;
 import com.nicaiya.glview.glrender.GLCanvas;
 import com.nicaiya.glview.texture.BasicTexture;
 import com.nicaiya.glview.texture.BitmapTexture;
+import com.nicaiya.glview.texture.RawTexture;
 import com.nicaiya.glview.texture.ResourceTexture;
 import com.nicaiya.glview.utils.Utils;
 
@@ -35,6 +37,9 @@ public class GLView {
     public static final int VISIBLE = 0;
     public static final int INVISIBLE = 1;
 
+    public static final int LAYER_TYPE_NONE = 0;
+    public static final int LAYER_TYPE_HARDWARE = 1;
+
     private static final int FLAG_INVISIBLE = 1;
     private static final int FLAG_SET_MEASURED_SIZE = 2;
     private static final int FLAG_LAYOUT_REQUESTED = 4;
@@ -75,6 +80,16 @@ public class GLView {
 
     protected GLViewGroup.LayoutParams mLayoutParams;
 
+    private DisplayList mDisplayList;
+    private boolean mDisplayListEnabled;
+    private boolean mDisplayListDirty = true;
+
+    private static final float[] LAYER_CLEAR_COLOR = {0f, 0f, 0f, 0f};
+
+    private int mLayerType = LAYER_TYPE_NONE;
+    private RawTexture mLayer;
+    private boolean mLayerDirty = true;
+
     public GLView() {
         mBounds = new Rect();
         mPaddings = new Rect();
@@ -171,10 +186,38 @@ public class GLView {
     // Request re-rendering of the view hierarchy.
     // This is used for animation or when the contents changed.
     public void invalidate() {
+        invalidateDisplayList();
         GLRoot root = getGLRoot();
         if (root != null) root.requestRender();
     }
 
+    // Request re-rendering of the dirty rectangle of this view, given in the
+    // view's coordinates. Only the views intersecting it are drawn again.
+    // Views which are animated, or drawn with other transformations than the
+    // offsets of their parents, are redrawn entirely.
+    public void invalidate(Rect dirty) {
+        invalidateDisplayList();
+        GLRoot root = getGLRoot();
+        if (root == null) return;
+        int xoffset = 0;
+        int yoffset = 0;
+        for (GLView view = this; view != null; view = view.mParent) {
+            if (view.mAnimation != null) {
+                root.requestRender();
+                return;
+            }
+            xoffset += view.mBounds.left;
+            yoffset += view.mBounds.top;
+            if (view.mParent != null) {
+                xoffset -= view.mParent.mScrollX;
+                yoffset -= view.mParent.mScrollY;
+            }
+        }
+        Rect damage = new Rect(dirty);
+        damage.offset(xoffset, yoffset);
+        root.requestRender(damage);
+    }
+
     // Request re-layout of the view hierarchy.
     public void requestLayout() {
         mViewFlags |= FLAG_LAYOUT_REQUESTED;
@@ -189,6 +232,125 @@ public class GLView {
         }
     }
 
+    // Marks the display lists and layers of this view and its ancestors,
+    // which refer to it, to be recorded again.
+    void invalidateDisplayList() {
+        for (GLView view = this; view != null; view = view.mParent) {
+            view.mDisplayListDirty = true;
+            view.mLayerDirty = true;
+        }
+    }
+
+    /**
+     * Sets whether the rendering of this view is kept in a display list.
+     * When enabled, render() is only called again after invalidate() was
+     * called on this view or one of its descendants, or after a layout.
+     * Otherwise the recorded drawing calls are replayed. Views which draw
+     * something changing without calling invalidate(), e.g. depending on the
+     * time, should not enable this.
+     */
+    public void setDisplayListEnabled(boolean enabled) {
+        if (mDisplayListEnabled == enabled) return;
+        mDisplayListEnabled = enabled;
+        if (!enabled) mDisplayList = null;
+        invalidate();
+    }
+
+    public boolean isDisplayListEnabled() {
+        return mDisplayListEnabled;
+    }
+
+    /**
+     * Sets whether this view and its descendants are rendered into an
+     * offscreen texture, the layer, which is then drawn as a single quad.
+     * The layer is rendered again only after invalidate() was called on this
+     * view or one of its descendants, or after a layout, so animating the
+     * alpha or the position of a large subtree costs one textured quad per
+     * frame. What is drawn outside the bounds of the view is clipped.
+     * <p>
+     * The layer takes width * height * 4 bytes of texture memory, and is
+     * freed when the view is detached, the type is set back to
+     * LAYER_TYPE_NONE or {@link #freeLayers()} is called.
+     */
+    public void setLayerType(int layerType) {
+        if (mLayerType == layerType) return;
+        mLayerType = layerType;
+        if (layerType == LAYER_TYPE_NONE) freeLayer();
+        invalidate();
+    }
+
+    public int getLayerType() {
+        return mLayerType;
+    }
+
+    /**
+     * Frees the layers of this view and its descendants, e.g. when the
+     * memory is low. They are rendered again the next time they are drawn.
+     * This must be called with the rendering locked.
+     */
+    public void freeLayers() {
+        if (mLayer != null) {
+            freeLayer();
+            // The display lists of the ancestors draw the freed layer.
+            invalidateDisplayList();
+        }
+    }
+
+    private void freeLayer() {
+        if (mLayer != null) {
+            mLayer.recycle();
+            mLayer = null;
+        }
+        mLayerDirty = true;
+    }
+
+    // Renders this view, through its layer or display list if enabled. This
+    // is called by the parent, or GLRoot for the content pane, instead of
+    // render().
+    void dispatchRender(GLCanvas canvas) {
+        if (mLayerType == LAYER_TYPE_HARDWARE) {
+            renderLayer(canvas);
+            return;
+        }
+        if (!mDisplayListEnabled) {
+            render(canvas);
+            return;
+        }
+        if (mDisplayList == null) mDisplayList = new DisplayList();
+        if (mDisplayListDirty) {
+            // Cleared first, so an invalidate() while rendering is not lost.
+            mDisplayListDirty = false;
+            GLCanvas recorder = mDisplayList.beginRecording(canvas);
+            render(recorder);
+            mDisplayList.endRecording();
+        }
+        mDisplayList.draw(canvas);
+    }
+
+    private void renderLayer(GLCanvas canvas) {
+        int width = getWidth();
+        int height = getHeight();
+        if (width <= 0 || height <= 0) return;
+        if (mLayer == null || mLayer.getWidth() != width || mLayer.getHeight() != height
+                || !mLayer.isLoaded()) {
+            freeLayer();
+            mLayer = new RawTexture(width, height, false);
+        }
+        if (mLayerDirty) {
+            mLayerDirty = false;
+            // The layer is rendered right away even if an ancestor is
+            // recording a display list, which only records drawing it.
+            GLCanvas target = DisplayList.getTargetCanvas(canvas);
+            target.beginRenderTarget(mLayer);
+            // The alpha applies when the layer is drawn, not to its content.
+            target.setAlpha(1f);
+            target.clearBuffer(LAYER_CLEAR_COLOR);
+            render(target);
+            target.endRenderTarget();
+        }
+        canvas.drawTexture(mLayer, 0, 0, width, height);
+    }
+
     protected void render(GLCanvas canvas) {
         renderBackground(canvas);
     }
@@ -258,6 +420,7 @@ public class GLView {
     public void layout(int left, int top, int right, int bottom) {
         boolean sizeChanged = setBounds(left, top, right, bottom);
         mViewFlags &= ~FLAG_LAYOUT_REQUESTED;
+        invalidateDisplayList();
         // We call onLayout no matter sizeChanged is true or not because the
         // orientation may change without changing the size of the View (for
         // example, rotate the device by 180 degrees), and we want to handle
@@ -337,6 +500,9 @@ public class GLView {
     }
 
     protected void onDetachFromRoot() {
+        if (mDisplayList != null) mDisplayList.clear();
+        mDisplayListDirty = true;
+        freeLayer();
         mRoot = null;
     }
 
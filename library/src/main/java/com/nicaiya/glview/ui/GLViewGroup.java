@@ -16,10 +16,19 @@ public abstract class GLViewGroup extends GLView {
 
     private ArrayList<GLView> mChildren;
     private GLView mMotionTarget;
+    private boolean mClipChildren;
 
     public GLViewGroup() {
     }
 
+    // Sets whether the children are clipped to the bounds of this view, e.g.
+    // for a scrolling container. Defaults to false.
+    public void setClipChildren(boolean clipChildren) {
+        if (mClipChildren == clipChildren) return;
+        mClipChildren = clipChildren;
+        invalidate();
+    }
+
     public void addView(GLView view, LayoutParams params) {
         if (view.mParent != null) {
             throw new IllegalStateException();
@@ -165,6 +174,14 @@ public abstract class GLViewGroup extends GLView {
         }
     }
 
+    @Override
+    public void freeLayers() {
+        super.freeLayers();
+        for (int i = 0, n = getChildCount(); i < n; ++i) {
+            getChild(i).freeLayers();
+        }
+    }
+
     @Override
     protected void onDetachFromRoot() {
         for (int i = 0, n = getChildCount(); i < n; ++i) {
@@ -187,6 +204,10 @@ public abstract class GLViewGroup extends GLView {
     protected void render(GLCanvas canvas) {
         super.render(canvas);
         canvas.save();
+        if (mClipChildren && !canvas.clipRect(0, 0, getWidth(), getHeight())) {
+            canvas.restore();
+            return;
+        }
         for (int i = 0, n = getChildCount(); i < n; ++i) {
             GLView child = getChild(i);
             renderChild(canvas, child);
@@ -203,7 +224,17 @@ public abstract class GLViewGroup extends GLView {
 
         canvas.translate(xoffset, yoffset);
 
+        // Skip the whole subtree if the child's bounds, as transformed on the
+        // canvas, are outside of the surface, the clip or the damaged area.
+        // An animation may draw the child elsewhere, so it is never culled.
         Animation anim = view.mAnimation;
+        boolean culled = anim == null
+                && canvas.quickReject(0, 0, view.getWidth(), view.getHeight());
+        if (mRoot != null) mRoot.onChildRendered(culled);
+        if (culled) {
+            canvas.translate(-xoffset, -yoffset);
+            return;
+        }
         if (anim != null && anim instanceof CanvasAnimation) {
             CanvasAnimation canvasAnimation = (CanvasAnimation) anim;
             canvas.save(canvasAnimation.getCanvasSaveFlags());
@@ -211,10 +242,12 @@ public abstract class GLViewGroup extends GLView {
                 invalidate();
             } else {
                 view.mAnimation = null;
+                // Don't keep the last step of the animation in the display list.
+                invalidateDisplayList();
             }
             canvasAnimation.apply(canvas);
         }
-        view.render(canvas);
+        view.dispatchRender(canvas);
         if (anim != null) canvas.restore();
         canvas.translate(-xoffset, -yoffset);
     }
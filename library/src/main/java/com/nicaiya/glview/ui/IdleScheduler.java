@@ -0,0 +1,199 @@
+package com.nicaiya.glview.ui;
+
+import android.util.Log;
+
+import com.nicaiya.glview.glrender.GLCanvas;
+import com.nicaiya.glview.ui.GLRoot.OnGLIdleListener;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * IdleScheduler runs the OnGLIdleListeners of a GLRootView in the GL thread,
+ * between the frames. Each run, a slice, holds the render lock once and
+ * runs the queued listeners in turn until they have all run or the time
+ * budget of the slice is spent, instead of taking a GL event for each. The
+ * listeners of a higher priority run first, e.g. the uploads of the textures
+ * on the screen before those prefetched.
+ * <p>
+ * A listener runs once per slice. One returning true is queued again for
+ * the next slice, which follows right away unless a frame is requested, and
+ * then follows the frame. While a frame is requested, a slice also ends at
+ * the deadline of the last frame, see {@link AnimationTime}, but always runs
+ * a listener, so they progress while the frames are drawn continuously.
+ * <p>
+ * The time spent in each listener is kept while the listener is referenced,
+ * until resetStatistics(). It can be read from any thread.
+ */
+public class IdleScheduler implements Runnable {
+
+    private static final String TAG = "IdleScheduler";
+
+    private static final long NS_PER_MS = 1000000;
+    private static final long DEFAULT_BUDGET = 4 * NS_PER_MS;
+
+    private final GLRootView mRoot;
+
+    // The queued listeners of each priority, and whether the slice is in the
+    // GL event queue. Guarded by "this".
+    private final ArrayDeque<OnGLIdleListener>[] mQueues;
+    private boolean mActive;
+
+    private volatile long mBudget = DEFAULT_BUDGET;
+
+    // The number of listeners of each priority to run in the slice. Only
+    // used in the GL thread.
+    private final int[] mSliceCounts = new int[GLRoot.IDLE_PRIORITY_COUNT];
+
+    // Guarded by itself.
+    private final WeakHashMap<OnGLIdleListener, Statistics> mStatistics =
+            new WeakHashMap<OnGLIdleListener, Statistics>();
+
+    private static class Statistics {
+        long mTime;
+        int mRunCount;
+    }
+
+    @SuppressWarnings("unchecked")
+    IdleScheduler(GLRootView root) {
+        mRoot = root;
+        mQueues = new ArrayDeque[GLRoot.IDLE_PRIORITY_COUNT];
+        for (int i = 0; i < mQueues.length; i++) {
+            mQueues[i] = new ArrayDeque<OnGLIdleListener>();
+        }
+    }
+
+    // Sets the time a slice may take, in nanoseconds. The slice may go over
+    // it by the time of the last listener run.
+    public void setBudget(long nanos) {
+        mBudget = nanos;
+    }
+
+    public long getBudget() {
+        return mBudget;
+    }
+
+    synchronized void add(OnGLIdleListener listener, int priority) {
+        mQueues[priority].addLast(listener);
+        enable();
+    }
+
+    // Queues a slice if there are listeners to run, e.g. after a frame.
+    synchronized void enableIfQueued() {
+        if (!isEmpty()) enable();
+    }
+
+    // caller should hold synchronized on "this"
+    private void enable() {
+        // Who gets the flag can add it to the queue
+        if (mActive) return;
+        mActive = true;
+        mRoot.queueEvent(this);
+    }
+
+    // caller should hold synchronized on "this"
+    private boolean isEmpty() {
+        for (ArrayDeque<OnGLIdleListener> queue : mQueues) {
+            if (!queue.isEmpty()) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void run() {
+        int[] counts = mSliceCounts;
+        synchronized (this) {
+            mActive = false;
+            if (isEmpty()) return;
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = mQueues[i].size();
+            }
+        }
+        FrameTimings timings = mRoot.getFrameTimings();
+        long budget = mBudget;
+        mRoot.lockRenderThread();
+        long sliceStart = System.nanoTime();
+        long now = sliceStart;
+        try {
+            GLCanvas canvas = mRoot.getCanvas();
+            boolean first = true;
+            slice:
+            for (int priority = 0; priority < counts.length; priority++) {
+                for (; counts[priority] > 0; counts[priority]--) {
+                    if (!first && isSliceOver(sliceStart, now, budget)) break slice;
+                    first = false;
+                    OnGLIdleListener listener;
+                    synchronized (this) {
+                        listener = mQueues[priority].pollFirst();
+                    }
+                    if (listener == null) break;
+                    boolean keepInQueue = listener.onGLIdle(canvas, mRoot.isRenderRequested());
+                    long end = System.nanoTime();
+                    timings.record(FrameTimings.PHASE_IDLE, end - now);
+                    record(listener, end - now);
+                    now = end;
+                    if (keepInQueue) {
+                        synchronized (this) {
+                            mQueues[priority].addLast(listener);
+                        }
+                    }
+                }
+            }
+        } finally {
+            mRoot.unlockRenderThread();
+        }
+        synchronized (this) {
+            if (!mRoot.isRenderRequested() && !isEmpty()) enable();
+        }
+    }
+
+    private boolean isSliceOver(long sliceStart, long now, long budget) {
+        if (now - sliceStart >= budget) return true;
+        return mRoot.isRenderRequested() && now >= AnimationTime.getDeadlineNanos();
+    }
+
+    private void record(OnGLIdleListener listener, long nanos) {
+        synchronized (mStatistics) {
+            Statistics s = mStatistics.get(listener);
+            if (s == null) {
+                s = new Statistics();
+                mStatistics.put(listener, s);
+            }
+            s.mTime += nanos;
+            s.mRunCount++;
+        }
+    }
+
+    // Returns the time spent in the listener, in nanoseconds.
+    public long getTimeSpent(OnGLIdleListener listener) {
+        synchronized (mStatistics) {
+            Statistics s = mStatistics.get(listener);
+            return s != null ? s.mTime : 0;
+        }
+    }
+
+    public int getRunCount(OnGLIdleListener listener) {
+        synchronized (mStatistics) {
+            Statistics s = mStatistics.get(listener);
+            return s != null ? s.mRunCount : 0;
+        }
+    }
+
+    public void resetStatistics() {
+        synchronized (mStatistics) {
+            mStatistics.clear();
+        }
+    }
+
+    // Logs the time spent in each listener.
+    public void dumpStatistics() {
+        synchronized (mStatistics) {
+            for (Map.Entry<OnGLIdleListener, Statistics> e : mStatistics.entrySet()) {
+                Statistics s = e.getValue();
+                Log.d(TAG, e.getKey().getClass().getName() + ": "
+                        + s.mTime / NS_PER_MS + "ms in " + s.mRunCount + " runs");
+            }
+        }
+    }
+}
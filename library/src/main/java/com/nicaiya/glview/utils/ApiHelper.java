@@ -136,6 +136,9 @@ public class ApiHelper {
     public static final boolean HAS_POST_ON_ANIMATION =
             Build.VERSION.SDK_INT >= VERSION_CODES.JELLY_BEAN;
 
+    public static final boolean HAS_CHOREOGRAPHER =
+            Build.VERSION.SDK_INT >= VERSION_CODES.JELLY_BEAN;
+
     public static final boolean HAS_ANNOUNCE_FOR_ACCESSIBILITY =
             Build.VERSION.SDK_INT >= VERSION_CODES.JELLY_BEAN;
 
@@ -160,6 +163,9 @@ public class ApiHelper {
     public static final boolean HAS_DISPLAY_LISTENER =
             Build.VERSION.SDK_INT >= VERSION_CODES.JELLY_BEAN_MR1;
 
+    public static final boolean HAS_EGL14 =
+            Build.VERSION.SDK_INT >= VERSION_CODES.JELLY_BEAN_MR1;
+
     public static int getIntFieldIfExists(Class<?> klass, String fieldName,
             Class<?> obj, int defaultVal) {
         try {
@@ -0,0 +1,72 @@
+package com.nicaiya.glview.utils;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * TimingHistogram counts durations in fixed buckets, four per doubling from
+ * 1us to about 2s, so a percentile is known within 19%. Recording is a single
+ * atomic increment without locks or allocation, so it can be done on every
+ * frame while the percentiles are queried from another thread.
+ */
+public class TimingHistogram {
+
+    private static final int BUCKETS_PER_DOUBLING = 4;
+    private static final int BUCKET_COUNT = 21 * BUCKETS_PER_DOUBLING;
+    private static final int NS_PER_US = 1000;
+
+    private final AtomicIntegerArray mCounts = new AtomicIntegerArray(BUCKET_COUNT);
+
+    public void record(long nanos) {
+        mCounts.incrementAndGet(getBucket(nanos / NS_PER_US));
+    }
+
+    // The bucket of a duration: its power of two and the next two bits.
+    private static int getBucket(long micros) {
+        if (micros <= 0) return 0;
+        int log = 63 - Long.numberOfLeadingZeros(micros);
+        int fraction = (int) (log >= 2 ? micros >>> (log - 2) : micros << (2 - log)) & 3;
+        return Math.min(BUCKET_COUNT - 1, log * BUCKETS_PER_DOUBLING + fraction);
+    }
+
+    // The durations below this bound are in the buckets before it.
+    private static long getBucketEnd(int bucket) {
+        int next = bucket + 1;
+        int log = next / BUCKETS_PER_DOUBLING;
+        int fraction = next % BUCKETS_PER_DOUBLING;
+        return ((long) (BUCKETS_PER_DOUBLING + fraction) << log) * NS_PER_US
+                / BUCKETS_PER_DOUBLING;
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += mCounts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * Returns the duration, in nanoseconds, which the given fraction of the
+     * recorded ones don't exceed, e.g. 0.9f for the 90th percentile. It is
+     * the end of the bucket the percentile falls in, and 0 if nothing was
+     * recorded.
+     */
+    public long getPercentile(float fraction) {
+        long count = getCount();
+        if (count == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(fraction * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mCounts.get(i);
+            if (seen >= rank) return getBucketEnd(i);
+        }
+        return getBucketEnd(BUCKET_COUNT - 1);
+    }
+
+    // Clears the counts. The durations recorded meanwhile may be kept.
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mCounts.set(i, 0);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.nicaiya.glview.glrender;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the matrix work GLES20Canvas does with the 2D affine matrices of
+ * MatrixUtils against the 4x4 matrix stack it replaced.
+ * <p>
+ * android.opengl.Matrix is not available on the JVM, so the 4x4 path is a
+ * plain Java copy of the Matrix calls.
+ */
+public class MatrixUtilsTest {
+
+    private static final int MATRIX_SIZE = 16;
+    private static final int AFFINE_SIZE = MatrixUtils.AFFINE_SIZE;
+
+    private final float[] mProjection = new float[MATRIX_SIZE];
+    private final float[] mMatrix = new float[MATRIX_SIZE];
+    private final float[] mAffine = new float[AFFINE_SIZE];
+    private final float[] mTemp = new float[2 * MATRIX_SIZE];
+
+    public MatrixUtilsTest() {
+        // Matrix.orthoM(mProjection, 0, 0, 1080, 0, 1920, -1, 1)
+        mProjection[0] = 2f / 1080;
+        mProjection[5] = 2f / 1920;
+        mProjection[10] = -1;
+        mProjection[12] = -1;
+        mProjection[13] = -1;
+        mProjection[15] = 1;
+        // The screen flip done by setSize()
+        setIdentity(mMatrix, 0);
+        mMatrix[5] = -1;
+        mMatrix[13] = 1920;
+        MatrixUtils.setAffineIdentity(mAffine, 0);
+        MatrixUtils.affineTranslate(mAffine, 0, 0, 1920);
+        MatrixUtils.affineScale(mAffine, 0, 1, -1);
+    }
+
+    @Test
+    public void affineMvpMatchesMatrixMvp() {
+        float[] expected = new float[MATRIX_SIZE];
+        float[] actual = new float[MATRIX_SIZE];
+
+        translate(mMatrix, 0, 12.5f, 40f);
+        scale(mMatrix, 0, 1.5f, 0.5f);
+        mvp(mMatrix, 0, 3f, 4f, 100f, 50f, expected);
+
+        MatrixUtils.affineTranslate(mAffine, 0, 12.5f, 40f);
+        MatrixUtils.affineScale(mAffine, 0, 1.5f, 0.5f);
+        MatrixUtils.affineMvp(actual, 0, mProjection, mAffine, 0, 3f, 4f, 100f, 50f);
+
+        for (int i = 0; i < MATRIX_SIZE; i++) {
+            assertEquals("element " + i, expected[i], actual[i], 1e-5f);
+        }
+    }
+
+    // The 4x4 path of GLES20Canvas.setMatrix(): translateM, scaleM and
+    // multiplyMM with the projection.
+    private void mvp(float[] m, int offset, float x, float y, float width, float height,
+            float[] out) {
+        float[] temp = mTemp;
+        System.arraycopy(m, offset, temp, MATRIX_SIZE, MATRIX_SIZE);
+        translate(temp, MATRIX_SIZE, x, y);
+        scale(temp, MATRIX_SIZE, width, height);
+        multiply(out, mProjection, temp, MATRIX_SIZE);
+    }
+
+    private static void setIdentity(float[] m, int offset) {
+        for (int i = 0; i < MATRIX_SIZE; i++) {
+            m[offset + i] = (i % 5 == 0) ? 1 : 0;
+        }
+    }
+
+    private static void translate(float[] m, int offset, float x, float y) {
+        for (int i = 0; i < 4; i++) {
+            m[offset + 12 + i] += m[offset + i] * x + m[offset + 4 + i] * y;
+        }
+    }
+
+    private static void scale(float[] m, int offset, float sx, float sy) {
+        for (int i = 0; i < 4; i++) {
+            m[offset + i] *= sx;
+            m[offset + 4 + i] *= sy;
+        }
+    }
+
+    private static void multiply(float[] out, float[] a, float[] b, int bOffset) {
+        for (int i = 0; i < 4; i++) {
+            for (int j = 0; j < 4; j++) {
+                float sum = 0;
+                for (int k = 0; k < 4; k++) {
+                    sum += a[k * 4 + j] * b[bOffset + i * 4 + k];
+                }
+                out[i * 4 + j] = sum;
+            }
+        }
+    }
+}